@@ -0,0 +1,19 @@
+package org.herbst.ndao.dialect;
+
+/**
+ * Диалект, умеющий оценивать количество строк таблицы по статистике планировщика
+ * без полного просмотра таблицы.
+ */
+public interface ApproximateCountSupport {
+
+    /**
+     * Возвращает SQL запрос оценки количества строк таблицы. Запрос принимает имя таблицы
+     * в именованном параметре <code>:table</code> в том виде, в каком его выводит маппинг
+     * (с кавычками и схемой, если они заданы), и возвращает одно число; отрицательное
+     * значение означает, что статистики нет. Таблица без схемы ищется так же, как ее ищут
+     * запросы Hibernate, а не во всех схемах базы.
+     *
+     * @return SQL запрос.
+     */
+    String getApproximateCountString();
+}
@@ -7,10 +7,77 @@ import java.sql.Types;
 /**
  * Created by Kris on 22.04.2015.
  */
-public class EHSQLDialect extends HSQLDialect {
+public class EHSQLDialect extends HSQLDialect implements UpsertSupport {
 
     public EHSQLDialect() {
         super();
         registerColumnType(Types.ARRAY, "bigint[$l]" );
     }
+
+    /**
+     * MERGE с источником из одной строки VALUES. Типы параметров в VALUES HSQLDB вывести
+     * не может, поэтому каждый параметр приводится к типу столбца.
+     */
+    @Override
+    public String getUpsertString(String table, String[] keyColumns, String[] columns, String versionColumn, int[] sqlTypes) {
+        String[] all = new String[keyColumns.length + columns.length];
+        System.arraycopy(keyColumns, 0, all, 0, keyColumns.length);
+        System.arraycopy(columns, 0, all, keyColumns.length, columns.length);
+        StringBuilder sql = new StringBuilder("merge into ").append(table).append(" as target using (values (");
+        for (int i = 0; i < all.length; i++) {
+            if (i > 0) sql.append(", ");
+            sql.append("cast(? as ").append(getUpsertCastTypeName(sqlTypes[i])).append(')');
+        }
+        sql.append(")) as source (");
+        appendColumns(sql, "", all);
+        sql.append(") on ");
+        for (int i = 0; i < keyColumns.length; i++) {
+            if (i > 0) sql.append(" and ");
+            sql.append("target.").append(keyColumns[i]).append(" = source.").append(keyColumns[i]);
+        }
+        if (columns.length > 0) {
+            sql.append(" when matched then update set ");
+            for (int i = 0; i < columns.length; i++) {
+                if (i > 0) sql.append(", ");
+                if (columns[i].equals(versionColumn)) {
+                    sql.append("target.").append(columns[i]).append(" = target.").append(columns[i]).append(" + 1");
+                } else {
+                    sql.append("target.").append(columns[i]).append(" = source.").append(columns[i]);
+                }
+            }
+        }
+        sql.append(" when not matched then insert (");
+        appendColumns(sql, "", all);
+        sql.append(") values (");
+        appendColumns(sql, "source.", all);
+        return sql.append(')').toString();
+    }
+
+    /**
+     * Тип приведения параметра; строки и двоичные данные приводятся к типам без ограничения длины столбца.
+     */
+    private String getUpsertCastTypeName(int sqlType) {
+        switch (sqlType) {
+            case Types.CHAR:
+            case Types.VARCHAR:
+            case Types.LONGVARCHAR:
+            case Types.NCHAR:
+            case Types.NVARCHAR:
+            case Types.LONGNVARCHAR:
+                return "longvarchar";
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+                return "longvarbinary";
+            default:
+                return getCastTypeName(sqlType);
+        }
+    }
+
+    private static void appendColumns(StringBuilder sql, String prefix, String[] columns) {
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) sql.append(", ");
+            sql.append(prefix).append(columns[i]);
+        }
+    }
 }
@@ -7,10 +7,67 @@ import java.sql.Types;
 /**
  * Created by Kris on 22.04.2015.
  */
-public class EPostgreSQL9Dialect extends PostgreSQL9Dialect {
+public class EPostgreSQL9Dialect extends PostgreSQL9Dialect implements ApproximateCountSupport, UpsertSupport {
 
     public EPostgreSQL9Dialect() {
         super();
         registerColumnType(Types.ARRAY, "bigint[$l]" );
     }
+
+    /**
+     * Оценка по pg_class.reltuples, которую обновляют VACUUM/ANALYZE. Приведение к regclass
+     * находит таблицу по search_path, поэтому одноименные таблицы других схем не мешают.
+     */
+    @Override
+    public String getApproximateCountString() {
+        return "select cast(reltuples as bigint) from pg_class where oid = cast(:table as regclass)";
+    }
+
+    /**
+     * SKIP LOCKED, PostgreSQL 9.5 и новее.
+     */
+    @Override
+    public String getForUpdateSkipLockedString() {
+        return " for update skip locked";
+    }
+
+    @Override
+    public String getForUpdateSkipLockedString(String aliases) {
+        return getForUpdateString() + " of " + aliases + " skip locked";
+    }
+
+    /**
+     * INSERT ... ON CONFLICT DO UPDATE, PostgreSQL 9.5 и новее.
+     */
+    @Override
+    public String getUpsertString(String table, String[] keyColumns, String[] columns, String versionColumn, int[] sqlTypes) {
+        StringBuilder sql = new StringBuilder("insert into ").append(table).append(" as target (");
+        StringBuilder values = new StringBuilder();
+        for (int i = 0; i < keyColumns.length + columns.length; i++) {
+            if (i > 0) {
+                sql.append(", ");
+                values.append(", ");
+            }
+            sql.append(i < keyColumns.length ? keyColumns[i] : columns[i - keyColumns.length]);
+            values.append('?');
+        }
+        sql.append(") values (").append(values).append(") on conflict (");
+        for (int i = 0; i < keyColumns.length; i++) {
+            if (i > 0) sql.append(", ");
+            sql.append(keyColumns[i]);
+        }
+        if (columns.length == 0) {
+            return sql.append(") do nothing").toString();
+        }
+        sql.append(") do update set ");
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) sql.append(", ");
+            if (columns[i].equals(versionColumn)) {
+                sql.append(columns[i]).append(" = target.").append(columns[i]).append(" + 1");
+            } else {
+                sql.append(columns[i]).append(" = excluded.").append(columns[i]);
+            }
+        }
+        return sql.toString();
+    }
 }
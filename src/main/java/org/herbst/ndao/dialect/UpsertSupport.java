@@ -0,0 +1,21 @@
+package org.herbst.ndao.dialect;
+
+/**
+ * Диалект, умеющий вставить строку или обновить существующую с тем же ключом одним запросом.
+ */
+public interface UpsertSupport {
+
+    /**
+     * Возвращает SQL запрос вставки или обновления строки. Запрос принимает позиционные параметры:
+     * сначала значения ключевых столбцов, затем значения остальных столбцов в указанном порядке.
+     * При обновлении ключ не меняется, а столбец версии увеличивается на единицу вместо перезаписи.
+     *
+     * @param table         Имя таблицы.
+     * @param keyColumns    Ключевые столбцы.
+     * @param columns       Остальные столбцы.
+     * @param versionColumn Столбец версии из <code>columns</code> или <code>null</code>.
+     * @param sqlTypes      JDBC типы параметров, см. {@link java.sql.Types}.
+     * @return SQL запрос.
+     */
+    String getUpsertString(String table, String[] keyColumns, String[] columns, String versionColumn, int[] sqlTypes);
+}
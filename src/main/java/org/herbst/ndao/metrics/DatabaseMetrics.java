@@ -0,0 +1,189 @@
+package org.herbst.ndao.metrics;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Метрики выполнения операций {@link org.herbst.ndao.optimistic.Database}: гистограммы задержек по классам
+ * операций, счетчики перезапусков по типам исключений, конфликты оптимистичной блокировки по сущностям,
+ * время подтверждения и отката транзакций, очередь асинхронных действий после подтверждения.
+ * Запись метрик не использует блокировок. Снимок метрик
+ * доступен через методы этого класса и через JMX после {@link #register(String)}.
+ */
+public class DatabaseMetrics implements DatabaseMetricsMXBean {
+
+    private final ConcurrentMap<String, LatencyHistogram> operations = new ConcurrentHashMap<String, LatencyHistogram>();
+
+    private final ConcurrentMap<String, AtomicLong> retries = new ConcurrentHashMap<String, AtomicLong>();
+
+    private final ConcurrentMap<String, AtomicLong> conflicts = new ConcurrentHashMap<String, AtomicLong>();
+
+    private final LatencyHistogram commits = new LatencyHistogram();
+
+    private final LatencyHistogram rollbacks = new LatencyHistogram();
+
+    private final LatencyHistogram commitActions = new LatencyHistogram();
+
+    private final LatencyHistogram commitActionWaits = new LatencyHistogram();
+
+    private final AtomicLong commitActionFailures = new AtomicLong();
+
+    private final AtomicLong commitActionQueueDepth = new AtomicLong();
+
+    private ObjectName objectName;
+
+    public void recordOperation(Class<?> operation, long nanos) {
+        LatencyHistogram histogram = operations.get(operation.getName());
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = operations.putIfAbsent(operation.getName(), created);
+            if (histogram == null) histogram = created;
+        }
+        histogram.record(nanos);
+    }
+
+    public void recordRetry(Throwable cause) {
+        increment(retries, cause != null ? cause.getClass().getName() : "unknown");
+    }
+
+    public void recordConflict(String entityName) {
+        increment(conflicts, entityName != null ? entityName : "unknown");
+    }
+
+    public void recordCommit(long nanos) {
+        commits.record(nanos);
+    }
+
+    public void recordRollback(long nanos) {
+        rollbacks.record(nanos);
+    }
+
+    public void recordCommitActionQueued() {
+        commitActionQueueDepth.incrementAndGet();
+    }
+
+    public void recordCommitActionDequeued() {
+        commitActionQueueDepth.decrementAndGet();
+    }
+
+    public void recordCommitAction(long waitNanos, long nanos, boolean failed) {
+        commitActionWaits.record(waitNanos);
+        commitActions.record(nanos);
+        if (failed) commitActionFailures.incrementAndGet();
+    }
+
+    @Override
+    public Map<String, LatencySnapshot> getOperations() {
+        Map<String, LatencySnapshot> result = new TreeMap<String, LatencySnapshot>();
+        for (Map.Entry<String, LatencyHistogram> entry : operations.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getRetries() {
+        return values(retries);
+    }
+
+    @Override
+    public Map<String, Long> getConflicts() {
+        return values(conflicts);
+    }
+
+    @Override
+    public LatencySnapshot getCommits() {
+        return commits.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getRollbacks() {
+        return rollbacks.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getCommitActions() {
+        return commitActions.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getCommitActionWaits() {
+        return commitActionWaits.snapshot();
+    }
+
+    @Override
+    public long getCommitActionFailures() {
+        return commitActionFailures.get();
+    }
+
+    @Override
+    public long getCommitActionQueueDepth() {
+        return commitActionQueueDepth.get();
+    }
+
+    @Override
+    public void reset() {
+        operations.clear();
+        retries.clear();
+        conflicts.clear();
+        commits.reset();
+        rollbacks.reset();
+        commitActions.reset();
+        commitActionWaits.reset();
+        commitActionFailures.set(0);
+    }
+
+    /**
+     * Регистрирует метрики в платформенном MBean сервере под именем
+     * <code>org.herbst.ndao:type=Database,name=&lt;name&gt;</code>.
+     *
+     * @param name Имя базы данных.
+     */
+    public synchronized void register(String name) {
+        try {
+            ObjectName objectName = new ObjectName("org.herbst.ndao:type=Database,name=" + ObjectName.quote(name));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, objectName);
+            this.objectName = objectName;
+        } catch (JMException e) {
+            throw new IllegalStateException("Unable to register database metrics '" + name + "'", e);
+        }
+    }
+
+    /**
+     * Снимает регистрацию метрик в MBean сервере.
+     */
+    public synchronized void unregister() {
+        if (objectName == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException ignored) {
+        }
+        objectName = null;
+    }
+
+    private static void increment(ConcurrentMap<String, AtomicLong> counters, String key) {
+        AtomicLong counter = counters.get(key);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(key, created);
+            if (counter == null) counter = created;
+        }
+        counter.incrementAndGet();
+    }
+
+    private static Map<String, Long> values(ConcurrentMap<String, AtomicLong> counters) {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,59 @@
+package org.herbst.ndao.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX интерфейс метрик {@link org.herbst.ndao.optimistic.Database}. Времена в наносекундах.
+ */
+public interface DatabaseMetricsMXBean {
+
+    /**
+     * Задержки операций по именам классов {@link org.herbst.ndao.optimistic.Monad}, включая перезапуски.
+     */
+    Map<String, LatencySnapshot> getOperations();
+
+    /**
+     * Количество перезапусков по именам классов исключений.
+     */
+    Map<String, Long> getRetries();
+
+    /**
+     * Количество конфликтов оптимистичной блокировки по именам сущностей.
+     */
+    Map<String, Long> getConflicts();
+
+    /**
+     * Время подтверждения транзакций.
+     */
+    LatencySnapshot getCommits();
+
+    /**
+     * Время отката транзакций.
+     */
+    LatencySnapshot getRollbacks();
+
+    /**
+     * Время выполнения асинхронных действий после подтверждения.
+     */
+    LatencySnapshot getCommitActions();
+
+    /**
+     * Время ожидания асинхронных действий после подтверждения в очереди.
+     */
+    LatencySnapshot getCommitActionWaits();
+
+    /**
+     * Количество асинхронных действий после подтверждения, завершившихся ошибкой.
+     */
+    long getCommitActionFailures();
+
+    /**
+     * Количество асинхронных действий после подтверждения в очередях.
+     */
+    long getCommitActionQueueDepth();
+
+    /**
+     * Сбрасывает все метрики.
+     */
+    void reset();
+}
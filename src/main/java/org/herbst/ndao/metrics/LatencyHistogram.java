@@ -0,0 +1,98 @@
+package org.herbst.ndao.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Гистограмма задержек без блокировок. Значения в наносекундах раскладываются по
+ * логарифмическим корзинам: каждая степень двойки делится на {@link #SUB_BUCKETS} частей,
+ * поэтому относительная погрешность перцентилей не превышает 25%.
+ */
+public class LatencyHistogram {
+
+    /**
+     * Количество частей в каждой степени двойки.
+     */
+    private final static int SUB_BITS = 2;
+    private final static int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+
+    private final AtomicLong sum = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Учитывает значение.
+     *
+     * @param nanos Задержка в наносекундах.
+     */
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        buckets.incrementAndGet(index(nanos));
+        sum.addAndGet(nanos);
+        for (;;) {
+            long current = max.get();
+            if (nanos <= current || max.compareAndSet(current, nanos)) break;
+        }
+    }
+
+    /**
+     * Возвращает снимок гистограммы.
+     *
+     * @return Снимок.
+     */
+    public LatencySnapshot snapshot() {
+        long[] values = new long[buckets.length()];
+        long total = 0;
+        for (int i = 0; i < values.length; i++) {
+            values[i] = buckets.get(i);
+            total += values[i];
+        }
+        long max = this.max.get();
+        return new LatencySnapshot(total, total > 0 ? sum.get() / total : 0, max,
+                Math.min(max, percentile(values, total, 0.5)),
+                Math.min(max, percentile(values, total, 0.9)),
+                Math.min(max, percentile(values, total, 0.99)));
+    }
+
+    /**
+     * Сбрасывает гистограмму.
+     */
+    public void reset() {
+        for (int i = 0; i < buckets.length(); i++) {
+            buckets.set(i, 0);
+        }
+        sum.set(0);
+        max.set(0);
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Возвращает верхнюю границу корзины.
+     */
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = index % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BITS);
+        return ((SUB_BUCKETS + sub) << (exponent - SUB_BITS)) + width - 1;
+    }
+
+    private static long percentile(long[] values, long total, double quantile) {
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < values.length; i++) {
+            seen += values[i];
+            if (seen >= rank) return upperBound(i);
+        }
+        return upperBound(values.length - 1);
+    }
+}
@@ -1,11 +1,15 @@
 package org.herbst.ndao.optimistic;
 
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+
 import javax.persistence.*;
 import java.beans.IntrospectionException;
 import java.beans.PropertyDescriptor;
 import java.io.Serializable;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Collections;
 
 /**
  * Базовый класс доменных объектов, предоставляющий базовые операции сохранения/восстановления
@@ -119,6 +123,18 @@ public abstract class BaseDomainObject<T> {
         cx.getSession().refresh(this);
 	}
 
+	/**
+	 * Вставляет объект или обновляет существующий с тем же идентификатором одним запросом,
+	 * см. {@link Persister#upsert(MonadicContext, Object)}.
+	 *
+	 * @throws PersistenceException Если возникла ошибка.
+	 */
+	public T upsert(final MonadicContext cx) throws PersistenceException {
+		final SessionFactoryImplementor factory = (SessionFactoryImplementor) cx.getSession().getSessionFactory();
+		new Upsert(factory, getClass()).execute(cx, Collections.singletonList(this), 1);
+		return (T)this;
+	}
+
 	/**
 	 * Удаляет объект из БД.
 	 *
@@ -184,4 +200,66 @@ public abstract class BaseDomainObject<T> {
     public static <T> T get(final MonadicContext cx, final Class clazz, Serializable id) {
         return (T)cx.getSession().get(clazz, id);
     }
+
+	/**
+	 * Вставляет объект в БД в обход сессионного кеша.
+	 *
+	 * @throws PersistenceException Если возникла ошибка.
+	 */
+	public T insert(final StatelessContext cx) throws PersistenceException {
+		cx.getSession().insert(this);
+		cx.touch(getClass());
+		return (T)this;
+	}
+
+	/**
+	 * Обновляет объект в БД в обход сессионного кеша с проверкой версии.
+	 *
+	 * @throws PersistenceException Если возникла ошибка.
+	 */
+	public T update(final StatelessContext cx) throws PersistenceException {
+		cx.getSession().update(this);
+		cx.evict(getClass(), this);
+		return (T)this;
+	}
+
+	/**
+	 * Удаляет объект из БД в обход сессионного кеша.
+	 *
+	 * @throws PersistenceException Если возникла ошибка.
+	 */
+	public void delete(final StatelessContext cx) throws PersistenceException {
+		cx.getSession().delete(this);
+		cx.evict(getClass(), this);
+		cx.touch(getClass());
+	}
+
+	/**
+	 * Вставляет или обновляет объекты указанного класса одной пачкой, см. {@link Persister#upsertAll(MonadicContext, Iterable)}.
+	 *
+	 * @return Отчет о записи.
+	 * @throws PersistenceException Если возникла ошибка.
+	 */
+	public static BatchReport upsertAll(final MonadicContext cx, final Class<?> clazz, final Collection<?> objects) throws PersistenceException {
+		final SessionFactoryImplementor factory = (SessionFactoryImplementor) cx.getSession().getSessionFactory();
+		return new Upsert(factory, clazz).execute(cx, objects, Math.max(1, objects.size()));
+	}
+
+	/**
+	 * Записывает копии объектов указанного класса одной пачкой: существующие строки обновляются на месте,
+	 * версия записывается из объекта, а не увеличивается. Используется для переноса строк между базами,
+	 * когда версия приемника должна совпадать с версией источника.
+	 *
+	 * @return Отчет о записи.
+	 * @throws PersistenceException Если возникла ошибка.
+	 */
+	public static BatchReport copyAll(final MonadicContext cx, final Class<?> clazz, final Collection<?> objects) throws PersistenceException {
+		final SessionFactoryImplementor factory = (SessionFactoryImplementor) cx.getSession().getSessionFactory();
+		return new Upsert(factory, clazz, true).execute(cx, objects, Math.max(1, objects.size()));
+	}
+
+    @SuppressWarnings("unchecked")
+    public static <T> T get(final StatelessContext cx, final Class<?> clazz, Serializable id) {
+        return (T)cx.getSession().get(clazz, id);
+    }
 }
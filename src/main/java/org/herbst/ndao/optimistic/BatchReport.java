@@ -0,0 +1,101 @@
+package org.herbst.ndao.optimistic;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Отчет о массовой записи объектов: количество объектов и время выполнения каждой пачки
+ * (запись в сессию, сброс и очистка сессии).
+ *
+ * @see Persister#saveAll(MonadicContext, Iterable)
+ */
+public class BatchReport {
+
+	/**
+	 * Количество объектов в каждой пачке.
+	 */
+	private final List<Integer> sizes = new ArrayList<Integer>();
+
+	/**
+	 * Время выполнения каждой пачки в наносекундах.
+	 */
+	private final List<Long> nanos = new ArrayList<Long>();
+
+	/**
+	 * Общее количество объектов.
+	 */
+	private int count;
+
+	/**
+	 * Общее время выполнения в наносекундах.
+	 */
+	private long totalNanos;
+
+	/**
+	 * Учитывает выполненную пачку.
+	 *
+	 * @param size    Количество объектов в пачке.
+	 * @param elapsed Время выполнения пачки в наносекундах.
+	 */
+	void add(int size, long elapsed) {
+		sizes.add(size);
+		nanos.add(elapsed);
+		count += size;
+		totalNanos += elapsed;
+	}
+
+	/**
+	 * Возвращает общее количество записанных объектов.
+	 *
+	 * @return Количество объектов.
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Возвращает количество пачек.
+	 *
+	 * @return Количество пачек.
+	 */
+	public int getBatches() {
+		return sizes.size();
+	}
+
+	/**
+	 * Возвращает количество объектов в каждой пачке.
+	 *
+	 * @return Размеры пачек.
+	 */
+	public List<Integer> getBatchSizes() {
+		return Collections.unmodifiableList(sizes);
+	}
+
+	/**
+	 * Возвращает время выполнения каждой пачки в наносекундах.
+	 *
+	 * @return Время выполнения пачек.
+	 */
+	public List<Long> getBatchNanos() {
+		return Collections.unmodifiableList(nanos);
+	}
+
+	/**
+	 * Возвращает общее время выполнения в наносекундах.
+	 *
+	 * @return Общее время выполнения.
+	 */
+	public long getTotalNanos() {
+		return totalNanos;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		return "BatchReport{count=" + count + ", batches=" + sizes.size() + ", totalMs=" + totalNanos / 1000000 + "}";
+	}
+
+}
@@ -0,0 +1,205 @@
+package org.herbst.ndao.optimistic;
+
+import org.herbst.ndao.metrics.DatabaseMetrics;
+import org.herbst.ndao.utils.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Асинхронное выполнение {@link SuccessCommitAction} после подтверждения транзакции. Действия распределяются
+ * по дорожкам, каждую из которых обслуживает один поток, поэтому действия с одинаковым ключом
+ * {@link SuccessCommitAction#getOrderingKey()} выполняются в порядке постановки, а все действия без ключа
+ * одной транзакции попадают на одну дорожку и тоже сохраняют порядок. Очередь каждой дорожки ограничена:
+ * если она заполнена, поток, подтвердивший транзакцию, ждет освобождения места. Действие, которое не удалось
+ * поставить в очередь из-за остановки, выполняется в вызывающем потоке и не теряется.
+ *
+ * @see Database#setCommitActionDispatcher(CommitActionDispatcher)
+ */
+public class CommitActionDispatcher {
+
+	private final static Logger log = LoggerFactory.getLogger(CommitActionDispatcher.class);
+
+	/**
+	 * Действие в очереди.
+	 */
+	private final static class Task {
+
+		private final SuccessCommitAction action;
+
+		private final long queued;
+
+		private final DatabaseMetrics metrics;
+
+		Task(final SuccessCommitAction action, final DatabaseMetrics metrics) {
+			this.action = action;
+			this.queued = System.nanoTime();
+			this.metrics = metrics;
+		}
+
+	}
+
+	/**
+	 * Очереди дорожек.
+	 */
+	private final BlockingQueue<Task>[] lanes;
+
+	/**
+	 * Потоки дорожек.
+	 */
+	private final ExecutorService workers;
+
+	/**
+	 * Счетчик для распределения действий без ключа.
+	 */
+	private final AtomicInteger next = new AtomicInteger();
+
+	/**
+	 * Признак остановки.
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * Конструктор.
+	 *
+	 * @param lanes    Количество дорожек (потоков).
+	 * @param capacity Емкость очереди одной дорожки.
+	 */
+	public CommitActionDispatcher(int lanes, int capacity) {
+		if (lanes <= 0 || capacity <= 0)
+			throw new IllegalArgumentException("Lane count and capacity must be positive");
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		final BlockingQueue<Task>[] queues = new BlockingQueue[lanes];
+		this.lanes = queues;
+		this.workers = Executors.newFixedThreadPool(lanes, new NamedThreadFactory("ndao-commit-actions"));
+		for (int i = 0; i < lanes; ++i) {
+			final BlockingQueue<Task> lane = new ArrayBlockingQueue<Task>(capacity);
+			this.lanes[i] = lane;
+			workers.execute(new Runnable() {
+				@Override
+				public void run() {
+					drain(lane);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Ставит действия в очереди дорожек. Если очередь заполнена, ждет освобождения места. После остановки
+	 * или прерывания ожидания действия выполняются в вызывающем потоке.
+	 *
+	 * @param actions Действия в порядке добавления в контекст.
+	 * @param metrics Метрики или <code>null</code>.
+	 */
+	public void dispatch(final List<SuccessCommitAction> actions, final DatabaseMetrics metrics) {
+		// дорожка действий без ключа выбирается один раз на транзакцию, чтобы они выполнялись по порядку
+		final int keyless = (next.getAndIncrement() & Integer.MAX_VALUE) % lanes.length;
+		for (final SuccessCommitAction action : actions) {
+			final Task task = new Task(action, metrics);
+			final Object key = action.getOrderingKey();
+			final int lane = key != null ? (key.hashCode() & Integer.MAX_VALUE) % lanes.length : keyless;
+			if (!enqueue(lanes[lane], task)) run(task);
+		}
+	}
+
+	/**
+	 * Ставит действие в очередь дорожки, пока дорожка работает.
+	 *
+	 * @return <code>false</code>, если действие не поставлено и его нужно выполнить в вызывающем потоке.
+	 */
+	private boolean enqueue(final BlockingQueue<Task> lane, final Task task) {
+		if (task.metrics != null) task.metrics.recordCommitActionQueued();
+		try {
+			// ждем места порциями, чтобы остановка не оставила поток ждать очередь, которую никто не разбирает
+			while (!closed) {
+				if (!lane.offer(task, 100, TimeUnit.MILLISECONDS)) continue;
+				// остановка могла начаться после проверки, когда поток дорожки уже завершился; если действие
+				// еще в очереди, забираем его обратно, иначе его выполнит поток дорожки или shutdown
+				if (!closed || !lane.remove(task)) return true;
+				break;
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		if (task.metrics != null) task.metrics.recordCommitActionDequeued();
+		return false;
+	}
+
+	/**
+	 * Возвращает количество действий в очередях.
+	 *
+	 * @return Количество действий.
+	 */
+	public int getQueueDepth() {
+		int depth = 0;
+		for (final BlockingQueue<Task> lane : lanes)
+			depth += lane.size();
+		return depth;
+	}
+
+	/**
+	 * Останавливает выполнение: действия, уже поставленные в очереди, выполняются, новые выполняются
+	 * в вызывающем потоке. Действия, которые потоки дорожек не успели выполнить за время ожидания,
+	 * выполняются в потоке, вызвавшем остановку.
+	 *
+	 * @param timeout Время ожидания выполнения очередей в миллисекундах.
+	 */
+	public void shutdown(long timeout) {
+		closed = true;
+		workers.shutdown();
+		try {
+			if (!workers.awaitTermination(timeout, TimeUnit.MILLISECONDS))
+				log.warn("{} commit actions were not executed before shutdown timeout, running them now", getQueueDepth());
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		workers.shutdownNow();
+		for (final BlockingQueue<Task> lane : lanes) {
+			Task task;
+			while ((task = lane.poll()) != null) {
+				if (task.metrics != null) task.metrics.recordCommitActionDequeued();
+				run(task);
+			}
+		}
+	}
+
+	/**
+	 * Цикл потока дорожки.
+	 */
+	private void drain(final BlockingQueue<Task> lane) {
+		try {
+			while (!closed || !lane.isEmpty()) {
+				final Task task = lane.poll(100, TimeUnit.MILLISECONDS);
+				if (task == null) continue;
+				if (task.metrics != null) task.metrics.recordCommitActionDequeued();
+				run(task);
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Выполняет действие и учитывает его в метриках.
+	 */
+	private void run(final Task task) {
+		final long started = System.nanoTime();
+		boolean failed = false;
+		try {
+			task.action.action();
+		} catch (Exception e) {
+			failed = true;
+			log.error("Exception run successCommitAction", e);
+		}
+		if (task.metrics != null)
+			task.metrics.recordCommitAction(started - task.queued, System.nanoTime() - started, failed);
+	}
+
+}
@@ -0,0 +1,174 @@
+package org.herbst.ndao.optimistic;
+
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Менеджер горячих ключей. Учитывает конфликты оптимистичной блокировки по ключам (сущность, идентификатор)
+ * и, когда за окно времени по ключу случается не меньше порога конфликтов, объявляет ключ горячим.
+ * Операции над горячим ключом {@link Database} выполняет по очереди под полосатой блокировкой, вместо того
+ * чтобы давать им конкурировать, падать с {@link org.hibernate.StaleObjectStateException} и перезапускаться.
+ * Ключ остывает, если по нему не было конфликтов в течение времени остывания.
+ * <p/>
+ * Очередность обеспечивается только внутри одной JVM.
+ *
+ * @see Monad#getConflictKey()
+ */
+public class ConflictManager {
+
+	/**
+	 * Максимальное количество отслеживаемых ключей, после которого остывшие ключи удаляются.
+	 */
+	private final static int MAX_KEYS = 10000;
+
+	/**
+	 * Статистика конфликтов одного ключа.
+	 */
+	private static class Heat {
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		private volatile long windowStart;
+
+		private volatile long lastConflict;
+
+	}
+
+	/**
+	 * Порог количества конфликтов за окно.
+	 */
+	private final int threshold;
+
+	/**
+	 * Окно подсчета конфликтов в миллисекундах.
+	 */
+	private final long window;
+
+	/**
+	 * Время остывания ключа в миллисекундах.
+	 */
+	private final long cooldown;
+
+	/**
+	 * Блокировки-полосы.
+	 */
+	private final Lock[] stripes;
+
+	/**
+	 * Статистика конфликтов по ключам.
+	 */
+	private final ConcurrentMap<String, Heat> keys = new ConcurrentHashMap<String, Heat>();
+
+	/**
+	 * Конструктор.
+	 *
+	 * @param threshold Количество конфликтов за окно, после которого ключ считается горячим.
+	 * @param window    Окно подсчета конфликтов в миллисекундах.
+	 * @param cooldown  Время без конфликтов в миллисекундах, после которого ключ остывает.
+	 * @param stripes   Количество блокировок-полос, округляется вверх до степени двойки.
+	 */
+	public ConflictManager(int threshold, long window, long cooldown, int stripes) {
+		if (threshold <= 0 || window <= 0 || cooldown <= 0 || stripes <= 0)
+			throw new IllegalArgumentException("Invalid conflict manager settings");
+		this.threshold = threshold;
+		this.window = window;
+		this.cooldown = cooldown;
+		int size = Integer.highestOneBit(stripes);
+		if (size < stripes) size <<= 1;
+		this.stripes = new Lock[size];
+		for (int i = 0; i < size; i++)
+			this.stripes[i] = new ReentrantLock();
+	}
+
+	/**
+	 * Формирует ключ конфликта.
+	 *
+	 * @param entityName Имя сущности.
+	 * @param id         Идентификатор объекта.
+	 * @return Ключ конфликта.
+	 */
+	public static String key(final String entityName, final Serializable id) {
+		return entityName + '#' + id;
+	}
+
+	/**
+	 * Формирует ключ конфликта.
+	 *
+	 * @param type Тип сущности.
+	 * @param id   Идентификатор объекта.
+	 * @return Ключ конфликта.
+	 */
+	public static String key(final Class<?> type, final Serializable id) {
+		return key(type.getName(), id);
+	}
+
+	/**
+	 * Учитывает конфликт по ключу.
+	 *
+	 * @param key Ключ конфликта.
+	 */
+	public void record(final String key) {
+		final long now = System.currentTimeMillis();
+		Heat heat = keys.get(key);
+		if (heat == null) {
+			if (keys.size() >= MAX_KEYS) purge(now);
+			final Heat created = new Heat();
+			created.windowStart = now;
+			heat = keys.putIfAbsent(key, created);
+			if (heat == null) heat = created;
+		}
+		if (now - heat.windowStart > window && heat.count.get() < threshold) {
+			// окно истекло, а ключ так и не стал горячим - начинаем новое окно
+			heat.windowStart = now;
+			heat.count.set(0);
+		}
+		heat.count.incrementAndGet();
+		heat.lastConflict = now;
+	}
+
+	/**
+	 * Проверяет, горячий ли ключ.
+	 *
+	 * @param key Ключ конфликта.
+	 * @return <code>true</code>, если операции над ключом нужно выполнять по очереди.
+	 */
+	public boolean isHot(final String key) {
+		final Heat heat = keys.get(key);
+		if (heat == null || heat.count.get() < threshold) return false;
+		if (System.currentTimeMillis() - heat.lastConflict > cooldown) {
+			keys.remove(key, heat);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Возвращает блокировку-полосу ключа.
+	 *
+	 * @param key Ключ конфликта.
+	 * @return Блокировка.
+	 */
+	public Lock lockFor(final String key) {
+		int hash = key.hashCode();
+		hash ^= hash >>> 16;
+		return stripes[hash & (stripes.length - 1)];
+	}
+
+	/**
+	 * Удаляет остывшие ключи.
+	 */
+	private void purge(long now) {
+		final Iterator<Map.Entry<String, Heat>> iterator = keys.entrySet().iterator();
+		while (iterator.hasNext()) {
+			final Heat heat = iterator.next().getValue();
+			if (now - heat.lastConflict > Math.max(window, cooldown)) iterator.remove();
+		}
+	}
+
+}
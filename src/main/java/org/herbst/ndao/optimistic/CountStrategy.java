@@ -0,0 +1,25 @@
+package org.herbst.ndao.optimistic;
+
+/**
+ * Стратегия подсчета всех объектов типа в {@link Persister#countAll(MonadicContext)}.
+ */
+public enum CountStrategy {
+
+	/**
+	 * Точный подсчет запросом <code>select count(*)</code> при каждом вызове.
+	 */
+	EXACT,
+
+	/**
+	 * Точный подсчет, результат которого кешируется до вставки или удаления объекта этого типа
+	 * и, если задан, до истечения срока жизни.
+	 */
+	CACHED,
+
+	/**
+	 * Оценка по статистике планировщика, если диалект реализует
+	 * {@link org.herbst.ndao.dialect.ApproximateCountSupport}, иначе точный подсчет.
+	 */
+	APPROXIMATE
+
+}
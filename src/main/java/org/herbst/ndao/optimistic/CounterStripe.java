@@ -0,0 +1,108 @@
+package org.herbst.ndao.optimistic;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+
+/**
+ * Полоса счетчика {@link StripedCounter}: одна из нескольких строк, на которые разнесено значение
+ * горячего счетчика. Сущность нужно зарегистрировать в {@link DatabaseBuilder#withAnnotatedClass(Class)}.
+ */
+@Entity
+@Table(
+		name = "counter_stripe",
+		indexes = @Index(name = "counter_stripe_name", columnList = "name")
+)
+public class CounterStripe {
+
+	/**
+	 * Идентификатор полосы: имя счетчика и номер полосы.
+	 */
+	private String id;
+
+	/**
+	 * Имя счетчика.
+	 */
+	private String name;
+
+	/**
+	 * Номер полосы.
+	 */
+	private int stripe;
+
+	/**
+	 * Часть значения счетчика, накопленная в полосе.
+	 */
+	private long amount;
+
+	/**
+	 * Конструктор для Hibernate.
+	 */
+	protected CounterStripe() {
+	}
+
+	/**
+	 * Конструктор.
+	 *
+	 * @param name   Имя счетчика.
+	 * @param stripe Номер полосы.
+	 * @param amount Начальное значение.
+	 */
+	public CounterStripe(final String name, int stripe, long amount) {
+		this.id = id(name, stripe);
+		this.name = name;
+		this.stripe = stripe;
+		this.amount = amount;
+	}
+
+	/**
+	 * Возвращает идентификатор полосы счетчика.
+	 *
+	 * @param name   Имя счетчика.
+	 * @param stripe Номер полосы.
+	 * @return Идентификатор полосы.
+	 */
+	public static String id(final String name, int stripe) {
+		return name + '#' + stripe;
+	}
+
+	@Id
+	@Column(length = 255)
+	public String getId() {
+		return id;
+	}
+
+	public void setId(final String value) {
+		this.id = value;
+	}
+
+	@Column(nullable = false, length = 240)
+	public String getName() {
+		return name;
+	}
+
+	public void setName(final String value) {
+		this.name = value;
+	}
+
+	@Column(nullable = false)
+	public int getStripe() {
+		return stripe;
+	}
+
+	public void setStripe(int value) {
+		this.stripe = value;
+	}
+
+	@Column(nullable = false)
+	public long getAmount() {
+		return amount;
+	}
+
+	public void setAmount(long value) {
+		this.amount = value;
+	}
+
+}
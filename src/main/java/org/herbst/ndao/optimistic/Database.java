@@ -1,12 +1,34 @@
 package org.herbst.ndao.optimistic;
 
+import org.herbst.ndao.metrics.DatabaseMetrics;
+import org.herbst.ndao.utils.NamedThreadFactory;
 import org.hibernate.*;
 import org.hibernate.boot.registry.StandardServiceRegistry;
 import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
 import org.hibernate.cfg.Configuration;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.type.AbstractStandardBasicType;
+import org.hibernate.jdbc.Work;
 
 import javax.persistence.PersistenceException;
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.function.BiConsumer;
 
 /**
  * Корневой класс доступа к данным, хранящимся в базе данных через ORM Hibernate.
@@ -45,11 +67,118 @@ public class Database {
 	 */
 	protected int retryTimeout = 100;
 
+	/**
+	 * Политика ожидания между попытками; <code>null</code> - линейная с шагом {@link #retryTimeout},
+	 * см. {@link #getRetryPolicy()}.
+	 */
+	protected RetryPolicy retryPolicy;
+
+	/**
+	 * Бюджет повторных попыток, по умолчанию неограниченный.
+	 */
+	protected RetryBudget retryBudget = RetryBudget.unlimited();
+
+	/**
+	 * Реплики, на которые направляются операции чтения, или <code>null</code>.
+	 */
+	protected ReplicaPool replicas;
+
+	/**
+	 * Окно read-your-writes в миллисекундах: столько времени после подтверждения транзакции
+	 * операции чтения потока выполняются на основной базе. 0 - не используется.
+	 */
+	protected long readYourWritesWindow;
+
+	/**
+	 * Отметка "подтверждений не было" в {@link #lastCommits}.
+	 */
+	private static final long NO_COMMIT = Long.MIN_VALUE;
+
+	/**
+	 * Время последнего подтверждения транзакции потоком, {@link System#nanoTime()}. Асинхронные операции
+	 * обновляют отметку вызвавшего их потока, см. {@link MonadicContext#getCommitMark()}.
+	 */
+	private final ThreadLocal<AtomicLong> lastCommits = new ThreadLocal<AtomicLong>() {
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public AtomicLong initialValue() {
+			return new AtomicLong(NO_COMMIT);
+		}
+
+	};
+
+	/**
+	 * Метрики выполнения операций или <code>null</code>, если метрики не собираются.
+	 */
+	protected DatabaseMetrics metrics;
+
+	/**
+	 * Менеджер горячих ключей или <code>null</code>, если операции над горячими ключами не упорядочиваются.
+	 */
+	protected ConflictManager conflicts;
+
+	/**
+	 * Политика перехода к пессимистичной блокировке или <code>null</code>.
+	 */
+	protected EscalationPolicy escalation;
+
+	/**
+	 * Групповое подтверждение или <code>null</code>.
+	 */
+	protected GroupCommitExecutor groupCommit;
+
+	/**
+	 * Асинхронное выполнение действий после подтверждения или <code>null</code>.
+	 */
+	protected CommitActionDispatcher commitActions;
+
+	/**
+	 * Реестр именованных запросов.
+	 */
+	protected QueryRegistry queries = new QueryRegistry();
+
+	/**
+	 * Пул выполнения асинхронных операций.
+	 */
+	private Executor executor;
+
+	/**
+	 * Планировщик перезапусков асинхронных операций.
+	 */
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * Признак того, что пул выполнения создан самой базой и должен быть остановлен в {@link #destroy()}.
+	 */
+	private boolean ownExecutor;
+
+	/**
+	 * Признак того, что планировщик создан самой базой и должен быть остановлен в {@link #destroy()}.
+	 */
+	private boolean ownScheduler;
+
 	/**
 	 * Конструктор.
 	 */
 	public Database(Configuration configuration) {
 		sessionFactory = buildSessionFactory(configuration);
+		registerListeners(sessionFactory);
+	}
+
+	/**
+	 * Регистрирует служебные слушатели событий Hibernate.
+	 *
+	 * @param factory Фабрика сессий.
+	 */
+	static void registerListeners(final SessionFactory factory) {
+		final EventListenerRegistry registry = ((SessionFactoryImplementor) factory).getServiceRegistry()
+				.getService(EventListenerRegistry.class);
+		final EntityModifications modifications = new EntityModifications();
+		registry.appendListeners(EventType.POST_COMMIT_INSERT, modifications);
+		registry.appendListeners(EventType.POST_COMMIT_DELETE, modifications);
 	}
 
 	/**
@@ -57,7 +186,7 @@ public class Database {
 	 *
 	 * @return Построенную фабрику сессий.
 	 */
-	private SessionFactory buildSessionFactory(Configuration configuration) {
+	static SessionFactory buildSessionFactory(Configuration configuration) {
         StandardServiceRegistry serviceRegistry = new StandardServiceRegistryBuilder().applySettings(configuration.getProperties()).build();
 		return configuration.buildSessionFactory(serviceRegistry);
 	}
@@ -70,15 +199,104 @@ public class Database {
 	 * @return Открытую сессию.
 	 */
 	protected Session begin(boolean transactional, final MonadicContext cx) {
-		final Session sx = sessionFactory.openSession();
-		if (transactional)
-			sx.beginTransaction();
+		return begin(transactional, false, cx);
+	}
+
+	/**
+	 * Начинает выполнение операции с использованием указанной сессии. Сессия операции только для чтения
+	 * загружает сущности в режиме read-only (без снимков состояния для проверки изменений), не сбрасывает
+	 * изменения в БД и работает с JDBC соединением, помеченным как read-only.
+	 *
+	 * @param transactional Должна ли операция использовать транзакцию.
+	 * @param readOnly      Выполняется ли операция только для чтения.
+	 * @param cx            Контекст операции.
+	 * @return Открытую сессию.
+	 */
+	protected Session begin(boolean transactional, boolean readOnly, final MonadicContext cx) {
+		final int replica = selectReplica(transactional, cx);
+		final Session sx;
+		try {
+			sx = replica < 0 ? sessionFactory.openSession() : replicas.get(replica).openSession();
+		} catch (RuntimeException ex) {
+			if (replica >= 0) replicas.release(replica);
+			throw ex;
+		}
+		try {
+			if (readOnly) {
+				sx.setDefaultReadOnly(true);
+				sx.setHibernateFlushMode(FlushMode.MANUAL);
+				sx.doWork(new Work() {
+					@Override
+					public void execute(Connection connection) throws SQLException {
+						connection.setReadOnly(true);
+					}
+				});
+			}
+			if (transactional) sx.beginTransaction();
+		} catch (RuntimeException ex) {
+			// сессия не досталась контексту - закрываем ее сами, возвращая соединение в пул
+			if (replica >= 0) replicas.release(replica);
+			try {
+				sx.close();
+			} catch (RuntimeException ignored) {}
+			throw ex;
+		}
+		cx.setReplica(replica);
 		cx.setSession(sx);
 		cx.setTransactional(transactional);
+		cx.setReadOnly(readOnly);
         cx.setLastError(null);
+		// действия неудачной попытки не должны выполниться после удачной
+		cx.getSuccessCommitActions().clear();
+		cx.setDispatcher(commitActions, metrics);
 		return sx;
 	}
 
+	/**
+	 * Выбирает реплику для операции. Транзакционные операции, а также операции потока, недавно
+	 * подтвердившего транзакцию (при включенном read-your-writes), выполняются на основной базе.
+	 *
+	 * @param transactional Должна ли операция использовать транзакцию.
+	 * @param cx            Контекст операции.
+	 * @return Номер реплики или -1 для основной базы.
+	 */
+	protected int selectReplica(boolean transactional, final MonadicContext cx) {
+		if (transactional || replicas == null) return -1;
+		if (readYourWritesWindow > 0) {
+			final long lastCommit = commitMark(cx).get();
+			if (lastCommit != NO_COMMIT
+					&& System.nanoTime() - lastCommit < TimeUnit.MILLISECONDS.toNanos(readYourWritesWindow)) return -1;
+		}
+		return replicas.acquire();
+	}
+
+	/**
+	 * Возвращает отметку подтверждения транзакции, которую учитывает и обновляет операция.
+	 *
+	 * @param cx Контекст операции.
+	 * @return Отметка контекста или, если ее нет, отметка текущего потока.
+	 */
+	private AtomicLong commitMark(final MonadicContext cx) {
+		return cx.getCommitMark() != null ? cx.getCommitMark() : lastCommits.get();
+	}
+
+	/**
+	 * Снимает с JDBC соединения признак read-only перед возвратом соединения в пул. Неявную транзакцию,
+	 * начатую чтением, предварительно откатываем: большинство драйверов не позволяют менять признак
+	 * посреди транзакции.
+	 *
+	 * @param sx Сессия операции.
+	 */
+	private void resetReadOnly(final Session sx) {
+		sx.doWork(new Work() {
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				if (!connection.getAutoCommit()) connection.rollback();
+				connection.setReadOnly(false);
+			}
+		});
+	}
+
 	/**
 	 * Завершает выполнение операции, закрывая переданную сессию.
 	 *
@@ -87,13 +305,26 @@ public class Database {
 	protected void end(final MonadicContext cx) {
 		final Session sx = cx.getSession();
 		boolean transactional = cx.isTransactional();
+		boolean readOnly = cx.isReadOnly();
+		int replica = cx.getReplica();
 		cx.deactivate();
+		if (replica >= 0) replicas.release(replica);
 		if (!sx.isOpen()) return;
-		if (transactional) {
-			final Transaction tx = sx.getTransaction();
-			if (tx != null) tx.commit();
+		// контекст уже деактивирован, и cancel() сессию не закроет - закрываем ее здесь при любом исходе
+		try {
+			if (transactional) {
+				final Transaction tx = sx.getTransaction();
+				if (tx != null) {
+					final long started = System.nanoTime();
+					tx.commit();
+					if (metrics != null) metrics.recordCommit(System.nanoTime() - started);
+				}
+				if (readYourWritesWindow > 0) commitMark(cx).set(System.nanoTime());
+			}
+			if (readOnly) resetReadOnly(sx);
+		} finally {
+			sx.close();
 		}
-		sx.close();
 	}
 
 	/**
@@ -105,13 +336,21 @@ public class Database {
 		//ToDO избавится от этого hot fix
 		final Session sx = cx.getSessionWithIgnoreNull();
 		boolean transactional = cx.isTransactional();
+		boolean readOnly = cx.isReadOnly();
+		int replica = cx.getReplica();
 		cx.deactivate();
+		if (replica >= 0) replicas.release(replica);
 		if (sx==null || !sx.isOpen()) return;
 		try {
 			if (transactional) {
 				final Transaction tx = sx.getTransaction();
-				if (tx != null) tx.rollback();
+				if (tx != null) {
+					final long started = System.nanoTime();
+					tx.rollback();
+					if (metrics != null) metrics.recordRollback(System.nanoTime() - started);
+				}
 			}
+			if (readOnly) resetReadOnly(sx);
 			sx.close();
 		} catch (Exception ignored) {}
 
@@ -139,6 +378,251 @@ public class Database {
 		return contexts.get();
 	}
 
+	/**
+	 * Результат одной попытки выполнения операции в корневом контексте.
+	 */
+	protected enum Outcome {
+
+		/**
+		 * Операция выполнена, транзакция подтверждена.
+		 */
+		SUCCESS,
+
+		/**
+		 * Операция не выполнена, ее можно перезапустить.
+		 */
+		RESTART,
+
+		/**
+		 * Операция не выполнена, перезапуск бессмысленен.
+		 */
+		FAILURE
+
+	}
+
+	/**
+	 * Выполняет одну попытку операции. Корневой контекст открывает и закрывает сессию сам, а при ошибке
+	 * возвращает результат попытки; вложенный контекст при ошибке выбрасывает {@link MonadicOperationException},
+	 * чтобы перезапуск выполнил корневой контекст.
+	 *
+	 * @param transactional Должна ли операция использовать транзакцию.
+	 * @param readOnly      Выполняется ли операция только для чтения.
+	 * @param operation     Выполняемая операция.
+	 * @param context       Контекст операции.
+	 * @param root          Является ли контекст корневым.
+	 * @return Результат попытки.
+	 */
+	protected Outcome perform(boolean transactional, boolean readOnly, final Monad operation, final MonadicContext context, boolean root) {
+		if (!root) return performOnce(transactional, readOnly, operation, context, root);
+		// операции над горячим ключом выполняем по очереди
+		final String key = context.getConflictKey() != null ? context.getConflictKey() : operation.getConflictKey();
+		final Lock lock = conflicts != null && key != null && conflicts.isHot(key) ? conflicts.lockFor(key) : null;
+		final Outcome outcome;
+		if (lock != null) lock.lock();
+		try {
+			outcome = performOnce(transactional, readOnly, operation, context, root);
+		} finally {
+			if (lock != null) lock.unlock();
+		}
+		if (outcome == Outcome.RESTART) {
+			final RuntimeException stale = staleState(context.getLastError());
+			if (stale != null) conflicted(context, operation, stale);
+		}
+		return outcome;
+	}
+
+	/**
+	 * Находит конфликт оптимистичной блокировки в цепочке причин ошибки. При подтверждении транзакции
+	 * Hibernate заворачивает {@link StaleStateException} в {@link javax.persistence.OptimisticLockException},
+	 * а при пакетной записи и вовсе не сообщает, какой объект устарел.
+	 *
+	 * @param ex Ошибка операции.
+	 * @return {@link StaleStateException} или {@link javax.persistence.OptimisticLockException} из цепочки причин,
+	 * или <code>null</code>, если ошибка не вызвана конфликтом.
+	 */
+	static RuntimeException staleState(final Throwable ex) {
+		RuntimeException found = null;
+		Throwable cause = ex;
+		for (int depth = 0; cause != null && depth < 16; depth++) {
+			if (cause instanceof StaleStateException) return (StaleStateException) cause;
+			if (found == null && cause instanceof javax.persistence.OptimisticLockException)
+				found = (javax.persistence.OptimisticLockException) cause;
+			cause = cause.getCause();
+		}
+		return found;
+	}
+
+	/**
+	 * Если ошибка вызвана конфликтом оптимистичной блокировки, учитывает его в метриках и вытесняет
+	 * устаревший объект из кэша второго уровня (если ошибка его называет).
+	 *
+	 * @param ex Ошибка попытки.
+	 */
+	private void staleStateFailure(final Exception ex) {
+		final RuntimeException stale = staleState(ex);
+		if (stale == null) return;
+		String entityName = null;
+		if (stale instanceof StaleObjectStateException) {
+			final StaleObjectStateException sosex = (StaleObjectStateException) stale;
+			//Обязательно надо почистить кеш
+			Cache cache = sessionFactory.getCache();
+			if (cache!=null) {
+				cache.evictEntity(sosex.getEntityName(), sosex.getIdentifier());
+			}
+			entityName = sosex.getEntityName();
+		}
+		if (metrics != null) metrics.recordConflict(entityName);
+	}
+
+	/**
+	 * Учитывает конфликт оптимистичной блокировки корневой операции: отмечает горячие ключи и,
+	 * если конфликтов набралось достаточно, назначает пессимистичную блокировку спорного объекта.
+	 * Если ошибка не называет объект (пакетная запись версионируемых сущностей), ключом служит
+	 * {@link Monad#getConflictKey()}; объект для пессимистичной блокировки тогда восстанавливается из ключа,
+	 * если тот построен {@link ConflictManager#key(Class, Serializable)}.
+	 *
+	 * @param context   Контекст операции.
+	 * @param operation Операция.
+	 * @param stale     Ошибка конфликта, см. {@link #staleState(Throwable)}.
+	 */
+	private void conflicted(final MonadicContext context, final Monad operation, final RuntimeException stale) {
+		final int count = context.conflicted();
+		String entityName = null;
+		Serializable id = null;
+		if (stale instanceof StaleObjectStateException) {
+			entityName = ((StaleObjectStateException) stale).getEntityName();
+			id = ((StaleObjectStateException) stale).getIdentifier();
+		}
+		final String conflictKey = entityName != null ? ConflictManager.key(entityName, id) : operation.getConflictKey();
+		if (conflicts != null && conflictKey != null) {
+			conflicts.record(conflictKey);
+			context.setConflictKey(conflictKey);
+		}
+		if (entityName == null && conflictKey != null && escalation != null) {
+			final int separator = conflictKey.lastIndexOf('#');
+			if (separator > 0) {
+				try {
+					final EntityPersister persister = ((SessionFactoryImplementor) sessionFactory).getMetamodel()
+							.entityPersister(conflictKey.substring(0, separator));
+					if (persister.getIdentifierType() instanceof AbstractStandardBasicType) {
+						id = (Serializable) ((AbstractStandardBasicType<?>) persister.getIdentifierType())
+								.fromStringValue(conflictKey.substring(separator + 1));
+						entityName = persister.getEntityName();
+					}
+				} catch (HibernateException ignored) {
+					// ключ не ссылается на сущность - блокировать нечего
+				}
+			}
+		}
+		if (escalation != null && entityName != null) {
+			final int threshold = escalation.getThreshold(entityName);
+			if (threshold > 0 && count >= threshold)
+				context.setPessimisticLock(entityName, id);
+		}
+	}
+
+	/**
+	 * Выполняет одну попытку операции, см. {@link #perform(boolean, boolean, Monad, MonadicContext, boolean)}.
+	 */
+	private Outcome performOnce(boolean transactional, boolean readOnly, final Monad operation, final MonadicContext context, boolean root) {
+		boolean restart;
+		if (root) {
+			try {
+				begin(transactional, readOnly, context);
+			} catch (RuntimeException ex) {
+				// не удалось получить соединение или начать транзакцию - сессию begin уже закрыл
+				context.setLastError(ex);
+				operation.fail(context);
+				return Outcome.RESTART;
+			}
+		}
+		try {
+			if (root) lockContended(context);
+			operation.action(context);
+			// если все закончилось удачно, пытаемся закрыть сессию, подтверждая транзакцию
+			if (root) {
+				end(context);
+				retryBudget.success();
+			}
+			operation.compleated(context);
+			return Outcome.SUCCESS;
+		} catch (MonadicOperationException ex) {
+			restart = ex.canRestart();
+			context.setLastError((Exception) ex.getCause());
+			operation.fail(context);
+			if (!root) throw ex;
+		} catch (HibernateException ex) {
+			staleStateFailure(ex);
+			restart = true;
+			context.setLastError(ex);
+			operation.fail(context);
+			if (!root) throw new MonadicOperationException(ex, restart);
+		} catch (PersistenceException ex) {
+			staleStateFailure(ex);
+			restart = true;
+			context.setLastError(ex);
+			operation.fail(context);
+			if (!root) throw new MonadicOperationException(ex, restart);
+		} catch (Exception ex) {
+			restart = false;
+			context.setLastError(ex);
+			operation.fail(context);
+			if (!root) throw new MonadicOperationException(ex, restart);
+		}
+		// тут мы оказываемся только если мы корневой контекст и возникла ошибка операции
+		cancel(context);
+		return restart ? Outcome.RESTART : Outcome.FAILURE;
+	}
+
+	/**
+	 * После повторных конфликтов заранее блокирует спорный объект, см. {@link EscalationPolicy}.
+	 * Ошибка ожидания блокировки перезапускает операцию, как и любая ошибка Hibernate.
+	 *
+	 * @param cx Контекст операции.
+	 */
+	private void lockContended(final MonadicContext cx) {
+		if (cx.isTransactional() && cx.getLockEntityName() != null)
+			cx.getSession().get(cx.getLockEntityName(), cx.getLockId(), new LockOptions(LockMode.PESSIMISTIC_WRITE));
+	}
+
+	/**
+	 * Решает, нужно ли перезапускать операцию после неудачной попытки.
+	 *
+	 * @param outcome Результат попытки.
+	 * @param attempt Количество выполненных попыток.
+	 * @param retries Максимальное количество попыток.
+	 * @param cause   Ошибка попытки.
+	 * @return <code>true</code>, если операцию нужно перезапустить.
+	 */
+	protected boolean shouldRestart(final Outcome outcome, int attempt, int retries, final Exception cause) {
+		if (outcome != Outcome.RESTART || attempt >= retries || !retryBudget.tryAcquire()) return false;
+		if (metrics != null) metrics.recordRetry(cause);
+		return true;
+	}
+
+	/**
+	 * Формирует итоговую ошибку операции по последней ошибке контекста.
+	 *
+	 * @param context Контекст операции.
+	 * @return Ошибка операции.
+	 */
+	protected HerbstException failure(final MonadicContext context) {
+		return failure(context.getLastError());
+	}
+
+	/**
+	 * Формирует итоговую ошибку операции по последней возникшей ошибке.
+	 *
+	 * @param ex Последняя ошибка.
+	 * @return Ошибка операции.
+	 */
+	protected HerbstException failure(final Exception ex) {
+		if (ex instanceof HerbstException)
+			return (HerbstException) ex;
+		else
+			return new HerbstException(ex, "#persistence-error", "reason", ex != null ? ex.getMessage() : "Unknown error");
+	}
+
 	/**
 	 * Внутренняя реализация операции с данными.
 	 *
@@ -148,67 +632,295 @@ public class Database {
 	 *          Если при выполнении операции возникли ошибки.
 	 */
 	public void execute(boolean transactional, final Monad operation, int retries) throws HerbstException {
+		execute(transactional, false, operation, retries);
+	}
+
+	/**
+	 * Внутренняя реализация операции с данными. Вложенная операция выполняется в режиме корневой,
+	 * независимо от переданных признаков.
+	 *
+	 * @param transactional Должна ли операция использовать транзакцию.
+	 * @param readOnly      Выполняется ли операция только для чтения.
+	 * @param operation     Выполняемая операция.
+	 * @throws HerbstException
+	 *          Если при выполнении операции возникли ошибки.
+	 */
+	public void execute(boolean transactional, boolean readOnly, final Monad operation, int retries) throws HerbstException {
 		final MonadicContext context = getContext();
 		boolean root = !context.isActive();
+		if (!root || metrics == null) {
+			performWithRetries(transactional, readOnly, operation, context, root, retries);
+			return;
+		}
+		final long started = System.nanoTime();
+		try {
+			performWithRetries(transactional, readOnly, operation, context, root, retries);
+		} finally {
+			metrics.recordOperation(operation.getClass(), System.nanoTime() - started);
+		}
+	}
+
+	/**
+	 * Выполняет попытки операции, пока она не выполнится или не исчерпаются попытки.
+	 */
+	private void performWithRetries(boolean transactional, boolean readOnly, final Monad operation, final MonadicContext context,
+									boolean root, int retries) throws HerbstException {
+		if (root) context.resetConflicts();
 		int attempt = 0;
-		boolean restart = false;
-		do {
-			if (root) begin(transactional, context);
-			// пытаемся выполнить операцию некоторое количество раз
+		long delay = 0;
+		// пытаемся выполнить операцию некоторое количество раз
+		for (;;) {
+			final Outcome outcome = perform(transactional, readOnly, operation, context, root);
+			if (outcome == Outcome.SUCCESS) return;
+			attempt += 1;
+			if (!shouldRestart(outcome, attempt, retries, context.getLastError())) throw failure(context);
+			// подождем и перезапустим
+			context.restarted();
+			delay = getRetryPolicy().delay(attempt, delay);
 			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException ignored) {}
+		}
+	}
+
+	/**
+	 * Выполняет вложенную операцию в точке сохранения JDBC транзакции. Если операция не выполнилась,
+	 * транзакция и сессия откатываются только к точке сохранения, и операция перезапускается отдельно,
+	 * без повторного выполнения внешней операции. Объекты сессии, загруженные до вызова, остаются
+	 * присоединенными и перечитываются, объекты, загруженные вложенной операцией, отсоединяются.
+	 * <p/>
+	 * Если попытки исчерпаны, выбрасывается {@link HerbstException}; внешняя операция может его перехватить
+	 * и продолжить работу. Если ошибка все же пометила транзакцию только для отката (например, возникла при
+	 * неявном сбросе сессии перед запросом) или не удалось создать саму точку сохранения, ошибка
+	 * передается корневой операции в {@link MonadicOperationException}. Вне транзакционной
+	 * операции метод равносилен {@link #execute(boolean, Monad, int)}.
+	 *
+	 * @param operation Выполняемая операция.
+	 * @param retries   Максимальное количество попыток вложенной операции.
+	 * @throws HerbstException
+	 *          Если при выполнении операции возникли ошибки.
+	 */
+	public void executeSavepoint(final Monad operation, int retries) throws HerbstException {
+		final MonadicContext context = getContext();
+		if (!context.isActive() || !context.isTransactional()) {
+			execute(true, operation, retries);
+			return;
+		}
+		int attempt = 0;
+		long delay = 0;
+		for (;;) {
+			SessionSavepoint savepoint = null;
+			boolean restart;
+			try {
+				// создание точки сбрасывает изменения внешней операции и тоже может завершиться ошибкой
+				savepoint = new SessionSavepoint(context);
 				operation.action(context);
-				// если все закончилось удачно, пытаемся закрыть сессию, подтверждая транзакцию
-				if (root) end(context);
-				operation.compleated(context);
+				savepoint.flush();
+				savepoint.release();
+				operation.success(context);
 				return;
 			} catch (MonadicOperationException ex) {
 				restart = ex.canRestart();
 				context.setLastError((Exception) ex.getCause());
-				operation.fail(context);
-				if (!root) throw ex;
-			} catch (StaleObjectStateException sosex) {
-				//Обязательно надо почистить кеш
-				Cache cache = sessionFactory.getCache();
-				if (cache!=null) {
-					cache.evictEntity(sosex.getEntityName(), sosex.getIdentifier());
-				}
-				restart = true;
-				context.setLastError(sosex);
-				operation.fail(context);
-				if (!root) throw new MonadicOperationException(sosex, restart);
 			} catch (HibernateException ex) {
+				staleStateFailure(ex);
 				restart = true;
 				context.setLastError(ex);
-				operation.fail(context);
-				if (!root) throw new MonadicOperationException(ex, restart);
 			} catch (PersistenceException ex) {
+				staleStateFailure(ex);
 				restart = true;
 				context.setLastError(ex);
-				operation.fail(context);
-				if (!root) throw new MonadicOperationException(ex, restart);
 			} catch (Exception ex) {
 				restart = false;
 				context.setLastError(ex);
-				operation.fail(context);
-				if (!root) throw new MonadicOperationException(ex, restart);
 			}
-			// тут мы оказываемся только если мы корневой контекст и возникла ошибка операции
-			cancel(context);
+			operation.fail(context);
+			// откатываться некуда - ошибку разбирает корневая операция
+			if (savepoint == null)
+				throw new MonadicOperationException(context.getLastError(), restart);
+			if (context.getSession().getTransaction().getRollbackOnly())
+				throw new MonadicOperationException(context.getLastError(), true);
+			savepoint.rollback();
 			attempt += 1;
-			restart = restart && attempt < retries;
-			if (!restart) {
-				final Exception ex = context.getLastError();
-				if (ex instanceof HerbstException)
-					throw (HerbstException) ex;
-				else
-					throw new HerbstException(ex, "#persistence-error", "reason", ex != null ? ex.getMessage() : "Unknown error");
+			if (!restart || attempt >= retries || !retryBudget.tryAcquire()) throw failure(context);
+			if (metrics != null) metrics.recordRetry(context.getLastError());
+			delay = getRetryPolicy().delay(attempt, delay);
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException ignored) {}
+		}
+	}
+
+	/**
+	 * Выполняет вложенную операцию в точке сохранения, см. {@link #executeSavepoint(Monad, int)}.
+	 *
+	 * @param operation Выполняемая операция.
+	 * @throws HerbstException
+	 *          Если при выполнении операции возникли ошибки.
+	 */
+	public void executeSavepoint(final Monad operation) throws HerbstException {
+		executeSavepoint(operation, DEFAULT_RETRIES);
+	}
+
+	/**
+	 * Выполняет операцию в сессии без состояния ({@link StatelessSession}) в транзакции. Объекты не
+	 * накапливаются в сессии, поэтому операция может обработать произвольное количество строк
+	 * в постоянной памяти. Перезапуск выполняется по тем же правилам, что и для {@link Monad}.
+	 *
+	 * @param operation Выполняемая операция.
+	 * @param retries   Максимальное количество попыток.
+	 * @throws HerbstException
+	 *          Если при выполнении операции возникли ошибки.
+	 */
+	public void executeStateless(final StatelessMonad operation, int retries) throws HerbstException {
+		if (metrics == null) {
+			performStateless(operation, retries);
+			return;
+		}
+		final long started = System.nanoTime();
+		try {
+			performStateless(operation, retries);
+		} finally {
+			metrics.recordOperation(operation.getClass(), System.nanoTime() - started);
+		}
+	}
+
+	/**
+	 * Выполняет попытки операции без состояния, пока она не выполнится или не исчерпаются попытки.
+	 */
+	private void performStateless(final StatelessMonad operation, int retries) throws HerbstException {
+		final StatelessContext context = new StatelessContext();
+		int attempt = 0;
+		long delay = 0;
+		for (;;) {
+			boolean restart;
+			final StatelessSession sx = sessionFactory.openStatelessSession();
+			context.activate(sx, sessionFactory);
+			try {
+				final Transaction tx = sx.beginTransaction();
+				operation.action(context);
+				tx.commit();
+				context.committed();
+				context.deactivate();
+				sx.close();
+				retryBudget.success();
+				operation.success(context);
+				return;
+			} catch (HibernateException ex) {
+				staleStateFailure(ex);
+				restart = true;
+				context.setLastError(ex);
+			} catch (PersistenceException ex) {
+				staleStateFailure(ex);
+				restart = true;
+				context.setLastError(ex);
+			} catch (Exception ex) {
+				restart = false;
+				context.setLastError(ex);
 			}
-			// подождем и перезапустим
+			operation.fail(context);
+			context.deactivate();
+			try {
+				final Transaction tx = sx.getTransaction();
+				if (tx != null && tx.isActive()) tx.rollback();
+				sx.close();
+			} catch (Exception ignored) {}
+			attempt += 1;
+			if (!shouldRestart(restart ? Outcome.RESTART : Outcome.FAILURE, attempt, retries, context.getLastError()))
+				throw failure(context.getLastError());
 			context.restarted();
+			delay = getRetryPolicy().delay(attempt, delay);
 			try {
-				Thread.sleep(retryTimeout*attempt);
+				Thread.sleep(delay);
 			} catch (InterruptedException ignored) {}
-		} while (restart);
+		}
+	}
+
+	/**
+	 * Асинхронная реализация операции с данными. Каждая попытка выполняется в пуле {@link #getExecutor()}
+	 * в собственном корневом контексте, а перезапуск не усыпляет поток, а планируется в {@link #getScheduler()}
+	 * по политике ожидания.
+	 *
+	 * @param transactional Должна ли операция использовать транзакцию.
+	 * @param operation     Выполняемая операция.
+	 * @param retries       Максимальное количество попыток.
+	 * @return Результат операции; при ошибке завершается исключением {@link HerbstException}.
+	 */
+	public CompletableFuture<Void> executeAsync(final boolean transactional, final Monad operation, final int retries) {
+		return executeAsync(transactional, false, operation, retries);
+	}
+
+	/**
+	 * Асинхронная реализация операции с данными.
+	 *
+	 * @param transactional Должна ли операция использовать транзакцию.
+	 * @param readOnly      Выполняется ли операция только для чтения.
+	 * @param operation     Выполняемая операция.
+	 * @param retries       Максимальное количество попыток.
+	 * @return Результат операции; при ошибке завершается исключением {@link HerbstException}.
+	 */
+	public CompletableFuture<Void> executeAsync(final boolean transactional, final boolean readOnly, final Monad operation, final int retries) {
+		final CompletableFuture<Void> future = new CompletableFuture<Void>();
+		if (metrics != null) {
+			final long started = System.nanoTime();
+			future.whenComplete(new BiConsumer<Void, Throwable>() {
+				@Override
+				public void accept(Void result, Throwable error) {
+					metrics.recordOperation(operation.getClass(), System.nanoTime() - started);
+				}
+			});
+		}
+		final MonadicContext context = new MonadicContext();
+		// подтверждение в пуле должно направить на основную базу чтения вызывающего потока
+		if (readYourWritesWindow > 0) context.setCommitMark(lastCommits.get());
+		submit(transactional, readOnly, operation, context, retries, 1, 0, future);
+		return future;
+	}
+
+	/**
+	 * Отправляет очередную попытку асинхронной операции в пул выполнения.
+	 */
+	private void submit(final boolean transactional, final boolean readOnly, final Monad operation, final MonadicContext context,
+						final int retries, final int attempt, final long delay, final CompletableFuture<Void> future) {
+		final Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				final MonadicContext previous = contexts.get();
+				final Outcome outcome;
+				contexts.set(context);
+				try {
+					outcome = perform(transactional, readOnly, operation, context, true);
+				} catch (Throwable ex) {
+					future.completeExceptionally(ex);
+					return;
+				} finally {
+					contexts.set(previous);
+				}
+				if (outcome == Outcome.SUCCESS) {
+					future.complete(null);
+				} else if (!shouldRestart(outcome, attempt, retries, context.getLastError())) {
+					future.completeExceptionally(failure(context));
+				} else {
+					context.restarted();
+					final long next = getRetryPolicy().delay(attempt, delay);
+					try {
+						getScheduler().schedule(new Runnable() {
+							@Override
+							public void run() {
+								submit(transactional, readOnly, operation, context, retries, attempt + 1, next, future);
+							}
+						}, next, TimeUnit.MILLISECONDS);
+					} catch (RejectedExecutionException ex) {
+						future.completeExceptionally(ex);
+					}
+				}
+			}
+		};
+		try {
+			getExecutor().execute(task);
+		} catch (RejectedExecutionException ex) {
+			future.completeExceptionally(ex);
+		}
 	}
 
 	/**
@@ -233,6 +945,71 @@ public class Database {
 		execute(false, operation, DEFAULT_RETRIES);
 	}
 
+	/**
+	 * Операция только для чтения: сущности загружаются в режиме read-only, изменения не сбрасываются в БД,
+	 * транзакция не открывается, а JDBC соединение помечается как read-only.
+	 *
+	 * @param operation Выполняемая операция.
+	 * @throws HerbstException
+	 *          Если при выполнении операции возникли ошибки.
+	 */
+	public void executeReadOnly(final Monad operation) throws HerbstException {
+		execute(false, true, operation, DEFAULT_RETRIES);
+	}
+
+	/**
+	 * Операция с данными в сессии без состояния, для массовой обработки.
+	 *
+	 * @param operation Выполняемая операция.
+	 * @throws HerbstException
+	 *          Если при выполнении операции возникли ошибки.
+	 */
+	public void executeStateless(final StatelessMonad operation) throws HerbstException {
+		executeStateless(operation, DEFAULT_RETRIES);
+	}
+
+	/**
+	 * Асинхронная операция с данными, которая может быть выполнена в одной транзакции с другими
+	 * операциями, см. {@link GroupCommitExecutor}. Если групповое подтверждение не настроено,
+	 * равносильна {@link #executeAsync(Monad)}.
+	 *
+	 * @param operation Выполняемая операция.
+	 * @return Результат операции.
+	 */
+	public CompletableFuture<Void> executeGrouped(final Monad operation) {
+		return groupCommit != null ? groupCommit.submit(operation) : executeAsync(operation);
+	}
+
+	/**
+	 * Асинхронная операция с данными.
+	 *
+	 * @param operation Выполняемая операция.
+	 * @return Результат операции.
+	 */
+	public CompletableFuture<Void> executeAsync(final Monad operation) {
+		return executeAsync(true, operation, DEFAULT_RETRIES);
+	}
+
+	/**
+	 * Асинхронная операция с данными без создания транзакции.
+	 *
+	 * @param operation Выполняемая операция.
+	 * @return Результат операции.
+	 */
+	public CompletableFuture<Void> executeNonTxAsync(final Monad operation) {
+		return executeAsync(false, operation, DEFAULT_RETRIES);
+	}
+
+	/**
+	 * Асинхронная операция только для чтения.
+	 *
+	 * @param operation Выполняемая операция.
+	 * @return Результат операции.
+	 */
+	public CompletableFuture<Void> executeReadOnlyAsync(final Monad operation) {
+		return executeAsync(false, true, operation, DEFAULT_RETRIES);
+	}
+
 	/**
 	 * Выполняет произвольный запрос обновления HQL DML.
 	 * <p/>
@@ -282,11 +1059,249 @@ public class Database {
 		return (T) tuple[0];
 	}
 
+	/**
+	 * Устанавливает политику ожидания между попытками выполнения операции.
+	 *
+	 * @param value Политика ожидания.
+	 */
+	public void setRetryPolicy(final RetryPolicy value) {
+		this.retryPolicy = value;
+	}
+
+	/**
+	 * Возвращает политику ожидания между попытками. Если политика не задана, шаг линейной политики
+	 * берется из {@link #retryTimeout} в момент обращения, поэтому подклассы могут менять его и после
+	 * создания базы.
+	 *
+	 * @return Политика ожидания.
+	 */
+	public RetryPolicy getRetryPolicy() {
+		final RetryPolicy policy = retryPolicy;
+		return policy != null ? policy : new LinearRetryPolicy(retryTimeout);
+	}
+
+	/**
+	 * Возвращает бюджет повторных попыток со счетчиками разрешенных и отклоненных повторов.
+	 *
+	 * @return Бюджет повторных попыток.
+	 */
+	public RetryBudget getRetryBudget() {
+		return retryBudget;
+	}
+
+	/**
+	 * Устанавливает бюджет повторных попыток.
+	 *
+	 * @param value Бюджет повторных попыток.
+	 */
+	public void setRetryBudget(final RetryBudget value) {
+		this.retryBudget = value;
+	}
+
+	/**
+	 * Устанавливает реплики, на которые направляются операции без транзакции и операции только для чтения.
+	 *
+	 * @param value Пул реплик.
+	 */
+	public void setReplicas(final ReplicaPool value) {
+		this.replicas = value;
+	}
+
+	/**
+	 * Устанавливает окно read-your-writes: после подтверждения транзакции операции чтения того же потока
+	 * в течение указанного времени выполняются на основной базе.
+	 *
+	 * @param millis Окно в миллисекундах, 0 - не используется.
+	 */
+	public void setReadYourWritesWindow(long millis) {
+		this.readYourWritesWindow = millis;
+	}
+
+	/**
+	 * Устанавливает менеджер горячих ключей.
+	 *
+	 * @param value Менеджер горячих ключей или <code>null</code>, чтобы не упорядочивать операции.
+	 */
+	public void setConflictManager(final ConflictManager value) {
+		this.conflicts = value;
+	}
+
+	/**
+	 * Устанавливает политику перехода к пессимистичной блокировке после повторных конфликтов.
+	 *
+	 * @param value Политика или <code>null</code>, чтобы всегда использовать только оптимистичную блокировку.
+	 */
+	public void setEscalationPolicy(final EscalationPolicy value) {
+		this.escalation = value;
+	}
+
+	/**
+	 * Устанавливает групповое подтверждение для {@link #executeGrouped(Monad)}.
+	 *
+	 * @param value Групповое подтверждение или <code>null</code>.
+	 */
+	public void setGroupCommit(final GroupCommitExecutor value) {
+		this.groupCommit = value;
+	}
+
+	/**
+	 * Устанавливает асинхронное выполнение действий после подтверждения ({@link SuccessCommitAction}).
+	 *
+	 * @param value Выполнение действий или <code>null</code>, чтобы выполнять их в потоке операции после подтверждения.
+	 */
+	public void setCommitActionDispatcher(final CommitActionDispatcher value) {
+		this.commitActions = value;
+	}
+
+	/**
+	 * Возвращает метрики выполнения операций.
+	 *
+	 * @return Метрики или <code>null</code>, если метрики не собираются.
+	 */
+	public DatabaseMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Устанавливает метрики выполнения операций.
+	 *
+	 * @param value Метрики или <code>null</code>, чтобы не собирать метрики.
+	 */
+	public void setMetrics(final DatabaseMetrics value) {
+		this.metrics = value;
+	}
+
+	/**
+	 * Возвращает пул выполнения асинхронных операций. Если пул не задан, создается пул потоков-демонов.
+	 *
+	 * @return Пул выполнения.
+	 */
+	public synchronized Executor getExecutor() {
+		if (executor == null) {
+			executor = Executors.newCachedThreadPool(new NamedThreadFactory("ndao-async"));
+			ownExecutor = true;
+		}
+		return executor;
+	}
+
+	/**
+	 * Устанавливает пул выполнения асинхронных операций, например, пул виртуальных потоков.
+	 *
+	 * @param value Пул выполнения.
+	 */
+	public synchronized void setExecutor(final Executor value) {
+		this.executor = value;
+		this.ownExecutor = false;
+	}
+
+	/**
+	 * Возвращает планировщик перезапусков асинхронных операций. Если планировщик не задан,
+	 * создается однопоточный планировщик.
+	 *
+	 * @return Планировщик.
+	 */
+	public synchronized ScheduledExecutorService getScheduler() {
+		if (scheduler == null) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("ndao-retry"));
+			ownScheduler = true;
+		}
+		return scheduler;
+	}
+
+	/**
+	 * Устанавливает планировщик перезапусков асинхронных операций.
+	 *
+	 * @param value Планировщик.
+	 */
+	public synchronized void setScheduler(final ScheduledExecutorService value) {
+		this.scheduler = value;
+		this.ownScheduler = false;
+	}
+
+	/**
+	 * Выполняет именованный запрос обновления из реестра запросов.
+	 *
+	 * @param cx     Контекст операции.
+	 * @param name   Имя запроса.
+	 * @param params Параметры запроса.
+	 * @return Количество сущностей, измененных или удаленных в результате выполнения запроса.
+	 * @throws PersistenceException     Если возникла ошибка.
+	 * @throws IllegalArgumentException Если запрос не объявлен или параметры не совпадают с объявленными.
+	 */
+	public int namedUpdate(final MonadicContext cx, final String name, final QueryParams params) throws PersistenceException {
+		return queries.create(cx.getSession(), name, params).executeUpdate();
+	}
+
+	/**
+	 * Выполняет именованный запрос получения данных из реестра запросов.
+	 *
+	 * @param cx     Контекст операции.
+	 * @param name   Имя запроса.
+	 * @param params Параметры запроса.
+	 * @return Результат запроса.
+	 * @throws PersistenceException     Если возникла ошибка.
+	 * @throws IllegalArgumentException Если запрос не объявлен или параметры не совпадают с объявленными.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> List<T> namedQuery(final MonadicContext cx, final String name, final QueryParams params) throws PersistenceException {
+		return (List<T>) queries.create(cx.getSession(), name, params).list();
+	}
+
+	/**
+	 * Выполняет именованный запрос получения единственного значения из реестра запросов.
+	 *
+	 * @param cx     Контекст операции.
+	 * @param name   Имя запроса.
+	 * @param params Параметры запроса.
+	 * @return Значение или <code>null</code>, если запрос ничего не вернул.
+	 * @throws PersistenceException     Если возникла ошибка.
+	 * @throws IllegalArgumentException Если запрос не объявлен или параметры не совпадают с объявленными.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T namedScalar(final MonadicContext cx, final String name, final QueryParams params) throws PersistenceException {
+		return (T) queries.create(cx.getSession(), name, params).uniqueResult();
+	}
+
+	/**
+	 * Устанавливает реестр именованных запросов, проверяя и компилируя все его запросы.
+	 *
+	 * @param value Реестр запросов.
+	 * @throws HibernateException Если запрос содержит ошибку.
+	 */
+	public void setQueries(final QueryRegistry value) throws HibernateException {
+		value.compile(sessionFactory);
+		this.queries = value;
+	}
+
+	/**
+	 * Открывает однонаправленный курсор по результату произвольного запроса HQL.
+	 *
+	 * @param cx        Контекст операции.
+	 * @param query     Запрос.
+	 * @param params    Именованные параметры запроса или <code>null</code>.
+	 * @param fetchSize Размер порции чтения; через столько же строк выданные объекты отсоединяются от сессии.
+	 * @return Курсор, который нужно закрыть.
+	 * @throws PersistenceException  Если возникла ошибка.
+	 * @throws IllegalStateException Если метод вызывается вне монадического контекста.
+	 * @see ScrollIterator
+	 */
+	public <T> ScrollIterator<T> scroll(final MonadicContext cx, final String query, final Map<String, ?> params, int fetchSize) throws PersistenceException {
+		return ScrollIterator.open(cx.getSession(), query, params, fetchSize);
+	}
+
 	public Cache getCache() {
 		return sessionFactory.getCache();
 	}
 
 	public void destroy(){
+		if (groupCommit != null) groupCommit.shutdown(TimeUnit.SECONDS.toMillis(30));
+		if (commitActions != null) commitActions.shutdown(TimeUnit.SECONDS.toMillis(30));
+		synchronized (this) {
+			if (ownExecutor) ((ExecutorService) executor).shutdown();
+			if (ownScheduler) scheduler.shutdown();
+		}
+		if (metrics != null) metrics.unregister();
+		if (replicas != null) replicas.close();
 		sessionFactory.close();
 	}
 }
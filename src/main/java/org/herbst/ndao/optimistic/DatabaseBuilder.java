@@ -1,24 +1,76 @@
 package org.herbst.ndao.optimistic;
 
+import org.herbst.ndao.metrics.DatabaseMetrics;
 import org.hibernate.HibernateException;
+import org.hibernate.SessionFactory;
+import org.hibernate.boot.MetadataSources;
 import org.hibernate.cfg.Configuration;
 
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
 
 /**
  * Created by kris on 23.08.16.
  */
 public class DatabaseBuilder {
 
+    /**
+     * Настройки управления схемой, которые не переносятся на реплики.
+     */
+    private static final String[] SCHEMA_PROPERTIES = {
+            "hibernate.hbm2ddl.auto",
+            "hbm2ddl.auto",
+            "hibernate.hbm2ddl.import_files",
+            "javax.persistence.schema-generation.database.action",
+            "javax.persistence.schema-generation.scripts.action",
+            "javax.persistence.sql-load-script-source"
+    };
+
     private Configuration configuration;
 
+    /**
+     * Источники отображений основной базы; реплики строятся по ним же, включая отображения,
+     * добавленные через {@link #getHibernateConfiguration()}.
+     */
+    private MetadataSources metadataSources;
+
     private String driverClass;
 
     private String resourceStr;
     private URL resourceURL;
 
+    private RetryPolicy retryPolicy;
+    private RetryBudget retryBudget;
+
+    private Executor executor;
+    private ScheduledExecutorService scheduler;
+
+    private QueryRegistry queries = new QueryRegistry();
+
+    private ConflictManager conflictManager;
+
+    private EscalationPolicy escalationPolicy;
+
+    private long groupCommitWindow;
+    private int groupCommitSize;
+    private int groupCommitters;
+
+    private int commitActionLanes;
+    private int commitActionCapacity;
+
+    private boolean metrics;
+    private String metricsName;
+
+    private List<String[]> replicas = new ArrayList<String[]>();
+    private ReplicaPool.Balancing replicaBalancing = ReplicaPool.Balancing.ROUND_ROBIN;
+    private long readYourWritesWindow;
+
     public DatabaseBuilder() {
-        configuration = new Configuration();
+        metadataSources = new MetadataSources();
+        configuration = new Configuration(metadataSources);
     }
 
     public DatabaseBuilder withDriverClass(String driverClass){
@@ -48,6 +100,28 @@ public class DatabaseBuilder {
         return this;
     }
 
+    /**
+     * Задает номер шарда, который {@link PooledIdGenerator} встраивает в идентификаторы операций, выполняемых
+     * не через {@link org.herbst.ndao.shard.ShardedDatabase}; операции, направленные на шард, получают
+     * идентификаторы своего шарда.
+     */
+    public DatabaseBuilder withShard(int shard){
+        configuration.setProperty(PooledIdGenerator.SHARD, String.valueOf(shard));
+        return this;
+    }
+
+    /**
+     * Включает JDBC батчинг: размер пачки, упорядочивание вставок и обновлений и батчинг
+     * версионируемых сущностей.
+     */
+    public DatabaseBuilder withJdbcBatchSize(int batchSize){
+        configuration.setProperty("hibernate.jdbc.batch_size", String.valueOf(batchSize));
+        configuration.setProperty("hibernate.order_inserts", "true");
+        configuration.setProperty("hibernate.order_updates", "true");
+        configuration.setProperty("hibernate.jdbc.batch_versioned_data", "true");
+        return this;
+    }
+
     public DatabaseBuilder withAnnotatedClass(Class annotatedClass){
         configuration.addAnnotatedClass(annotatedClass);
         return this;
@@ -63,6 +137,123 @@ public class DatabaseBuilder {
         return this;
     }
 
+    public DatabaseBuilder withRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy=retryPolicy;
+        return this;
+    }
+
+    public DatabaseBuilder withRetryBudget(RetryBudget retryBudget) {
+        this.retryBudget=retryBudget;
+        return this;
+    }
+
+    public DatabaseBuilder withExecutor(Executor executor) {
+        this.executor=executor;
+        return this;
+    }
+
+    public DatabaseBuilder withScheduler(ScheduledExecutorService scheduler) {
+        this.scheduler=scheduler;
+        return this;
+    }
+
+    /**
+     * Включает упорядочивание операций над горячими ключами, см. {@link ConflictManager}.
+     */
+    public DatabaseBuilder withConflictManager(ConflictManager conflictManager){
+        this.conflictManager=conflictManager;
+        return this;
+    }
+
+    /**
+     * Включает переход к пессимистичной блокировке после повторных конфликтов, см. {@link EscalationPolicy}.
+     */
+    public DatabaseBuilder withEscalationPolicy(EscalationPolicy escalationPolicy){
+        this.escalationPolicy=escalationPolicy;
+        return this;
+    }
+
+    /**
+     * Включает групповое подтверждение для {@link Database#executeGrouped(Monad)}, см. {@link GroupCommitExecutor}.
+     */
+    public DatabaseBuilder withGroupCommit(long windowMillis, int maxSize, int committers){
+        this.groupCommitWindow=windowMillis;
+        this.groupCommitSize=maxSize;
+        this.groupCommitters=committers;
+        return this;
+    }
+
+    /**
+     * Включает асинхронное выполнение действий после подтверждения, см. {@link CommitActionDispatcher}.
+     */
+    public DatabaseBuilder withAsyncCommitActions(int lanes, int capacity){
+        this.commitActionLanes=lanes;
+        this.commitActionCapacity=capacity;
+        return this;
+    }
+
+    /**
+     * Включает сбор метрик выполнения операций, см. {@link Database#getMetrics()}.
+     */
+    public DatabaseBuilder withMetrics(){
+        this.metrics=true;
+        return this;
+    }
+
+    /**
+     * Включает сбор метрик выполнения операций и публикует их через JMX под указанным именем.
+     */
+    public DatabaseBuilder withMetrics(String jmxName){
+        this.metrics=true;
+        this.metricsName=jmxName;
+        return this;
+    }
+
+    /**
+     * Объявляет именованный запрос; запрос проверяется и компилируется в {@link #build()}.
+     */
+    public DatabaseBuilder withQuery(String name, String hql){
+        queries.register(name, hql);
+        return this;
+    }
+
+    /**
+     * Объявляет именованный запрос, результат которого кешируется в указанном регионе кеша запросов.
+     */
+    public DatabaseBuilder withCachedQuery(String name, String hql, String cacheRegion){
+        queries.register(name, hql, cacheRegion);
+        return this;
+    }
+
+    /**
+     * Добавляет реплику с теми же учетными данными, что и у основной базы.
+     */
+    public DatabaseBuilder withReplica(String url){
+        return withReplica(url, null, null);
+    }
+
+    /**
+     * Добавляет реплику. Реплика настраивается так же, как основная база, кроме адреса и учетных данных.
+     */
+    public DatabaseBuilder withReplica(String url, String login, String password){
+        replicas.add(new String[]{url, login, password});
+        return this;
+    }
+
+    public DatabaseBuilder withReplicaBalancing(ReplicaPool.Balancing balancing){
+        this.replicaBalancing=balancing;
+        return this;
+    }
+
+    /**
+     * Включает read-your-writes: после подтверждения транзакции чтения потока идут на основную базу
+     * в течение указанного окна.
+     */
+    public DatabaseBuilder withReadYourWrites(long windowMillis){
+        this.readYourWritesWindow=windowMillis;
+        return this;
+    }
+
     public Configuration getHibernateConfiguration() {
         return configuration;
     }
@@ -74,6 +265,72 @@ public class DatabaseBuilder {
         }
 
         //Конфигурируем
+        configure(configuration);
+
+        Database database = new Database(configuration);
+        if (retryPolicy!=null) {
+            database.setRetryPolicy(retryPolicy);
+        }
+        if (retryBudget!=null) {
+            database.setRetryBudget(retryBudget);
+        }
+        if (executor!=null) {
+            database.setExecutor(executor);
+        }
+        if (scheduler!=null) {
+            database.setScheduler(scheduler);
+        }
+        if (conflictManager!=null) {
+            database.setConflictManager(conflictManager);
+        }
+        if (escalationPolicy!=null) {
+            database.setEscalationPolicy(escalationPolicy);
+        }
+        if (groupCommitSize>0) {
+            database.setGroupCommit(new GroupCommitExecutor(database, groupCommitWindow, groupCommitSize, groupCommitters));
+        }
+        if (commitActionLanes>0) {
+            database.setCommitActionDispatcher(new CommitActionDispatcher(commitActionLanes, commitActionCapacity));
+        }
+        if (metrics) {
+            DatabaseMetrics databaseMetrics = new DatabaseMetrics();
+            if (metricsName!=null) {
+                databaseMetrics.register(metricsName);
+            }
+            database.setMetrics(databaseMetrics);
+        }
+        if (!queries.isEmpty()) {
+            try {
+                database.setQueries(queries);
+            } catch (HibernateException e) {
+                database.destroy();
+                throw e;
+            }
+        }
+        if (!replicas.isEmpty()) {
+            List<SessionFactory> factories = new ArrayList<SessionFactory>();
+            try {
+                for (String[] replica: replicas) {
+                    factories.add(Database.buildSessionFactory(createReplicaConfiguration(replica)));
+                }
+                database.setReplicas(new ReplicaPool(factories, replicaBalancing));
+            } catch (RuntimeException e) {
+                //Закрываем уже созданные фабрики реплик и основную базу, чтобы не оставить открытые пулы
+                for (SessionFactory factory: factories) {
+                    try {
+                        factory.close();
+                    } catch (RuntimeException ignored) {
+                    }
+                }
+                database.destroy();
+                throw e;
+            }
+            database.setReadYourWritesWindow(readYourWritesWindow);
+        }
+        return database;
+    }
+
+    private void configure(Configuration configuration) {
         if (resourceURL!=null) {
             configuration.configure(resourceURL);
         } else if (resourceStr!=null) {
@@ -81,7 +338,21 @@ public class DatabaseBuilder {
         } else {
             configuration.configure();
         }
+    }
 
-        return new Database(configuration);
+    private Configuration createReplicaConfiguration(String[] replica) {
+        Configuration replicaConfiguration = new Configuration(metadataSources);
+        configure(replicaConfiguration);
+        replicaConfiguration.addProperties(configuration.getProperties());
+        //Реплики только для чтения: схемой управляет основная база
+        for (String property: SCHEMA_PROPERTIES) {
+            replicaConfiguration.getProperties().remove(property);
+        }
+        replicaConfiguration.setProperty("hibernate.connection.url", replica[0]);
+        if (replica[1]!=null) {
+            replicaConfiguration.setProperty("hibernate.connection.username", replica[1]);
+            replicaConfiguration.setProperty("hibernate.connection.password", replica[2]);
+        }
+        return replicaConfiguration;
     }
 }
@@ -30,6 +30,11 @@ public abstract class Entity<T, ID extends Serializable> {
 	 */
 	protected String countAllQuery;
 
+	/**
+	 * Подсчет всех объектов управляемого типа.
+	 */
+	protected EntityCounter counter;
+
 	/**
 	 * Конструктор.
 	 */
@@ -37,6 +42,7 @@ public abstract class Entity<T, ID extends Serializable> {
 		this.type = (Class<?>) ((ParameterizedType) getClass().getGenericSuperclass()).getActualTypeArguments()[0];
 		this.findAllQuery = "from " + type.getSimpleName();
 		this.countAllQuery = "select count (*) from " + type.getSimpleName();
+		this.counter = new EntityCounter(type, countAllQuery);
 	}
 
 	/**
@@ -78,7 +84,8 @@ public abstract class Entity<T, ID extends Serializable> {
 	}
 
 	/**
-	 * Выполняет подсчет всех объектов управляемого типа.
+	 * Выполняет подсчет всех объектов управляемого типа по выбранной стратегии подсчета,
+	 * см. {@link #setCountStrategy(CountStrategy, long)}.
 	 *
 	 * @param sx Исходная сессия.
 	 * @return Количество объектов.
@@ -86,7 +93,17 @@ public abstract class Entity<T, ID extends Serializable> {
 	 */
 	@SuppressWarnings("unchecked")
 	public int countAll(final Session sx) throws PersistenceException {
-		return ((Number) sx.createQuery(countAllQuery).uniqueResult()).intValue();
+		return (int) counter.count(sx);
+	}
+
+	/**
+	 * Устанавливает стратегию подсчета всех объектов управляемого типа.
+	 *
+	 * @param strategy Стратегия подсчета.
+	 * @param ttl      Срок жизни кешированного значения в миллисекундах для {@link CountStrategy#CACHED}; 0 - без срока.
+	 */
+	public void setCountStrategy(final CountStrategy strategy, long ttl) {
+		counter.setStrategy(strategy, ttl);
 	}
 
 	/**
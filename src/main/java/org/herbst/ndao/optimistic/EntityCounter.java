@@ -0,0 +1,152 @@
+package org.herbst.ndao.optimistic;
+
+import org.herbst.ndao.dialect.ApproximateCountSupport;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Подсчет всех объектов типа по выбранной {@link CountStrategy}. Общий для {@link Persister}
+ * и {@link Entity}.
+ * <p/>
+ * Для {@link CountStrategy#CACHED} значение кешируется отдельно для каждой фабрики сессий:
+ * один и тот же {@link Persister} может работать с несколькими базами (шардами). В кеш попадают
+ * только значения, полученные в сессиях только для чтения или вне транзакции: пишущая транзакция
+ * видит собственные неподтвержденные изменения, которых нет у остальных.
+ */
+public class EntityCounter {
+
+	/**
+	 * Закешированное значение количества.
+	 */
+	private static class Snapshot {
+
+		private final long value;
+
+		private final long modifications;
+
+		private final long time;
+
+		private Snapshot(long value, long modifications, long time) {
+			this.value = value;
+			this.modifications = modifications;
+			this.time = time;
+		}
+
+	}
+
+	/**
+	 * Управляемый тип.
+	 */
+	private final Class<?> type;
+
+	/**
+	 * Строка запроса точного подсчета.
+	 */
+	private final String countAllQuery;
+
+	/**
+	 * Стратегия подсчета.
+	 */
+	private volatile CountStrategy strategy = CountStrategy.EXACT;
+
+	/**
+	 * Срок жизни кешированного значения в миллисекундах; 0 - без срока.
+	 */
+	private volatile long ttl;
+
+	/**
+	 * Закешированные значения по фабрикам сессий.
+	 */
+	private final Map<SessionFactory, Snapshot> cached =
+			Collections.synchronizedMap(new WeakHashMap<SessionFactory, Snapshot>());
+
+	/**
+	 * Конструктор.
+	 *
+	 * @param type          Управляемый тип.
+	 * @param countAllQuery Строка запроса точного подсчета.
+	 */
+	public EntityCounter(final Class<?> type, final String countAllQuery) {
+		this.type = type;
+		this.countAllQuery = countAllQuery;
+	}
+
+	/**
+	 * Устанавливает стратегию подсчета.
+	 *
+	 * @param strategy Стратегия подсчета.
+	 * @param ttl      Срок жизни кешированного значения в миллисекундах для {@link CountStrategy#CACHED}; 0 - без срока.
+	 */
+	public void setStrategy(final CountStrategy strategy, long ttl) {
+		this.strategy = strategy;
+		this.ttl = ttl;
+		this.cached.clear();
+	}
+
+	/**
+	 * Возвращает стратегию подсчета.
+	 *
+	 * @return Стратегия подсчета.
+	 */
+	public CountStrategy getStrategy() {
+		return strategy;
+	}
+
+	/**
+	 * Выполняет подсчет.
+	 *
+	 * @param sx Сессия.
+	 * @return Количество объектов.
+	 */
+	public long count(final Session sx) {
+		final CountStrategy strategy = this.strategy;
+		if (strategy == CountStrategy.APPROXIMATE) {
+			final long estimate = estimate(sx);
+			if (estimate >= 0) return estimate;
+		} else if (strategy == CountStrategy.CACHED) {
+			final long now = System.currentTimeMillis();
+			// номер изменения читаем до запроса, чтобы изменение во время запроса сбросило кеш
+			final long modifications = EntityModifications.version(type.getName());
+			final SessionFactory factory = sx.getSessionFactory();
+			final Snapshot snapshot = cached.get(factory);
+			if (snapshot != null && snapshot.modifications == modifications && (ttl <= 0 || now - snapshot.time < ttl))
+				return snapshot.value;
+			final long value = exact(sx);
+			if (sx.isDefaultReadOnly() || !sx.getTransaction().isActive())
+				cached.put(factory, new Snapshot(value, modifications, now));
+			return value;
+		}
+		return exact(sx);
+	}
+
+	/**
+	 * Выполняет точный подсчет.
+	 */
+	private long exact(final Session sx) {
+		return ((Number) sx.createQuery(countAllQuery).uniqueResult()).longValue();
+	}
+
+	/**
+	 * Оценивает количество по статистике планировщика.
+	 *
+	 * @return Оценка или -1, если диалект не умеет оценивать или статистики нет.
+	 */
+	private long estimate(final Session sx) {
+		final SessionFactoryImplementor factory = (SessionFactoryImplementor) sx.getSessionFactory();
+		final Dialect dialect = factory.getDialect();
+		if (!(dialect instanceof ApproximateCountSupport)) return -1;
+		final String table = ((AbstractEntityPersister) factory.getClassMetadata(type)).getTableName();
+		final Number estimate = (Number) sx.createNativeQuery(((ApproximateCountSupport) dialect).getApproximateCountString())
+				.setParameter("table", table)
+				.uniqueResult();
+		return estimate != null ? estimate.longValue() : -1;
+	}
+
+}
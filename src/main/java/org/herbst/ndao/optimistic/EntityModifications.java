@@ -0,0 +1,93 @@
+package org.herbst.ndao.optimistic;
+
+import org.hibernate.event.spi.PostCommitDeleteEventListener;
+import org.hibernate.event.spi.PostCommitInsertEventListener;
+import org.hibernate.event.spi.PostDeleteEvent;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.persister.entity.EntityPersister;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Счетчики изменений состава сущностей: номер изменения сущности увеличивается после подтверждения
+ * транзакции, вставившей или удалившей объект этого типа. По номеру изменения кешированные
+ * значения, зависящие от количества объектов, определяют, что устарели.
+ * <p/>
+ * Экземпляр регистрируется {@link Database} как слушатель событий Hibernate. Изменения в обход
+ * событий (массовые HQL запросы, сессии без состояния вне {@link Persister}) нужно отмечать
+ * вызовом {@link #touch(String)}.
+ */
+public class EntityModifications implements PostCommitInsertEventListener, PostCommitDeleteEventListener {
+
+	/**
+	 * Номера изменений по именам сущностей.
+	 */
+	private final static ConcurrentMap<String, AtomicLong> versions = new ConcurrentHashMap<String, AtomicLong>();
+
+	/**
+	 * Возвращает номер изменения сущности.
+	 *
+	 * @param entityName Имя сущности.
+	 * @return Номер изменения.
+	 */
+	public static long version(final String entityName) {
+		final AtomicLong version = versions.get(entityName);
+		return version != null ? version.get() : 0;
+	}
+
+	/**
+	 * Отмечает изменение состава сущности.
+	 *
+	 * @param entityName Имя сущности.
+	 */
+	public static void touch(final String entityName) {
+		AtomicLong version = versions.get(entityName);
+		if (version == null) {
+			final AtomicLong created = new AtomicLong();
+			version = versions.putIfAbsent(entityName, created);
+			if (version == null) version = created;
+		}
+		version.incrementAndGet();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onPostInsert(final PostInsertEvent event) {
+		touch(event.getPersister().getEntityName());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onPostInsertCommitFailed(final PostInsertEvent event) {
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onPostDelete(final PostDeleteEvent event) {
+		touch(event.getPersister().getEntityName());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onPostDeleteCommitFailed(final PostDeleteEvent event) {
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean requiresPostCommitHanding(final EntityPersister persister) {
+		return true;
+	}
+
+}
@@ -0,0 +1,59 @@
+package org.herbst.ndao.optimistic;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Политика перехода от оптимистичной блокировки к пессимистичной. Если операция несколько раз подряд
+ * перезапускалась из-за конфликта версий одного и того же объекта, очередная попытка заранее блокирует
+ * этот объект запросом <code>SELECT ... FOR UPDATE</code> ({@link org.hibernate.LockMode#PESSIMISTIC_WRITE}),
+ * и конкуренты ждут ее завершения, вместо того чтобы снова получить конфликт. Порог задается количеством
+ * конфликтов, отдельно для каждой сущности или общим по умолчанию.
+ */
+public class EscalationPolicy {
+
+	/**
+	 * Пороги по именам сущностей.
+	 */
+	private final Map<String, Integer> thresholds = new ConcurrentHashMap<String, Integer>();
+
+	/**
+	 * Порог по умолчанию; 0 - не переходить к пессимистичной блокировке.
+	 */
+	private volatile int defaultThreshold;
+
+	/**
+	 * Устанавливает порог по умолчанию.
+	 *
+	 * @param conflicts Количество конфликтов, после которого операция блокирует объект; 0 - не блокировать.
+	 * @return Эта политика.
+	 */
+	public EscalationPolicy byDefault(int conflicts) {
+		this.defaultThreshold = conflicts;
+		return this;
+	}
+
+	/**
+	 * Устанавливает порог для сущности.
+	 *
+	 * @param type      Тип сущности.
+	 * @param conflicts Количество конфликтов, после которого операция блокирует объект; 0 - не блокировать.
+	 * @return Эта политика.
+	 */
+	public EscalationPolicy forEntity(final Class<?> type, int conflicts) {
+		thresholds.put(type.getName(), conflicts);
+		return this;
+	}
+
+	/**
+	 * Возвращает порог для сущности.
+	 *
+	 * @param entityName Имя сущности.
+	 * @return Количество конфликтов, после которого операция блокирует объект; 0 - не блокировать.
+	 */
+	public int getThreshold(final String entityName) {
+		final Integer threshold = thresholds.get(entityName);
+		return threshold != null ? threshold : defaultThreshold;
+	}
+
+}
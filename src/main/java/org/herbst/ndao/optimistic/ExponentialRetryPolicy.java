@@ -0,0 +1,45 @@
+package org.herbst.ndao.optimistic;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Экспоненциальная политика ожидания с декоррелированным джиттером: очередное ожидание выбирается
+ * случайно в интервале <code>[base, previous * 3]</code> и ограничивается сверху <code>cap</code>.
+ * Конкурирующие за одну и ту же запись потоки при этом просыпаются в разное время, а не все разом.
+ */
+public class ExponentialRetryPolicy implements RetryPolicy {
+
+	/**
+	 * Минимальное время ожидания в миллисекундах.
+	 */
+	private final long base;
+
+	/**
+	 * Максимальное время ожидания в миллисекундах.
+	 */
+	private final long cap;
+
+	/**
+	 * Конструктор.
+	 *
+	 * @param base Минимальное время ожидания в миллисекундах.
+	 * @param cap  Максимальное время ожидания в миллисекундах.
+	 */
+	public ExponentialRetryPolicy(long base, long cap) {
+		if (base <= 0 || cap < base)
+			throw new IllegalArgumentException("Invalid backoff bounds: base=" + base + ", cap=" + cap);
+		this.base = base;
+		this.cap = cap;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long delay(int attempt, long previousDelay) {
+		final long upper = Math.max(base, previousDelay * 3);
+		final long delay = base + ThreadLocalRandom.current().nextLong(upper - base + 1);
+		return Math.min(cap, delay);
+	}
+
+}
@@ -0,0 +1,233 @@
+package org.herbst.ndao.optimistic;
+
+import org.herbst.ndao.utils.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Групповое подтверждение: небольшие независимые операции, отправленные из разных потоков, собираются
+ * в группы и выполняются в одной сессии и одной транзакции, поэтому на группу приходится одно
+ * подтверждение вместо подтверждения на каждую операцию. Группа набирается, пока не истечет окно
+ * ожидания с момента поступления первой операции или не наберется максимальный размер.
+ * <p/>
+ * Если операция группы выбросила ошибку, она выполняется отдельно через {@link Database#execute(Monad)},
+ * а остальные операции выполняются новой группой. Если не удалось подтвердить транзакцию группы,
+ * все ее операции выполняются по отдельности. Поэтому операции должны быть независимы друг от друга
+ * и допускать повторное выполнение.
+ *
+ * @see Database#executeGrouped(Monad)
+ */
+public class GroupCommitExecutor {
+
+	private final static Logger log = LoggerFactory.getLogger(GroupCommitExecutor.class);
+
+	/**
+	 * Операция в очереди.
+	 */
+	private final static class Member {
+
+		private final Monad operation;
+
+		private final CompletableFuture<Void> future = new CompletableFuture<Void>();
+
+		Member(final Monad operation) {
+			this.operation = operation;
+		}
+
+	}
+
+	/**
+	 * База данных.
+	 */
+	private final Database database;
+
+	/**
+	 * Окно набора группы в миллисекундах.
+	 */
+	private final long window;
+
+	/**
+	 * Максимальный размер группы.
+	 */
+	private final int maxSize;
+
+	/**
+	 * Очередь операций.
+	 */
+	private final BlockingQueue<Member> queue = new LinkedBlockingQueue<Member>();
+
+	/**
+	 * Потоки, выполняющие группы.
+	 */
+	private final ExecutorService committers;
+
+	/**
+	 * Признак остановки.
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * Конструктор.
+	 *
+	 * @param database   База данных.
+	 * @param window     Окно набора группы в миллисекундах.
+	 * @param maxSize    Максимальный размер группы.
+	 * @param committers Количество потоков, параллельно выполняющих группы.
+	 */
+	public GroupCommitExecutor(final Database database, long window, int maxSize, int committers) {
+		if (maxSize <= 0 || committers <= 0)
+			throw new IllegalArgumentException("Group size and committer count must be positive");
+		this.database = database;
+		this.window = window;
+		this.maxSize = maxSize;
+		this.committers = Executors.newFixedThreadPool(committers, new NamedThreadFactory("ndao-group-commit"));
+		for (int i = 0; i < committers; ++i) {
+			this.committers.execute(new Runnable() {
+				@Override
+				public void run() {
+					loop();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Ставит операцию в очередь группового подтверждения.
+	 *
+	 * @param operation Выполняемая операция.
+	 * @return Результат операции, завершается после подтверждения транзакции, в которой операция выполнилась.
+	 */
+	public CompletableFuture<Void> submit(final Monad operation) {
+		final Member member = new Member(operation);
+		if (closed) {
+			member.future.completeExceptionally(new RejectedExecutionException("Group commit executor is shut down"));
+			return member.future;
+		}
+		queue.add(member);
+		// shutdown мог начаться между проверкой и добавлением и уже разобрать очередь: тогда операцию
+		// никто не выполнит; если же ее успели забрать, ее выполнит или отклонит забравший
+		if (closed && queue.remove(member))
+			member.future.completeExceptionally(new RejectedExecutionException("Group commit executor is shut down"));
+		return member.future;
+	}
+
+	/**
+	 * Останавливает выполнение: операции, уже поставленные в очередь, выполняются, новые отклоняются.
+	 *
+	 * @param timeout Время ожидания выполнения очереди в миллисекундах.
+	 */
+	public void shutdown(long timeout) {
+		closed = true;
+		committers.shutdown();
+		try {
+			committers.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		// то, что не успели выполнить, отклоняем
+		Member member;
+		while ((member = queue.poll()) != null)
+			member.future.completeExceptionally(new RejectedExecutionException("Group commit executor is shut down"));
+	}
+
+	/**
+	 * Цикл потока: набирает группу и выполняет ее.
+	 */
+	private void loop() {
+		final List<Member> group = new ArrayList<Member>(maxSize);
+		try {
+			while (!closed || !queue.isEmpty()) {
+				final Member first = queue.poll(window > 0 ? window : 1, TimeUnit.MILLISECONDS);
+				if (first == null) continue;
+				group.add(first);
+				final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(window);
+				while (group.size() < maxSize) {
+					final long left = deadline - System.nanoTime();
+					final Member next = left > 0 ? queue.poll(left, TimeUnit.NANOSECONDS) : queue.poll();
+					if (next == null) break;
+					group.add(next);
+				}
+				run(new ArrayList<Member>(group));
+				group.clear();
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Выполняет группу операций в одной транзакции.
+	 *
+	 * @param group Операции группы.
+	 */
+	private void run(final List<Member> group) {
+		if (group.size() == 1) {
+			runAlone(group.get(0));
+			return;
+		}
+		final Member[] failed = new Member[1];
+		try {
+			database.execute(true, new Monad() {
+				@Override
+				public void action(final MonadicContext cx) throws Exception {
+					for (final Member member : group) {
+						failed[0] = member;
+						member.operation.action(cx);
+					}
+					failed[0] = null;
+				}
+
+				@Override
+				public void success(final MonadicContext cx) {
+					// транзакция уже подтверждена, ошибка одной операции не должна перезапускать группу
+					for (final Member member : group) {
+						try {
+							member.operation.success(cx);
+						} catch (RuntimeException ex) {
+							log.error("Exception in grouped operation success handler", ex);
+						}
+						member.future.complete(null);
+					}
+				}
+			}, 1);
+		} catch (HerbstException ex) {
+			if (failed[0] != null) {
+				// виновник известен: выполняем его отдельно, остальных - новой группой
+				group.remove(failed[0]);
+				runAlone(failed[0]);
+				run(group);
+			} else {
+				for (final Member member : group)
+					runAlone(member);
+			}
+		} catch (RuntimeException ex) {
+			for (final Member member : group)
+				runAlone(member);
+		}
+	}
+
+	/**
+	 * Выполняет операцию отдельно, с обычными перезапусками.
+	 *
+	 * @param member Операция.
+	 */
+	private void runAlone(final Member member) {
+		try {
+			database.execute(member.operation);
+			member.future.complete(null);
+		} catch (Throwable ex) {
+			member.future.completeExceptionally(ex);
+		}
+	}
+
+}
@@ -0,0 +1,60 @@
+package org.herbst.ndao.optimistic;
+
+import java.util.List;
+
+/**
+ * Страница результата постраничной выборки по ключу (keyset/seek pagination).
+ *
+ * @see KeysetPager
+ */
+public class KeysetPage<T> {
+
+	/**
+	 * Объекты страницы.
+	 */
+	private final List<T> items;
+
+	/**
+	 * Токен продолжения или <code>null</code>, если страница последняя.
+	 */
+	private final String nextToken;
+
+	/**
+	 * Конструктор.
+	 *
+	 * @param items     Объекты страницы.
+	 * @param nextToken Токен продолжения или <code>null</code>, если страница последняя.
+	 */
+	public KeysetPage(final List<T> items, final String nextToken) {
+		this.items = items;
+		this.nextToken = nextToken;
+	}
+
+	/**
+	 * Возвращает объекты страницы.
+	 *
+	 * @return Объекты страницы.
+	 */
+	public List<T> getItems() {
+		return items;
+	}
+
+	/**
+	 * Возвращает токен для получения следующей страницы.
+	 *
+	 * @return Токен продолжения или <code>null</code>, если страница последняя.
+	 */
+	public String getNextToken() {
+		return nextToken;
+	}
+
+	/**
+	 * Проверяет, есть ли следующая страница.
+	 *
+	 * @return <code>true</code>, если есть следующая страница.
+	 */
+	public boolean hasNext() {
+		return nextToken != null;
+	}
+
+}
@@ -0,0 +1,238 @@
+package org.herbst.ndao.optimistic;
+
+import org.hibernate.Query;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+
+import javax.persistence.PersistenceException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Постраничная выборка по ключу (keyset/seek pagination). Вместо OFFSET следующая страница
+ * запрашивается условием "строго после последней строки предыдущей страницы" по упорядоченным
+ * свойствам, поэтому при наличии индекса по этим свойствам глубокие страницы стоят столько же,
+ * сколько первая. Последнее свойство порядка должно быть уникальным (обычно идентификатор),
+ * а значения свойств не должны быть <code>null</code>.
+ * <p/>
+ * Свойство порядка можно указать с направлением <code>asc</code> или <code>desc</code>. Если все свойства
+ * упорядочены в одном направлении и диалект поддерживает сравнение строк значений, условие записывается
+ * одним сравнением <code>(p0, p1) &gt; (:k0, :k1)</code>, которое СУБД проверяет по составному индексу
+ * как диапазон. Иначе условие раскрывается в <code>(p0 &gt; :k0) or (p0 = :k0 and p1 &gt; :k1)</code>,
+ * где для свойств с <code>desc</code> используется <code>&lt;</code>.
+ * <pre>
+ *     KeysetPager&lt;Player&gt; pager = new KeysetPager&lt;Player&gt;(Player.class, "created desc", "id desc");
+ *     KeysetPage&lt;Player&gt; page = pager.page(cx, token, 50);
+ * </pre>
+ */
+public class KeysetPager<T> {
+
+	/**
+	 * Управляемый тип.
+	 */
+	private final Class<?> type;
+
+	/**
+	 * Свойства порядка.
+	 */
+	private final String[] properties;
+
+	/**
+	 * Упорядочены ли свойства по убыванию.
+	 */
+	private final boolean[] descending;
+
+	/**
+	 * Запрос первой страницы.
+	 */
+	private final String firstQuery;
+
+	/**
+	 * Запрос следующих страниц с раскрытым условием.
+	 */
+	private final String seekQuery;
+
+	/**
+	 * Запрос следующих страниц со сравнением строк значений или <code>null</code>, если направления
+	 * свойств различаются.
+	 */
+	private final String rowSeekQuery;
+
+	/**
+	 * Конструктор.
+	 *
+	 * @param type       Управляемый тип.
+	 * @param properties Свойства порядка, каждое с необязательным направлением <code>asc</code> или
+	 *                   <code>desc</code>; последнее должно быть уникальным.
+	 * @throws IllegalArgumentException Если свойства не заданы или направление не распознано.
+	 */
+	public KeysetPager(final Class<?> type, final String... properties) {
+		if (properties.length == 0)
+			throw new IllegalArgumentException("At least one order property is required");
+		this.type = type;
+		this.properties = new String[properties.length];
+		this.descending = new boolean[properties.length];
+		boolean uniform = true;
+		for (int i = 0; i < properties.length; i++) {
+			final String[] parts = properties[i].trim().split("\\s+");
+			if (parts.length > 2 || parts.length == 2 && !parts[1].equalsIgnoreCase("asc") && !parts[1].equalsIgnoreCase("desc"))
+				throw new IllegalArgumentException("Unsupported order property: " + properties[i]);
+			this.properties[i] = parts[0];
+			this.descending[i] = parts.length == 2 && parts[1].equalsIgnoreCase("desc");
+			uniform &= descending[i] == descending[0];
+		}
+
+		final StringBuilder order = new StringBuilder(" order by ");
+		final StringBuilder seek = new StringBuilder(" where ");
+		final StringBuilder row = new StringBuilder(" where (");
+		final StringBuilder keys = new StringBuilder(" (");
+		for (int i = 0; i < properties.length; i++) {
+			if (i > 0) {
+				order.append(", ");
+				seek.append(" or ");
+				row.append(", ");
+				keys.append(", ");
+			}
+			order.append("e.").append(this.properties[i]).append(descending[i] ? " desc" : "");
+			// (p0 > k0) or (p0 = k0 and p1 > k1) or ...
+			seek.append('(');
+			for (int j = 0; j < i; j++)
+				seek.append("e.").append(this.properties[j]).append(" = :k").append(j).append(" and ");
+			seek.append("e.").append(this.properties[i]).append(descending[i] ? " < :k" : " > :k").append(i).append(')');
+			row.append("e.").append(this.properties[i]);
+			keys.append(":k").append(i);
+		}
+		row.append(descending[0] ? ") <" : ") >").append(keys).append(')');
+		final String from = "from " + type.getSimpleName() + " e";
+		this.firstQuery = from + order;
+		this.seekQuery = from + seek + order;
+		this.rowSeekQuery = uniform ? from + row + order : null;
+	}
+
+	/**
+	 * Загружает страницу.
+	 *
+	 * @param cx    Контекст операции.
+	 * @param token Токен продолжения предыдущей страницы или <code>null</code> для первой страницы.
+	 * @param limit Максимальное количество объектов на странице.
+	 * @return Страница.
+	 * @throws PersistenceException     Если возникла ошибка.
+	 * @throws IllegalArgumentException Если токен поврежден.
+	 */
+	@SuppressWarnings("unchecked")
+	public KeysetPage<T> page(final MonadicContext cx, final String token, int limit) throws PersistenceException {
+		final Query<?> query;
+		if (token == null) {
+			query = cx.getSession().createQuery(firstQuery);
+		} else {
+			final Object[] keys = decode(token);
+			if (keys.length != properties.length)
+				throw new IllegalArgumentException("Continuation token does not match the page order");
+			final boolean rows = rowSeekQuery != null
+					&& ((SessionImplementor) cx.getSession()).getFactory().getDialect().supportsRowValueConstructorSyntax();
+			query = cx.getSession().createQuery(rows ? rowSeekQuery : seekQuery);
+			for (int i = 0; i < keys.length; i++)
+				query.setParameter("k" + i, keys[i]);
+		}
+		// читаем на одну строку больше, чтобы знать, есть ли следующая страница
+		final List<T> items = (List<T>) query.setMaxResults(limit + 1).list();
+		if (items.size() <= limit)
+			return new KeysetPage<T>(items, null);
+		final List<T> page = items.subList(0, limit);
+		return new KeysetPage<T>(page, encode(keysOf(cx, page.get(limit - 1))));
+	}
+
+	/**
+	 * Возвращает значения свойств порядка объекта. Значения читаются через метаданные Hibernate, а не
+	 * через JavaBeans: у {@link DomainObject} тип сеттера идентификатора не совпадает с типом геттера.
+	 *
+	 * @param cx     Контекст операции.
+	 * @param object Объект.
+	 * @return Значения свойств порядка.
+	 */
+	private Object[] keysOf(final MonadicContext cx, final Object object) {
+		final SessionImplementor session = (SessionImplementor) cx.getSession();
+		final EntityPersister persister = session.getFactory().getMetamodel().entityPersister(type);
+		final Object[] keys = new Object[properties.length];
+		for (int i = 0; i < properties.length; i++) {
+			keys[i] = properties[i].equals(persister.getIdentifierPropertyName())
+					? persister.getIdentifier(object, session)
+					: persister.getPropertyValue(object, properties[i]);
+		}
+		return keys;
+	}
+
+	/**
+	 * Кодирует значения ключа в токен. Токен передается клиентам, поэтому значения кодируются
+	 * текстом с признаком типа, а не сериализацией Java.
+	 *
+	 * @param keys Значения ключа.
+	 * @return Токен.
+	 */
+	static String encode(final Object[] keys) {
+		final Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+		final StringBuilder sb = new StringBuilder();
+		for (final Object key : keys) {
+			final String value;
+			if (key instanceof Long) value = "l" + key;
+			else if (key instanceof Integer) value = "i" + key;
+			else if (key instanceof String) value = "s" + key;
+			// Hibernate возвращает временные свойства как Timestamp с долями миллисекунды - их нельзя терять,
+			// иначе условие "= :k" не совпадет, а "> :k" снова выберет ту же строку
+			else if (key instanceof Timestamp) value = "t" + ((Timestamp) key).getTime() + ":" + ((Timestamp) key).getNanos();
+			else if (key instanceof Date) value = "d" + ((Date) key).getTime();
+			else if (key instanceof Boolean) value = "b" + key;
+			else if (key instanceof Double) value = "f" + key;
+			else if (key instanceof BigDecimal) value = "n" + key;
+			else throw new IllegalArgumentException("Unsupported keyset value: " + key);
+			if (sb.length() > 0) sb.append('.');
+			sb.append(encoder.encodeToString(value.getBytes(StandardCharsets.UTF_8)));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Декодирует значения ключа из токена.
+	 *
+	 * @param token Токен.
+	 * @return Значения ключа.
+	 * @throws IllegalArgumentException Если токен поврежден.
+	 */
+	static Object[] decode(final String token) {
+		final String[] parts = token.split("\\.");
+		final Object[] keys = new Object[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			final String value = new String(Base64.getUrlDecoder().decode(parts[i]), StandardCharsets.UTF_8);
+			if (value.isEmpty()) throw new IllegalArgumentException("Invalid continuation token");
+			final String text = value.substring(1);
+			switch (value.charAt(0)) {
+				case 'l': keys[i] = Long.valueOf(text); break;
+				case 'i': keys[i] = Integer.valueOf(text); break;
+				case 's': keys[i] = text; break;
+				case 't': keys[i] = timestamp(text); break;
+				case 'd': keys[i] = new Date(Long.parseLong(text)); break;
+				case 'b': keys[i] = Boolean.valueOf(text); break;
+				case 'f': keys[i] = Double.valueOf(text); break;
+				case 'n': keys[i] = new BigDecimal(text); break;
+				default: throw new IllegalArgumentException("Invalid continuation token");
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Восстанавливает Timestamp из миллисекунд и наносекунд.
+	 */
+	private static Timestamp timestamp(final String text) {
+		final int separator = text.indexOf(':');
+		if (separator < 0) throw new IllegalArgumentException("Invalid continuation token");
+		final Timestamp timestamp = new Timestamp(Long.parseLong(text.substring(0, separator)));
+		timestamp.setNanos(Integer.parseInt(text.substring(separator + 1)));
+		return timestamp;
+	}
+
+}
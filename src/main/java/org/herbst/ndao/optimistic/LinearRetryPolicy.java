@@ -0,0 +1,31 @@
+package org.herbst.ndao.optimistic;
+
+/**
+ * Линейная политика ожидания: перед попыткой с номером <code>n</code> ожидаем <code>n * timeout</code>
+ * миллисекунд. Используется {@link Database} по умолчанию.
+ */
+public class LinearRetryPolicy implements RetryPolicy {
+
+	/**
+	 * Шаг ожидания в миллисекундах.
+	 */
+	private final long timeout;
+
+	/**
+	 * Конструктор.
+	 *
+	 * @param timeout Шаг ожидания в миллисекундах.
+	 */
+	public LinearRetryPolicy(long timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long delay(int attempt, long previousDelay) {
+		return timeout * attempt;
+	}
+
+}
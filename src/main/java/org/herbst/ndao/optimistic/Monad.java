@@ -3,7 +3,9 @@ package org.herbst.ndao.optimistic;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 
 /**
  * Единица работы с данными - атомарная операция, выполняющаяся в контексте изоляции транзакции,
@@ -24,9 +26,22 @@ public abstract class Monad {
 	public abstract void action(final MonadicContext cx) throws Exception;
 
 	/**
-	 * Обработчик успешного выполнения операции.
+	 * Обработчик успешного выполнения операции. Действия после подтверждения выполняются только
+	 * корневой операцией, когда транзакция уже подтверждена; при настроенном {@link CommitActionDispatcher}
+	 * они передаются ему и выполняются асинхронно.
 	 */
 	protected void compleated(final MonadicContext cx) {
+		if (cx.isActive() || cx.getSuccessCommitActions().isEmpty()) {
+			success(cx);
+			return;
+		}
+		if (cx.getDispatcher() != null) {
+			final List<SuccessCommitAction> actions = new ArrayList<SuccessCommitAction>(cx.getSuccessCommitActions());
+			cx.getSuccessCommitActions().clear();
+			cx.getDispatcher().dispatch(actions, cx.getMetrics());
+			success(cx);
+			return;
+		}
 		Iterator<SuccessCommitAction> iteratorSuccessActions = cx.getSuccessCommitActions().iterator();
 		while(iteratorSuccessActions.hasNext()){
 			SuccessCommitAction successCommitAction = iteratorSuccessActions.next();
@@ -40,6 +55,17 @@ public abstract class Monad {
 		success(cx);
 	}
 
+	/**
+	 * Возвращает ключ объекта, за который операция заведомо конкурирует с другими операциями, например,
+	 * <code>ConflictManager.key(Counter.class, id)</code>. Если ключ горячий, {@link Database} с включенным
+	 * {@link ConflictManager} выполняет такие операции по очереди уже с первой попытки.
+	 *
+	 * @return Ключ конфликта или <code>null</code>.
+	 */
+	public String getConflictKey() {
+		return null;
+	}
+
 	/**
 	 * Обработчик успешного выполнения операции.
 	 *
@@ -24,4 +24,13 @@ public @interface Monadic {
 	 */
 	public boolean transactional() default true;
 
+	/**
+	 * Признак, показывающий, что монадическая операция только читает данные. Такая операция
+	 * выполняется через {@link Database#executeReadOnly(Monad)}: без транзакции, без проверки
+	 * изменений загруженных сущностей и без сброса сессии.
+	 *
+	 * @return <code>true</code>, если операция только читает данные.
+	 */
+	public boolean readOnly() default false;
+
 }
@@ -1,9 +1,12 @@
 package org.herbst.ndao.optimistic;
 
+import org.herbst.ndao.metrics.DatabaseMetrics;
 import org.hibernate.Session;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Контекст монадической операции.
@@ -22,6 +25,43 @@ public class MonadicContext {
 	 */
 	private boolean transactional;
 
+	/**
+	 * Признак, выполняется ли операция только для чтения.
+	 */
+	private boolean readOnly;
+
+	/**
+	 * Номер реплики, на которой открыта сессия, или -1 для основной базы.
+	 */
+	private int replica = -1;
+
+	/**
+	 * Время последнего подтверждения транзакции для read-your-writes, {@link System#nanoTime()}, или
+	 * <code>null</code>, если используется отметка текущего потока. Асинхронная операция получает отметку
+	 * вызвавшего ее потока.
+	 */
+	private AtomicLong commitMark;
+
+	/**
+	 * Ключ последнего конфликта оптимистичной блокировки операции.
+	 */
+	private String conflictKey;
+
+	/**
+	 * Количество конфликтов оптимистичной блокировки операции.
+	 */
+	private int conflicts;
+
+	/**
+	 * Имя сущности объекта, который операция блокирует пессимистично, или <code>null</code>.
+	 */
+	private String lockEntityName;
+
+	/**
+	 * Идентификатор объекта, который операция блокирует пессимистично.
+	 */
+	private Serializable lockId;
+
 	/**
 	 * Признак того, что операция была перезапущена.
 	 */
@@ -34,6 +74,16 @@ public class MonadicContext {
 
 	private final List<SuccessCommitAction> successCommitActions;
 
+	/**
+	 * Асинхронное выполнение действий после подтверждения или <code>null</code>.
+	 */
+	private CommitActionDispatcher dispatcher;
+
+	/**
+	 * Метрики выполнения операций или <code>null</code>.
+	 */
+	private DatabaseMetrics metrics;
+
 	/**
 	 * Конструктор.
 	 */
@@ -62,6 +112,7 @@ public class MonadicContext {
 	 */
 	void deactivate() {
 		session = null;
+		replica = -1;
 		restarted = false;
 	}
 
@@ -115,6 +166,126 @@ public class MonadicContext {
 		this.transactional = value;
 	}
 
+	/**
+	 * Возвращает признак того, что операция выполняется только для чтения.
+	 *
+	 * @return <code>true</code>, если операция выполняется только для чтения.
+	 */
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+
+	/**
+	 * Устанавливает признак, что операция выполняется только для чтения.
+	 *
+	 * @param value Если <code>true</code>, то операция выполняется только для чтения.
+	 */
+	void setReadOnly(boolean value) {
+		this.readOnly = value;
+	}
+
+	/**
+	 * Возвращает отметку подтверждения транзакции, которую обновляет операция.
+	 *
+	 * @return Отметка или <code>null</code>, если используется отметка потока.
+	 */
+	AtomicLong getCommitMark() {
+		return commitMark;
+	}
+
+	/**
+	 * Устанавливает отметку подтверждения транзакции, которую обновляет операция.
+	 *
+	 * @param value Отметка или <code>null</code>.
+	 */
+	void setCommitMark(AtomicLong value) {
+		this.commitMark = value;
+	}
+
+	/**
+	 * Возвращает номер реплики, на которой открыта сессия.
+	 *
+	 * @return Номер реплики или -1 для основной базы.
+	 */
+	int getReplica() {
+		return replica;
+	}
+
+	/**
+	 * Устанавливает номер реплики, на которой открыта сессия.
+	 *
+	 * @param value Номер реплики или -1 для основной базы.
+	 */
+	void setReplica(int value) {
+		this.replica = value;
+	}
+
+	/**
+	 * Возвращает ключ последнего конфликта оптимистичной блокировки операции.
+	 *
+	 * @return Ключ конфликта или <code>null</code>.
+	 */
+	String getConflictKey() {
+		return conflictKey;
+	}
+
+	/**
+	 * Устанавливает ключ последнего конфликта оптимистичной блокировки операции.
+	 *
+	 * @param value Ключ конфликта или <code>null</code>.
+	 */
+	void setConflictKey(final String value) {
+		this.conflictKey = value;
+	}
+
+	/**
+	 * Учитывает конфликт оптимистичной блокировки операции.
+	 *
+	 * @return Количество конфликтов операции.
+	 */
+	int conflicted() {
+		return ++conflicts;
+	}
+
+	/**
+	 * Возвращает имя сущности объекта, который операция блокирует пессимистично.
+	 *
+	 * @return Имя сущности или <code>null</code>.
+	 */
+	String getLockEntityName() {
+		return lockEntityName;
+	}
+
+	/**
+	 * Возвращает идентификатор объекта, который операция блокирует пессимистично.
+	 *
+	 * @return Идентификатор объекта.
+	 */
+	Serializable getLockId() {
+		return lockId;
+	}
+
+	/**
+	 * Устанавливает объект, который операция блокирует пессимистично в начале следующих попыток.
+	 *
+	 * @param entityName Имя сущности.
+	 * @param id         Идентификатор объекта.
+	 */
+	void setPessimisticLock(final String entityName, final Serializable id) {
+		this.lockEntityName = entityName;
+		this.lockId = id;
+	}
+
+	/**
+	 * Сбрасывает сведения о конфликтах перед новой операцией.
+	 */
+	void resetConflicts() {
+		conflictKey = null;
+		conflicts = 0;
+		lockEntityName = null;
+		lockId = null;
+	}
+
 	/**
 	 * Возвращает признак того, что операция была перезапущена.
 	 *
@@ -150,6 +321,35 @@ public class MonadicContext {
 		this.lastError = value;
 	}
 
+	/**
+	 * Возвращает асинхронное выполнение действий после подтверждения.
+	 *
+	 * @return Выполнение действий или <code>null</code>, если действия выполняются в потоке операции.
+	 */
+	CommitActionDispatcher getDispatcher() {
+		return dispatcher;
+	}
+
+	/**
+	 * Возвращает метрики выполнения операций.
+	 *
+	 * @return Метрики или <code>null</code>.
+	 */
+	DatabaseMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Устанавливает способ выполнения действий после подтверждения.
+	 *
+	 * @param dispatcher Асинхронное выполнение или <code>null</code>.
+	 * @param metrics    Метрики или <code>null</code>.
+	 */
+	void setDispatcher(final CommitActionDispatcher dispatcher, final DatabaseMetrics metrics) {
+		this.dispatcher = dispatcher;
+		this.metrics = metrics;
+	}
+
 	public List<SuccessCommitAction> getSuccessCommitActions() {return successCommitActions;}
 	public void addSuccessCommitAction(SuccessCommitAction action){
 		successCommitActions.add(action);
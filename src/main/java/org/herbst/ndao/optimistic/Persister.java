@@ -1,8 +1,19 @@
 package org.herbst.ndao.optimistic;
 
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.jdbc.ReturningWork;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+
 import javax.persistence.PersistenceException;
 import java.io.Serializable;
 import java.lang.reflect.ParameterizedType;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -28,6 +39,28 @@ public abstract class Persister<T, ID extends Serializable> {
 	 */
 	protected String countAllQuery;
 
+	/**
+	 * Подсчет всех объектов управляемого типа.
+	 */
+	protected EntityCounter counter;
+
+	/**
+	 * Размер пачки для массовой записи по умолчанию, если в настройках не задан hibernate.jdbc.batch_size.
+	 */
+	protected final static int DEFAULT_BATCH_SIZE = 50;
+
+	/**
+	 * Размер пачки для массовой записи; 0 - использовать hibernate.jdbc.batch_size.
+	 */
+	protected int batchSize;
+
+	/**
+	 * Вид массовой записи.
+	 */
+	private enum Write {
+		SAVE, UPDATE, DELETE
+	}
+
 	/**
 	 * Конструктор.
 	 */
@@ -35,6 +68,7 @@ public abstract class Persister<T, ID extends Serializable> {
 		this.type = (Class<?>) ((ParameterizedType) getClass().getGenericSuperclass()).getActualTypeArguments()[0];
 		this.findAllQuery = "from " + type.getSimpleName();
 		this.countAllQuery = "select count (*) from " + type.getSimpleName();
+		this.counter = new EntityCounter(type, countAllQuery);
 	}
 
 	/**
@@ -76,7 +110,53 @@ public abstract class Persister<T, ID extends Serializable> {
 	}
 
 	/**
-	 * Выполняет подсчет всех объектов управляемого типа.
+	 * Загружает страницу объектов, упорядоченных по идентификатору, с идентификатором строго больше
+	 * указанного. В отличие от OFFSET стоимость страницы не зависит от ее номера.
+	 *
+	 * @param cx      Контекст операции.
+	 * @param afterId Идентификатор последнего объекта предыдущей страницы или <code>null</code> для первой.
+	 * @param limit   Максимальное количество объектов на странице.
+	 * @return Список объектов.
+	 * @throws PersistenceException Если возникла ошибка.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<T> page(final MonadicContext cx, final ID afterId, int limit) throws PersistenceException {
+		final String id = cx.getSession().getSessionFactory().getClassMetadata(type).getIdentifierPropertyName();
+		final String from = "from " + type.getSimpleName() + " e";
+		final String order = " order by e." + id;
+		final Query<?> query = afterId == null
+				? cx.getSession().createQuery(from + order)
+				: cx.getSession().createQuery(from + " where e." + id + " > :afterId" + order).setParameter("afterId", afterId);
+		return (List<T>) query.setMaxResults(limit).list();
+	}
+
+	/**
+	 * Создает постраничную выборку по ключу для управляемого типа.
+	 *
+	 * @param properties Свойства порядка с необязательным направлением, см. {@link KeysetPager}; последнее
+	 *                   должно быть уникальным.
+	 * @return Постраничная выборка.
+	 */
+	public KeysetPager<T> keyset(final String... properties) {
+		return new KeysetPager<T>(type, properties);
+	}
+
+	/**
+	 * Открывает однонаправленный курсор по всем объектам управляемого типа.
+	 *
+	 * @param cx        Контекст операции.
+	 * @param fetchSize Размер порции чтения; через столько же строк выданные объекты отсоединяются от сессии.
+	 * @return Курсор, который нужно закрыть.
+	 * @throws PersistenceException Если возникла ошибка.
+	 * @see ScrollIterator
+	 */
+	public ScrollIterator<T> stream(final MonadicContext cx, int fetchSize) throws PersistenceException {
+		return ScrollIterator.open(cx.getSession(), findAllQuery, null, fetchSize);
+	}
+
+	/**
+	 * Выполняет подсчет всех объектов управляемого типа по выбранной стратегии подсчета,
+	 * см. {@link #setCountStrategy(CountStrategy, long)}.
 	 *
 	 * @param cx Контекст операции.
 	 * @return Количество объектов.
@@ -84,7 +164,263 @@ public abstract class Persister<T, ID extends Serializable> {
 	 */
 	@SuppressWarnings("unchecked")
 	public int countAll(final MonadicContext cx) throws PersistenceException {
-		return ((Number) cx.getSession().createQuery(countAllQuery).uniqueResult()).intValue();
+		return (int) counter.count(cx.getSession());
+	}
+
+	/**
+	 * Устанавливает стратегию подсчета всех объектов управляемого типа.
+	 *
+	 * @param strategy Стратегия подсчета.
+	 * @param ttl      Срок жизни кешированного значения в миллисекундах для {@link CountStrategy#CACHED}; 0 - без срока.
+	 */
+	public void setCountStrategy(final CountStrategy strategy, long ttl) {
+		counter.setStrategy(strategy, ttl);
+	}
+
+	/**
+	 * Атомарно увеличивает числовое свойство объекта одним запросом <code>UPDATE ... SET f = f + ?</code>
+	 * без чтения объекта, поэтому конкурирующие приращения не приводят к конфликтам версий. Версия объекта
+	 * тоже увеличивается, чтобы параллельно загруженные копии не затерли новое значение. Объект удаляется
+	 * из кеша второго уровня сразу и повторно после подтверждения транзакции, а копия в сессии перечитывается.
+	 * Так же дважды отмечается изменение таблиц объекта в кеше запросов, поэтому закешированные результаты
+	 * запросов по этим таблицам устаревают, а результаты запросов по другим таблицам остаются в кеше.
+	 *
+	 * @param cx       Контекст операции.
+	 * @param id       Идентификатор объекта.
+	 * @param property Имя числового свойства.
+	 * @param delta    Приращение, может быть отрицательным.
+	 * @return <code>true</code>, если объект найден и изменен.
+	 * @throws PersistenceException Если возникла ошибка.
+	 */
+	public boolean increment(final MonadicContext cx, final ID id, final String property, final Number delta) throws PersistenceException {
+		final Session sx = cx.getSession();
+		final SessionImplementor session = (SessionImplementor) sx;
+		final SessionFactoryImplementor factory = session.getFactory();
+		final AbstractEntityPersister persister = (AbstractEntityPersister) factory.getMetamodel().entityPersister(type);
+		final String[] columns = persister.getPropertyColumnNames(property);
+		if (columns.length != 1)
+			throw new IllegalArgumentException("Property " + property + " of " + type.getName() + " is not a single column");
+		final StringBuilder sql = new StringBuilder("update ").append(persister.getTableName())
+				.append(" set ").append(columns[0]).append(" = ").append(columns[0]).append(" + ?");
+		if (persister.isVersioned()) {
+			final String version = persister.getVersionColumnName();
+			sql.append(", ").append(version).append(" = ").append(version).append(" + 1");
+		}
+		final String[] ids = persister.getIdentifierColumnNames();
+		for (int i = 0; i < ids.length; ++i)
+			sql.append(i == 0 ? " where " : " and ").append(ids[i]).append(" = ?");
+		// отложенные изменения должны попасть в БД раньше приращения
+		sx.flush();
+		final int updated = sx.doReturningWork(new ReturningWork<Integer>() {
+			@Override
+			public Integer execute(final Connection connection) throws SQLException {
+				final PreparedStatement ps = connection.prepareStatement(sql.toString());
+				try {
+					ps.setObject(1, delta);
+					persister.getIdentifierType().nullSafeSet(ps, id, 2, session);
+					return ps.executeUpdate();
+				} finally {
+					ps.close();
+				}
+			}
+		});
+		if (updated == 0) return false;
+		final Object loaded = session.getPersistenceContext().getEntity(session.generateEntityKey(id, persister));
+		if (loaded != null) sx.refresh(loaded);
+		final boolean entityCache = persister.hasCache();
+		final boolean queryCache = factory.getSessionFactoryOptions().isQueryCacheEnabled();
+		if (entityCache) factory.getCache().evictEntity(type, id);
+		if (queryCache) factory.getCache().getUpdateTimestampsCache().invalidate(persister.getQuerySpaces(), session);
+		if (entityCache || queryCache) {
+			// до подтверждения транзакции другие сессии могли снова закешировать старое значение
+			cx.addSuccessCommitAction(new SuccessCommitAction() {
+				@Override
+				public void action() throws Exception {
+					if (entityCache) factory.getCache().evictEntity(type, id);
+					if (queryCache) factory.getCache().getUpdateTimestampsCache().invalidate(persister.getQuerySpaces(), session);
+				}
+			});
+		}
+		return true;
+	}
+
+	/**
+	 * Загружает объект из БД по указанному идентификатору в обход сессионного кеша.
+	 *
+	 * @param cx Контекст операции без состояния.
+	 * @param id Идентификатор объекта.
+	 * @return Загруженный объект.
+	 * @throws PersistenceException Если возникла ошибка.
+	 */
+	@SuppressWarnings("unchecked")
+	public T get(final StatelessContext cx, final ID id) throws PersistenceException {
+		return (T) cx.getSession().get(type, id);
+	}
+
+	/**
+	 * Вставляет объект в БД в обход сессионного кеша.
+	 *
+	 * @param cx     Контекст операции без состояния.
+	 * @param object Вставляемый объект.
+	 * @return Идентификатор вставленного объекта.
+	 * @throws PersistenceException Если возникла ошибка.
+	 */
+	@SuppressWarnings("unchecked")
+	public ID insert(final StatelessContext cx, final T object) throws PersistenceException {
+		final ID id = (ID) cx.getSession().insert(object);
+		cx.touch(type);
+		return id;
+	}
+
+	/**
+	 * Обновляет объект в БД в обход сессионного кеша. Версия объекта проверяется и увеличивается,
+	 * при конфликте выбрасывается {@link org.hibernate.StaleObjectStateException}.
+	 *
+	 * @param cx     Контекст операции без состояния.
+	 * @param object Обновляемый объект.
+	 * @throws PersistenceException Если возникла ошибка.
+	 */
+	public void update(final StatelessContext cx, final T object) throws PersistenceException {
+		cx.getSession().update(object);
+		cx.evict(type, object);
+	}
+
+	/**
+	 * Удаляет объект из БД в обход сессионного кеша.
+	 *
+	 * @param cx     Контекст операции без состояния.
+	 * @param object Удаляемый объект.
+	 * @throws PersistenceException Если возникла ошибка.
+	 */
+	public void delete(final StatelessContext cx, final T object) throws PersistenceException {
+		cx.getSession().delete(object);
+		cx.evict(type, object);
+		cx.touch(type);
+	}
+
+	/**
+	 * Сохраняет объекты пачками: каждые {@link #getBatchSize(MonadicContext)} объектов сессия сбрасывается
+	 * в БД и очищается, поэтому память не растет с количеством объектов, а JDBC драйвер получает пачки
+	 * однотипных запросов. <b>Важно!</b>: очистка сессии отсоединяет и все объекты, загруженные операцией
+	 * до вызова этого метода.
+	 *
+	 * @param cx      Контекст операции.
+	 * @param objects Сохраняемые объекты.
+	 * @return Отчет о записи.
+	 * @throws PersistenceException Если возникла ошибка.
+	 */
+	public BatchReport saveAll(final MonadicContext cx, final Iterable<T> objects) throws PersistenceException {
+		return writeAll(cx, objects, Write.SAVE);
+	}
+
+	/**
+	 * Обновляет отсоединенные объекты пачками, см. {@link #saveAll(MonadicContext, Iterable)}.
+	 *
+	 * @param cx      Контекст операции.
+	 * @param objects Обновляемые объекты.
+	 * @return Отчет о записи.
+	 * @throws PersistenceException Если возникла ошибка.
+	 */
+	public BatchReport updateAll(final MonadicContext cx, final Iterable<T> objects) throws PersistenceException {
+		return writeAll(cx, objects, Write.UPDATE);
+	}
+
+	/**
+	 * Удаляет объекты пачками, см. {@link #saveAll(MonadicContext, Iterable)}.
+	 *
+	 * @param cx      Контекст операции.
+	 * @param objects Удаляемые объекты.
+	 * @return Отчет о записи.
+	 * @throws PersistenceException Если возникла ошибка.
+	 */
+	public BatchReport deleteAll(final MonadicContext cx, final Iterable<T> objects) throws PersistenceException {
+		return writeAll(cx, objects, Write.DELETE);
+	}
+
+	/**
+	 * Вставляет объект или обновляет существующий с тем же идентификатором одним запросом, без
+	 * предварительного чтения. Существующий объект перезаписывается без проверки версии.
+	 * Диалект должен поддерживать {@link org.herbst.ndao.dialect.UpsertSupport}.
+	 *
+	 * @param cx     Контекст операции.
+	 * @param object Объект с заданным идентификатором.
+	 * @throws PersistenceException Если возникла ошибка.
+	 */
+	public void upsert(final MonadicContext cx, final T object) throws PersistenceException {
+		upsertAll(cx, Collections.singletonList(object));
+	}
+
+	/**
+	 * Вставляет или обновляет объекты пачками по {@link #getBatchSize(MonadicContext)} запросов,
+	 * см. {@link #upsert(MonadicContext, Object)}.
+	 *
+	 * @param cx      Контекст операции.
+	 * @param objects Объекты с заданными идентификаторами.
+	 * @return Отчет о записи.
+	 * @throws PersistenceException Если возникла ошибка.
+	 */
+	public BatchReport upsertAll(final MonadicContext cx, final Iterable<T> objects) throws PersistenceException {
+		final SessionFactoryImplementor factory = (SessionFactoryImplementor) cx.getSession().getSessionFactory();
+		return new Upsert(factory, type).execute(cx, objects, getBatchSize(cx));
+	}
+
+	/**
+	 * Возвращает размер пачки для массовой записи.
+	 *
+	 * @param cx Контекст операции.
+	 * @return Размер пачки.
+	 */
+	public int getBatchSize(final MonadicContext cx) {
+		if (batchSize > 0) return batchSize;
+		final SessionFactoryImplementor factory = (SessionFactoryImplementor) cx.getSession().getSessionFactory();
+		final int configured = factory.getSessionFactoryOptions().getJdbcBatchSize();
+		return configured > 0 ? configured : DEFAULT_BATCH_SIZE;
+	}
+
+	/**
+	 * Устанавливает размер пачки для массовой записи.
+	 *
+	 * @param value Размер пачки; 0 - использовать hibernate.jdbc.batch_size.
+	 */
+	public void setBatchSize(int value) {
+		this.batchSize = value;
+	}
+
+	/**
+	 * Выполняет массовую запись объектов пачками.
+	 */
+	private BatchReport writeAll(final MonadicContext cx, final Iterable<T> objects, final Write write) throws PersistenceException {
+		final Session sx = cx.getSession();
+		final int size = getBatchSize(cx);
+		final BatchReport report = new BatchReport();
+		long started = System.nanoTime();
+		int pending = 0;
+		for (final T object : objects) {
+			switch (write) {
+				case SAVE:
+					sx.saveOrUpdate(object);
+					break;
+				case UPDATE:
+					sx.update(object);
+					break;
+				default:
+					sx.delete(object);
+			}
+			if (++pending == size) {
+				sx.flush();
+				sx.clear();
+				final long now = System.nanoTime();
+				report.add(pending, now - started);
+				started = now;
+				pending = 0;
+			}
+		}
+		if (pending > 0) {
+			sx.flush();
+			sx.clear();
+			report.add(pending, System.nanoTime() - started);
+		}
+		return report;
 	}
 
 }
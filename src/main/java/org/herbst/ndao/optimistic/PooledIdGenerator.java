@@ -0,0 +1,196 @@
+package org.herbst.ndao.optimistic;
+
+import org.herbst.ndao.shard.CurrentShard;
+import org.herbst.ndao.shard.GlobalShardIdUtils;
+import org.herbst.ndao.utils.ExternalSequence;
+import org.hibernate.HibernateException;
+import org.hibernate.MappingException;
+import org.hibernate.Session;
+import org.hibernate.engine.config.spi.ConfigurationService;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.id.Configurable;
+import org.hibernate.id.IdentifierGenerationException;
+import org.hibernate.id.IdentifierGenerator;
+import org.hibernate.id.PersistentIdentifierGenerator;
+import org.hibernate.internal.util.config.ConfigurationHelper;
+import org.hibernate.jdbc.AbstractReturningWork;
+import org.hibernate.jdbc.ReturningWork;
+import org.hibernate.service.ServiceRegistry;
+import org.hibernate.type.Type;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Hi-lo генератор идентификаторов поверх {@link ExternalSequence} в кэширующем режиме.
+ * <p>
+ * Одно обращение к sequence резервирует блок из {@code block_size} идентификаторов
+ * {@code [hi * block_size, (hi + 1) * block_size)}, которые дальше выдаются из памяти без блокировок,
+ * а следующий блок запрашивается в фоне. В отличие от
+ * {@code GenerationType.IDENTITY} идентификатор известен до вставки, поэтому Hibernate может
+ * складывать INSERT-ы в JDBC батчи.
+ * <p>
+ * Параметры генератора (или настройки фабрики сессий):
+ * <ul>
+ *     <li>{@code sequence} - имя sequence, по умолчанию {@code <таблица>_seq};</li>
+ *     <li>{@code block_size} - размер блока, по умолчанию {@value #DEFAULT_BLOCK_SIZE};</li>
+ *     <li>{@code ndao.shard} - номер шарда по умолчанию для операций, выполняемых не через
+ *     {@link org.herbst.ndao.shard.ShardedDatabase}; если не задан, такие операции получают локальные идентификаторы.</li>
+ * </ul>
+ * Номер шарда встраивается в старшие биты идентификатора через {@link GlobalShardIdUtils#getGlobalShardId(int, long)}
+ * и берется из операции, см. {@link CurrentShard}, поэтому физическая база с несколькими виртуальными шардами
+ * выдает идентификаторы каждого из них. У каждого шарда, кроме нулевого, своя sequence {@code <sequence>_<шард>}: при переносе
+ * шарда {@link org.herbst.ndao.shard.ShardMigrator} продвигает ее в новой базе за все значения, выданные в старой,
+ * см. {@link #reservedLimit(Session, int)} и {@link #advance(Session, int, long)}.
+ * <p>
+ * Размер блока нельзя уменьшать на работающей базе: блоки, выданные с разным размером, пересекаются.
+ *
+ * @see SequenceDomainObject
+ */
+public class PooledIdGenerator implements IdentifierGenerator, Configurable {
+
+    public static final String SEQUENCE = "sequence";
+
+    public static final String BLOCK_SIZE = "block_size";
+
+    public static final String SHARD = "ndao.shard";
+
+    public static final int DEFAULT_BLOCK_SIZE = 100;
+
+    private static final long MAX_LOCAL_ID = GlobalShardIdUtils.getLocalId(-1L);
+
+    private String sequenceName;
+
+    private int blockSize;
+
+    private int shard = -1;
+
+    /**
+     * Sequence по номерам шардов.
+     */
+    private final ConcurrentMap<Integer, ExternalSequence> sequences = new ConcurrentHashMap<Integer, ExternalSequence>();
+
+    @Override
+    public void configure(Type type, Properties params, ServiceRegistry serviceRegistry) throws MappingException {
+        Class<?> javaType = type.getReturnedClass();
+        if (javaType != Long.class && javaType != long.class) {
+            throw new MappingException("PooledIdGenerator supports only long identifiers, got " + javaType.getName());
+        }
+
+        sequenceName = params.getProperty(SEQUENCE);
+        if (sequenceName == null) {
+            String table = params.getProperty(PersistentIdentifierGenerator.TABLE);
+            sequenceName = (table != null ? table : "ndao_id") + "_seq";
+        }
+
+        blockSize = ConfigurationHelper.getInt(BLOCK_SIZE, params, DEFAULT_BLOCK_SIZE);
+        if (blockSize < 1) {
+            throw new MappingException("Block size must be positive: " + blockSize);
+        }
+
+        Object shardSetting = params.getProperty(SHARD);
+        if (shardSetting == null) {
+            shardSetting = serviceRegistry.getService(ConfigurationService.class).getSettings().get(SHARD);
+        }
+        if (shardSetting != null) {
+            shard = Integer.parseInt(shardSetting.toString().trim());
+            if (shard < 0 || shard > 0xFF) {
+                throw new MappingException("Shard must be in [0, 255]: " + shard);
+            }
+        }
+    }
+
+    @Override
+    public Serializable generate(SharedSessionContractImplementor session, Object object) throws HibernateException {
+        Integer routed = CurrentShard.get();
+        // без шарда выдаются локальные идентификаторы, то есть идентификаторы нулевого шарда
+        int shard = routed != null ? routed : Math.max(this.shard, 0);
+        ExternalSequence sequence = sequence(session, shard);
+        long id;
+        try {
+            id = sequence.nextVal(session.getJdbcCoordinator().getLogicalConnection().getPhysicalConnection());
+        } catch (SQLException e) {
+            throw session.getJdbcServices().getSqlExceptionHelper().convert(e, "Could not get next value of " + sequence.getSequenceName());
+        }
+        if (id > MAX_LOCAL_ID) {
+            throw new IdentifierGenerationException("Sequence " + sequence.getSequenceName() + " exhausted local id space: " + id);
+        }
+        return GlobalShardIdUtils.getGlobalShardId(shard, id);
+    }
+
+    /**
+     * Возвращает границу локальных идентификаторов шарда, ниже которой лежат все идентификаторы, выданные
+     * или зарезервированные в базе сессии всеми процессами, см. {@link ExternalSequence#reservedLimit(Connection)}.
+     *
+     * @param session Сессия базы, из которой шард переносится.
+     * @param shard   Номер шарда.
+     * @return Граница локальных идентификаторов, не включительно.
+     */
+    public long reservedLimit(final Session session, int shard) {
+        final ExternalSequence sequence = sequence((SharedSessionContractImplementor) session, shard);
+        return session.doReturningWork(new ReturningWork<Long>() {
+            @Override
+            public Long execute(Connection connection) throws SQLException {
+                return sequence.reservedLimit(connection);
+            }
+        });
+    }
+
+    /**
+     * Продвигает sequence шарда в базе сессии так, чтобы новые локальные идентификаторы были не меньше границы,
+     * см. {@link ExternalSequence#advance(Connection, long)}. Шард в этой базе в это время не должен выдавать
+     * идентификаторы.
+     *
+     * @param session Сессия базы, в которую шард переносится.
+     * @param shard   Номер шарда.
+     * @param limit   Наименьший допустимый локальный идентификатор.
+     */
+    public void advance(final Session session, int shard, final long limit) {
+        final ExternalSequence sequence = sequence((SharedSessionContractImplementor) session, shard);
+        session.doReturningWork(new ReturningWork<Void>() {
+            @Override
+            public Void execute(Connection connection) throws SQLException {
+                sequence.advance(connection, limit);
+                return null;
+            }
+        });
+    }
+
+    public String getSequenceName() {
+        return sequenceName;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Возвращает sequence шарда. Sequence создается в отдельной транзакции, чтобы откат текущей не откатил
+     * вместе с ним и DDL; новые блоки берутся в соединении сессии - sequence нетранзакционны.
+     */
+    private ExternalSequence sequence(final SharedSessionContractImplementor session, final int shard) {
+        ExternalSequence sequence = sequences.get(shard);
+        if (sequence != null) {
+            return sequence;
+        }
+        synchronized (this) {
+            sequence = sequences.get(shard);
+            if (sequence == null) {
+                final String name = shard == 0 ? sequenceName : sequenceName + "_" + shard;
+                sequence = session.getTransactionCoordinator().createIsolationDelegate().delegateWork(
+                        new AbstractReturningWork<ExternalSequence>() {
+                            @Override
+                            public ExternalSequence execute(Connection connection) throws SQLException {
+                                return new ExternalSequence(session.getFactory(), connection, name, blockSize);
+                            }
+                        }, true);
+                sequences.put(shard, sequence);
+            }
+            return sequence;
+        }
+    }
+}
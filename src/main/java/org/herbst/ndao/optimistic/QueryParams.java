@@ -0,0 +1,141 @@
+package org.herbst.ndao.optimistic;
+
+import org.hibernate.Query;
+import org.hibernate.type.Type;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Именованные параметры запроса.
+ * <pre>
+ *     db.namedQuery(cx, "players.byLevel", QueryParams.of("level", 10).with("active", true));
+ * </pre>
+ */
+public class QueryParams {
+
+	/**
+	 * Значения параметров по именам.
+	 */
+	private final Map<String, Object> values = new LinkedHashMap<String, Object>();
+
+	/**
+	 * Создает пустой набор параметров.
+	 *
+	 * @return Набор параметров.
+	 */
+	public static QueryParams empty() {
+		return new QueryParams();
+	}
+
+	/**
+	 * Создает набор параметров из одного параметра.
+	 *
+	 * @param name  Имя параметра.
+	 * @param value Значение параметра.
+	 * @return Набор параметров.
+	 */
+	public static QueryParams of(final String name, final Object value) {
+		return new QueryParams().with(name, value);
+	}
+
+	/**
+	 * Добавляет параметр.
+	 *
+	 * @param name  Имя параметра.
+	 * @param value Значение параметра; коллекция связывается как список значений.
+	 * @return Этот набор параметров.
+	 */
+	public QueryParams with(final String name, final Object value) {
+		values.put(name, value);
+		return this;
+	}
+
+	/**
+	 * Возвращает параметры.
+	 *
+	 * @return Значения параметров по именам.
+	 */
+	public Map<String, Object> asMap() {
+		return Collections.unmodifiableMap(values);
+	}
+
+	/**
+	 * Связывает параметры с запросом. Коллекции связываются как списки значений.
+	 *
+	 * @param query  Запрос.
+	 * @param params Значения параметров по именам или <code>null</code>.
+	 */
+	public static void bind(final Query<?> query, final Map<String, ?> params) {
+		bind(query, params, null);
+	}
+
+	/**
+	 * Связывает параметры с запросом по объявленным типам. Без типа Hibernate выводит тип параметра
+	 * из класса значения: <code>null</code> и числа другого класса (Integer для свойства Long)
+	 * связываются не тем типом JDBC, и СУБД приводит столбец к типу параметра или заново готовит план.
+	 * Числа приводятся к классу объявленного типа без потери значения.
+	 *
+	 * @param query  Запрос.
+	 * @param params Значения параметров по именам или <code>null</code>.
+	 * @param types  Объявленные типы параметров по именам или <code>null</code>; параметры без типа
+	 *               связываются по классу значения.
+	 * @throws IllegalArgumentException Если число не помещается в объявленный тип.
+	 */
+	public static void bind(final Query<?> query, final Map<String, ?> params, final Map<String, Type> types) {
+		if (params == null) return;
+		for (final Map.Entry<String, ?> param : params.entrySet()) {
+			final Type type = types != null ? types.get(param.getKey()) : null;
+			if (param.getValue() instanceof Collection) {
+				final Collection<?> values = (Collection<?>) param.getValue();
+				if (type == null) {
+					query.setParameterList(param.getKey(), values);
+				} else {
+					final List<Object> coerced = new ArrayList<Object>(values.size());
+					for (final Object value : values)
+						coerced.add(coerce(param.getKey(), value, type));
+					query.setParameterList(param.getKey(), coerced, type);
+				}
+			} else if (type == null) {
+				query.setParameter(param.getKey(), param.getValue());
+			} else {
+				query.setParameter(param.getKey(), coerce(param.getKey(), param.getValue(), type), type);
+			}
+		}
+	}
+
+	/**
+	 * Приводит число к классу объявленного типа.
+	 *
+	 * @param name  Имя параметра.
+	 * @param value Значение.
+	 * @param type  Объявленный тип.
+	 * @return Значение класса объявленного типа или исходное значение, если это не число.
+	 * @throws IllegalArgumentException Если число не помещается в объявленный тип.
+	 */
+	private static Object coerce(final String name, final Object value, final Type type) {
+		final Class<?> target = type.getReturnedClass();
+		if (!(value instanceof Number) || target.isInstance(value)) return value;
+		try {
+			final BigDecimal number = new BigDecimal(value.toString());
+			if (target == Long.class) return number.longValueExact();
+			if (target == Integer.class) return number.intValueExact();
+			if (target == Short.class) return number.shortValueExact();
+			if (target == Byte.class) return number.byteValueExact();
+			if (target == Double.class) return number.doubleValue();
+			if (target == Float.class) return number.floatValue();
+			if (target == BigDecimal.class) return number;
+			if (target == BigInteger.class) return number.toBigIntegerExact();
+		} catch (ArithmeticException | NumberFormatException ex) {
+			throw new IllegalArgumentException("Parameter '" + name + "' value " + value + " does not fit " + type.getName(), ex);
+		}
+		return value;
+	}
+
+}
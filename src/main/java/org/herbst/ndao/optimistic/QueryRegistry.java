@@ -0,0 +1,135 @@
+package org.herbst.ndao.optimistic;
+
+import org.hibernate.Filter;
+import org.hibernate.HibernateException;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.query.spi.HQLQueryPlan;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.query.internal.ParameterMetadataImpl;
+import org.hibernate.type.Type;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Реестр именованных запросов HQL. Запросы объявляются один раз с именованными параметрами,
+ * проверяются и компилируются в кеш планов при построении {@link Database}, а выполняются
+ * только со связыванием параметров. Текст запроса не меняется от вызова к вызову, поэтому
+ * кеш планов Hibernate и кеш подготовленных выражений пула соединений используются повторно.
+ * Параметры связываются с типами, выведенными Hibernate из запроса при компиляции, см.
+ * {@link QueryParams#bind(Query, Map, Map)}.
+ *
+ * @see DatabaseBuilder#withQuery(String, String)
+ */
+public class QueryRegistry {
+
+	/**
+	 * Объявление именованного запроса.
+	 */
+	private static class Definition {
+
+		private final String hql;
+
+		private final String cacheRegion;
+
+		private Map<String, Type> parameters;
+
+		private Definition(final String hql, final String cacheRegion) {
+			this.hql = hql;
+			this.cacheRegion = cacheRegion;
+		}
+
+	}
+
+	/**
+	 * Объявленные запросы по именам.
+	 */
+	private final Map<String, Definition> definitions = new ConcurrentHashMap<String, Definition>();
+
+	/**
+	 * Объявляет запрос.
+	 *
+	 * @param name Имя запроса.
+	 * @param hql  Текст запроса HQL с именованными параметрами.
+	 */
+	public void register(final String name, final String hql) {
+		register(name, hql, null);
+	}
+
+	/**
+	 * Объявляет запрос, результат которого кешируется в кеше запросов.
+	 *
+	 * @param name        Имя запроса.
+	 * @param hql         Текст запроса HQL с именованными параметрами.
+	 * @param cacheRegion Регион кеша запросов или <code>null</code>, если результат не кешируется.
+	 */
+	public void register(final String name, final String hql, final String cacheRegion) {
+		if (definitions.containsKey(name))
+			throw new IllegalArgumentException("Query '" + name + "' is already registered");
+		definitions.put(name, new Definition(hql, cacheRegion));
+	}
+
+	/**
+	 * Проверяет и компилирует все объявленные запросы.
+	 *
+	 * @param sessionFactory Фабрика сессий.
+	 * @throws HibernateException Если запрос содержит ошибку.
+	 */
+	void compile(final SessionFactory sessionFactory) throws HibernateException {
+		final SessionFactoryImplementor factory = (SessionFactoryImplementor) sessionFactory;
+		for (final Map.Entry<String, Definition> entry : definitions.entrySet()) {
+			final Definition definition = entry.getValue();
+			try {
+				final HQLQueryPlan plan = factory.getQueryPlanCache()
+						.getHQLQueryPlan(definition.hql, false, Collections.<String, Filter>emptyMap());
+				final ParameterMetadataImpl metadata = plan.getParameterMetadata();
+				final Map<String, Type> parameters = new HashMap<String, Type>();
+				for (final String parameter : metadata.getNamedParameterNames())
+					parameters.put(parameter, metadata.getNamedParameterExpectedType(parameter));
+				definition.parameters = parameters;
+			} catch (HibernateException ex) {
+				throw new HibernateException("Invalid named query '" + entry.getKey() + "': " + ex.getMessage(), ex);
+			}
+		}
+	}
+
+	/**
+	 * Создает запрос по имени и связывает его параметры.
+	 *
+	 * @param sx     Сессия.
+	 * @param name   Имя запроса.
+	 * @param params Параметры запроса.
+	 * @return Запрос, готовый к выполнению.
+	 * @throws IllegalArgumentException Если запрос не объявлен или набор параметров не совпадает с объявленным.
+	 */
+	Query<?> create(final Session sx, final String name, final QueryParams params) {
+		final Definition definition = definitions.get(name);
+		if (definition == null)
+			throw new IllegalArgumentException("Query '" + name + "' is not registered");
+		final Map<String, Object> values = params != null ? params.asMap() : Collections.<String, Object>emptyMap();
+		if (definition.parameters != null && !definition.parameters.keySet().equals(values.keySet()))
+			throw new IllegalArgumentException("Query '" + name + "' expects parameters " + definition.parameters.keySet()
+					+ ", got " + values.keySet());
+		final Query<?> query = sx.createQuery(definition.hql);
+		QueryParams.bind(query, values, definition.parameters);
+		if (definition.cacheRegion != null) {
+			query.setCacheable(true);
+			query.setCacheRegion(definition.cacheRegion);
+		}
+		return query;
+	}
+
+	/**
+	 * Проверяет, что реестр пуст.
+	 *
+	 * @return <code>true</code>, если ни один запрос не объявлен.
+	 */
+	public boolean isEmpty() {
+		return definitions.isEmpty();
+	}
+
+}
@@ -0,0 +1,130 @@
+package org.herbst.ndao.optimistic;
+
+import org.hibernate.SessionFactory;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Пул реплик базы данных, на которые {@link Database} направляет операции чтения.
+ * Для каждой реплики строится своя фабрика сессий.
+ */
+public class ReplicaPool {
+
+	/**
+	 * Стратегия выбора реплики.
+	 */
+	public enum Balancing {
+
+		/**
+		 * Реплики выбираются по очереди.
+		 */
+		ROUND_ROBIN,
+
+		/**
+		 * Выбирается реплика с наименьшим количеством открытых сессий.
+		 */
+		LEAST_LOADED
+
+	}
+
+	/**
+	 * Фабрики сессий реплик.
+	 */
+	private final SessionFactory[] factories;
+
+	/**
+	 * Количество открытых сессий каждой реплики.
+	 */
+	private final AtomicInteger[] active;
+
+	/**
+	 * Счетчик для выбора реплики по очереди.
+	 */
+	private final AtomicInteger cursor = new AtomicInteger();
+
+	/**
+	 * Стратегия выбора реплики.
+	 */
+	private final Balancing balancing;
+
+	/**
+	 * Конструктор.
+	 *
+	 * @param factories Фабрики сессий реплик.
+	 * @param balancing Стратегия выбора реплики.
+	 */
+	public ReplicaPool(final List<SessionFactory> factories, final Balancing balancing) {
+		if (factories.isEmpty())
+			throw new IllegalArgumentException("Replica pool is empty");
+		this.factories = factories.toArray(new SessionFactory[factories.size()]);
+		this.active = new AtomicInteger[this.factories.length];
+		for (int i = 0; i < active.length; i++)
+			active[i] = new AtomicInteger();
+		this.balancing = balancing;
+	}
+
+	/**
+	 * Выбирает реплику для новой сессии и учитывает сессию как открытую.
+	 *
+	 * @return Номер выбранной реплики.
+	 */
+	public int acquire() {
+		int index;
+		if (balancing == Balancing.LEAST_LOADED) {
+			// начинаем обход со сдвигом, чтобы равные по нагрузке реплики выбирались по очереди
+			final int start = (cursor.getAndIncrement() & Integer.MAX_VALUE) % factories.length;
+			index = start;
+			int least = Integer.MAX_VALUE;
+			for (int i = 0; i < factories.length; i++) {
+				final int candidate = (start + i) % factories.length;
+				final int load = active[candidate].get();
+				if (load < least) {
+					least = load;
+					index = candidate;
+				}
+			}
+		} else {
+			index = (cursor.getAndIncrement() & Integer.MAX_VALUE) % factories.length;
+		}
+		active[index].incrementAndGet();
+		return index;
+	}
+
+	/**
+	 * Учитывает закрытие сессии реплики.
+	 *
+	 * @param index Номер реплики.
+	 */
+	public void release(int index) {
+		active[index].decrementAndGet();
+	}
+
+	/**
+	 * Возвращает фабрику сессий реплики.
+	 *
+	 * @param index Номер реплики.
+	 * @return Фабрика сессий.
+	 */
+	public SessionFactory get(int index) {
+		return factories[index];
+	}
+
+	/**
+	 * Возвращает количество реплик.
+	 *
+	 * @return Количество реплик.
+	 */
+	public int size() {
+		return factories.length;
+	}
+
+	/**
+	 * Закрывает фабрики сессий всех реплик.
+	 */
+	public void close() {
+		for (final SessionFactory factory : factories)
+			factory.close();
+	}
+
+}
@@ -0,0 +1,138 @@
+package org.herbst.ndao.optimistic;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Бюджет повторных попыток одной {@link Database}, реализованный как корзина токенов.
+ * Каждая повторная попытка расходует один токен, каждая успешная операция возвращает в
+ * корзину долю токена. Когда доля ошибок резко растет, токены заканчиваются и повторы
+ * прекращаются, вместо того чтобы умножать нагрузку на базу данных.
+ */
+public class RetryBudget {
+
+	/**
+	 * Масштаб хранения дробных токенов.
+	 */
+	private final static long SCALE = 1000;
+
+	/**
+	 * Емкость корзины, в тысячных долях токена.
+	 */
+	private final long capacity;
+
+	/**
+	 * Пополнение корзины за одну успешную операцию, в тысячных долях токена.
+	 */
+	private final long refill;
+
+	/**
+	 * Признак неограниченного бюджета.
+	 */
+	private final boolean unlimited;
+
+	/**
+	 * Текущее количество токенов, в тысячных долях токена.
+	 */
+	private final AtomicLong tokens;
+
+	/**
+	 * Количество разрешенных повторных попыток.
+	 */
+	private final AtomicLong granted = new AtomicLong();
+
+	/**
+	 * Количество отклоненных повторных попыток.
+	 */
+	private final AtomicLong denied = new AtomicLong();
+
+	/**
+	 * Конструктор.
+	 *
+	 * @param capacity Емкость корзины в токенах (максимальный всплеск повторов).
+	 * @param refill   Сколько токенов возвращает одна успешная операция, например, 0.1.
+	 */
+	public RetryBudget(int capacity, double refill) {
+		this(capacity, refill, false);
+	}
+
+	private RetryBudget(int capacity, double refill, boolean unlimited) {
+		if (capacity <= 0 || refill < 0)
+			throw new IllegalArgumentException("Invalid retry budget: capacity=" + capacity + ", refill=" + refill);
+		this.capacity = capacity * SCALE;
+		this.refill = Math.round(refill * SCALE);
+		this.unlimited = unlimited;
+		this.tokens = new AtomicLong(this.capacity);
+	}
+
+	/**
+	 * Создает неограниченный бюджет, который разрешает любые повторы, но ведет их учет.
+	 *
+	 * @return Неограниченный бюджет.
+	 */
+	public static RetryBudget unlimited() {
+		return new RetryBudget(1, 0, true);
+	}
+
+	/**
+	 * Пытается получить разрешение на повторную попытку.
+	 *
+	 * @return <code>true</code>, если повтор разрешен.
+	 */
+	public boolean tryAcquire() {
+		if (unlimited) {
+			granted.incrementAndGet();
+			return true;
+		}
+		for (;;) {
+			final long current = tokens.get();
+			if (current < SCALE) {
+				denied.incrementAndGet();
+				return false;
+			}
+			if (tokens.compareAndSet(current, current - SCALE)) {
+				granted.incrementAndGet();
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Учитывает успешное выполнение операции, пополняя корзину.
+	 */
+	public void success() {
+		if (unlimited || refill == 0) return;
+		for (;;) {
+			final long current = tokens.get();
+			if (current >= capacity) return;
+			if (tokens.compareAndSet(current, Math.min(capacity, current + refill))) return;
+		}
+	}
+
+	/**
+	 * Возвращает количество доступных токенов.
+	 *
+	 * @return Количество токенов.
+	 */
+	public double getAvailableTokens() {
+		return unlimited ? Double.POSITIVE_INFINITY : (double) tokens.get() / SCALE;
+	}
+
+	/**
+	 * Возвращает количество разрешенных повторных попыток.
+	 *
+	 * @return Количество разрешенных повторов.
+	 */
+	public long getGranted() {
+		return granted.get();
+	}
+
+	/**
+	 * Возвращает количество отклоненных повторных попыток.
+	 *
+	 * @return Количество отклоненных повторов.
+	 */
+	public long getDenied() {
+		return denied.get();
+	}
+
+}
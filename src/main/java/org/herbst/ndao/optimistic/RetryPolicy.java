@@ -0,0 +1,19 @@
+package org.herbst.ndao.optimistic;
+
+/**
+ * Политика ожидания между попытками выполнения монадической операции.
+ *
+ * @see Database#setRetryPolicy(RetryPolicy)
+ */
+public interface RetryPolicy {
+
+	/**
+	 * Вычисляет время ожидания перед очередной попыткой выполнения операции.
+	 *
+	 * @param attempt       Номер завершившейся неудачей попытки, начиная с 1.
+	 * @param previousDelay Предыдущее время ожидания в миллисекундах, 0 для первой повторной попытки.
+	 * @return Время ожидания в миллисекундах.
+	 */
+	long delay(int attempt, long previousDelay);
+
+}
@@ -0,0 +1,214 @@
+package org.herbst.ndao.optimistic;
+
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.EntityEntry;
+import org.hibernate.engine.spi.EntityKey;
+import org.hibernate.engine.spi.PersistenceContext;
+import org.hibernate.engine.spi.SessionImplementor;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Однонаправленный курсор по результату запроса. Строки читаются из БД порциями по fetch size,
+ * а каждые <code>clearEvery</code> строк объекты, которые курсор добавил в сессию, отсоединяются от нее,
+ * поэтому память не зависит от размера результата. Добавленные объекты определяются по разнице
+ * контекста сохранения до и после чтения строки, поэтому отсоединяются и связанные объекты,
+ * загруженные вместе со строками (eager связи, join fetch). Объекты, которые были в сессии до чтения
+ * строки (в том числе загруженные операцией только для чтения), и объекты, ставшие изменяемыми,
+ * остаются в сессии вместе с несохраненными изменениями. Курсор нужно закрывать.
+ *
+ * @see Database#scroll(MonadicContext, String, Map, int)
+ * @see Persister#stream(MonadicContext, int)
+ */
+public class ScrollIterator<T> implements Iterator<T>, Closeable {
+
+	/**
+	 * Сессия, в которой открыт курсор.
+	 */
+	private final Session session;
+
+	/**
+	 * Результат запроса.
+	 */
+	private final ScrollableResults results;
+
+	/**
+	 * Через сколько строк отсоединять выданные объекты; 0 - не отсоединять.
+	 */
+	private final int clearEvery;
+
+	/**
+	 * Контекст сохранения сессии.
+	 */
+	private final PersistenceContext context;
+
+	/**
+	 * Ключи объектов в сессии на момент последнего чтения строки.
+	 */
+	private final Set<EntityKey> present = new HashSet<EntityKey>();
+
+	/**
+	 * Ключи объектов, добавленных курсором с последнего отсоединения.
+	 */
+	private final List<EntityKey> loaded = new ArrayList<EntityKey>();
+
+	/**
+	 * Количество прочитанных строк.
+	 */
+	private long count;
+
+	/**
+	 * Прочитана ли следующая строка.
+	 */
+	private boolean fetched;
+
+	/**
+	 * Есть ли следующая строка.
+	 */
+	private boolean available;
+
+	/**
+	 * Конструктор.
+	 *
+	 * @param session    Сессия, в которой открыт курсор.
+	 * @param results    Результат запроса.
+	 * @param clearEvery Через сколько строк отсоединять выданные объекты; 0 - не отсоединять.
+	 */
+	public ScrollIterator(final Session session, final ScrollableResults results, int clearEvery) {
+		this.session = session;
+		this.results = results;
+		this.clearEvery = clearEvery;
+		this.context = ((SessionImplementor) session).getPersistenceContext();
+	}
+
+	/**
+	 * Открывает курсор по запросу HQL.
+	 *
+	 * @param session   Сессия.
+	 * @param query     Запрос HQL.
+	 * @param params    Именованные параметры запроса или <code>null</code>.
+	 * @param fetchSize Размер порции чтения; через столько же строк выданные объекты отсоединяются.
+	 * @return Курсор.
+	 */
+	public static <T> ScrollIterator<T> open(final Session session, final String query, final Map<String, ?> params, int fetchSize) {
+		final Query<?> q = session.createQuery(query);
+		QueryParams.bind(q, params);
+		q.setFetchSize(fetchSize);
+		q.setReadOnly(true);
+		return new ScrollIterator<T>(session, q.scroll(ScrollMode.FORWARD_ONLY), fetchSize);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean hasNext() {
+		if (!fetched) {
+			// отсоединяем до чтения следующей строки, чтобы не отсоединить еще не выданную строку
+			if (clearEvery > 0 && count > 0 && count % clearEvery == 0) release();
+			if (clearEvery > 0) {
+				// между строками сессию меняет операция - ее объекты курсору не принадлежат
+				if (context.getEntitiesByKey().size() != present.size()) snapshot();
+				available = results.next();
+				if (context.getEntitiesByKey().size() != present.size()) collect();
+			} else {
+				available = results.next();
+			}
+			fetched = true;
+		}
+		return available;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public T next() {
+		if (!hasNext()) throw new NoSuchElementException();
+		fetched = false;
+		count++;
+		final Object[] row = results.get();
+		return (T) (row.length == 1 ? row[0] : row);
+	}
+
+	/**
+	 * Запоминает ключи объектов, находящихся в сессии.
+	 */
+	private void snapshot() {
+		present.clear();
+		for (final Object key : context.getEntitiesByKey().keySet()) {
+			present.add((EntityKey) key);
+		}
+	}
+
+	/**
+	 * Запоминает ключи объектов, которые добавило в сессию чтение строки.
+	 */
+	private void collect() {
+		for (final Object key : context.getEntitiesByKey().keySet()) {
+			if (present.add((EntityKey) key)) loaded.add((EntityKey) key);
+		}
+	}
+
+	/**
+	 * Отсоединяет от сессии объекты, добавленные курсором. Объекты, которые операция сделала
+	 * изменяемыми (курсор читает в режиме read-only), не отсоединяются.
+	 */
+	private void release() {
+		for (final EntityKey key : loaded) {
+			final Object object = context.getEntity(key);
+			if (object == null) continue;
+			final EntityEntry entry = context.getEntry(object);
+			if (entry != null && entry.isReadOnly()) session.evict(object);
+		}
+		loaded.clear();
+		snapshot();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Возвращает поток строк курсора; закрытие потока закрывает курсор.
+	 *
+	 * @return Поток строк.
+	 */
+	public Stream<T> stream() {
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED), false)
+				.onClose(new Runnable() {
+					@Override
+					public void run() {
+						close();
+					}
+				});
+	}
+
+	/**
+	 * Закрывает курсор.
+	 */
+	@Override
+	public void close() {
+		results.close();
+	}
+
+}
@@ -0,0 +1,47 @@
+package org.herbst.ndao.optimistic;
+
+import org.hibernate.annotations.GenericGenerator;
+
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.MappedSuperclass;
+import java.io.Serializable;
+
+/**
+ * Доменный объект с идентификатором из {@link PooledIdGenerator}. В отличие от {@link DomainObject}
+ * идентификатор выдается до вставки, поэтому вставки таких объектов попадают в JDBC батчи
+ * (см. {@link DatabaseBuilder#withJdbcBatchSize(int)}).
+ * <p>
+ * Каждой таблице соответствует своя sequence {@code <таблица>_seq}.
+ */
+@MappedSuperclass
+public class SequenceDomainObject<T> extends BaseDomainObject<T> {
+
+    /**
+     * Уникальный идентификатор объекта.
+     */
+    private long id;
+
+    /**
+     * Возвращает уникальный идентификатор объекта.
+     *
+     * @return Уникальный идентификатор объекта.
+     */
+    @Id
+    @GeneratedValue(generator = "ndao-pooled")
+    @GenericGenerator(name = "ndao-pooled", strategy = "org.herbst.ndao.optimistic.PooledIdGenerator")
+    @Override
+    public Long getId() {
+        return id;
+    }
+
+    /**
+     * Устанавливает уникальный идентификатор объекта.
+     *
+     * @param value Уникальный идентификатор объекта.
+     */
+    @Override
+    public void setId(Serializable value) {
+        this.id = (long) value;
+    }
+}
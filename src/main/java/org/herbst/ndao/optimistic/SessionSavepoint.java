@@ -0,0 +1,157 @@
+package org.herbst.ndao.optimistic;
+
+import org.hibernate.Cache;
+import org.hibernate.Session;
+import org.hibernate.collection.spi.PersistentCollection;
+import org.hibernate.engine.spi.CollectionEntry;
+import org.hibernate.engine.spi.EntityEntry;
+import org.hibernate.engine.spi.PersistenceContext;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.Status;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventSource;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.FlushEvent;
+import org.hibernate.event.spi.FlushEventListener;
+import org.hibernate.jdbc.ReturningWork;
+import org.hibernate.jdbc.Work;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Точка сохранения JDBC транзакции вместе с состоянием сессии Hibernate. Перед созданием точки
+ * сессия сбрасывается в БД, поэтому объекты сессии совпадают с БД; при откате к точке объекты,
+ * загруженные до нее, перечитываются, а появившиеся после - отсоединяются.
+ *
+ * @see Database#executeSavepoint(Monad, int)
+ */
+final class SessionSavepoint {
+
+	/**
+	 * Контекст операции.
+	 */
+	private final MonadicContext cx;
+
+	/**
+	 * Сессия операции.
+	 */
+	private final EventSource session;
+
+	/**
+	 * JDBC точка сохранения.
+	 */
+	private final Savepoint savepoint;
+
+	/**
+	 * Объекты сессии на момент создания точки.
+	 */
+	private final Set<Object> entities = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+	/**
+	 * Количество действий после подтверждения на момент создания точки.
+	 */
+	private final int actions;
+
+	/**
+	 * Конструктор, создает точку сохранения.
+	 *
+	 * @param cx Контекст транзакционной операции.
+	 */
+	SessionSavepoint(final MonadicContext cx) {
+		this.cx = cx;
+		final Session sx = cx.getSession();
+		this.session = (EventSource) sx;
+		sx.flush();
+		this.savepoint = sx.doReturningWork(new ReturningWork<Savepoint>() {
+			@Override
+			public Savepoint execute(final Connection connection) throws SQLException {
+				return connection.setSavepoint();
+			}
+		});
+		for (final Map.Entry<Object, EntityEntry> entry : session.getPersistenceContext().reentrantSafeEntityEntries())
+			entities.add(entry.getKey());
+		this.actions = cx.getSuccessCommitActions().size();
+	}
+
+	/**
+	 * Сбрасывает изменения сессии в БД. В отличие от {@link Session#flush()} ошибка не помечает
+	 * транзакцию только для отката, поэтому после отката к точке транзакцию можно подтвердить.
+	 */
+	void flush() {
+		final FlushEvent event = new FlushEvent(session);
+		for (final FlushEventListener listener : session.getFactory().getServiceRegistry()
+				.getService(EventListenerRegistry.class).getEventListenerGroup(EventType.FLUSH).listeners())
+			listener.onFlush(event);
+	}
+
+	/**
+	 * Освобождает точку сохранения после успешного шага.
+	 */
+	void release() {
+		session.doWork(new Work() {
+			@Override
+			public void execute(final Connection connection) throws SQLException {
+				connection.releaseSavepoint(savepoint);
+			}
+		});
+	}
+
+	/**
+	 * Откатывает транзакцию и сессию к точке сохранения. Объекты, измененные после точки, удаляются
+	 * из кеша второго уровня после подтверждения транзакции, так как Hibernate положит туда откаченное состояние.
+	 */
+	void rollback() {
+		session.doWork(new Work() {
+			@Override
+			public void execute(final Connection connection) throws SQLException {
+				connection.rollback(savepoint);
+			}
+		});
+		final List<SuccessCommitAction> pending = cx.getSuccessCommitActions();
+		pending.subList(actions, pending.size()).clear();
+		// невыполненные действия прерванного сброса относятся к откаченному шагу
+		session.getActionQueue().clear();
+		final PersistenceContext pc = session.getPersistenceContext();
+		final List<Object[]> evictedEntities = new ArrayList<Object[]>();
+		final List<Object[]> evictedCollections = new ArrayList<Object[]>();
+		for (final Map.Entry<PersistentCollection, CollectionEntry> entry : copy(pc.getCollectionEntries()))
+			if (entry.getValue().getLoadedPersister() != null && entry.getValue().getLoadedKey() != null)
+				evictedCollections.add(new Object[]{entry.getValue().getLoadedPersister().getRole(), entry.getValue().getLoadedKey()});
+		for (final Map.Entry<Object, EntityEntry> entry : pc.reentrantSafeEntityEntries()) {
+			final Object entity = entry.getKey();
+			final EntityEntry state = entry.getValue();
+			if (state.getId() != null)
+				evictedEntities.add(new Object[]{state.getEntityName(), state.getId()});
+			if (entities.contains(entity) && (state.getStatus() == Status.MANAGED || state.getStatus() == Status.READ_ONLY))
+				session.refresh(entity);
+			else
+				session.evict(entity);
+		}
+		final SessionFactoryImplementor factory = session.getFactory();
+		cx.addSuccessCommitAction(new SuccessCommitAction() {
+			@Override
+			public void action() throws Exception {
+				final Cache cache = factory.getCache();
+				for (final Object[] key : evictedEntities)
+					cache.evictEntity((String) key[0], (Serializable) key[1]);
+				for (final Object[] key : evictedCollections)
+					cache.evictCollection((String) key[0], (Serializable) key[1]);
+			}
+		});
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<Map.Entry<PersistentCollection, CollectionEntry>> copy(final Map<?, ?> map) {
+		return new ArrayList<Map.Entry<PersistentCollection, CollectionEntry>>(((Map<PersistentCollection, CollectionEntry>) map).entrySet());
+	}
+
+}
@@ -0,0 +1,174 @@
+package org.herbst.ndao.optimistic;
+
+import org.hibernate.Cache;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Контекст операции без сессионного кеша. Сущности, прочитанные или записанные через контекст,
+ * не удерживаются сессией, не проверяются на изменения и не попадают в кеш второго уровня.
+ *
+ * @see Database#executeStateless(StatelessMonad)
+ */
+public class StatelessContext {
+
+	/**
+	 * Текущая сессия без состояния.
+	 */
+	private StatelessSession session;
+
+	/**
+	 * Фабрика сессий, которой принадлежит сессия.
+	 */
+	private SessionFactory sessionFactory;
+
+	/**
+	 * Признак того, что операция была перезапущена.
+	 */
+	private boolean restarted;
+
+	/**
+	 * Последняя возникшая ошибка.
+	 */
+	private Exception lastError;
+
+	/**
+	 * Действия, выполняемые после подтверждения транзакции попытки.
+	 */
+	private final List<Runnable> afterCommit = new ArrayList<Runnable>();
+
+	/**
+	 * Проверка, что контекст активен, то есть с ним связана открытая сессия.
+	 *
+	 * @return <code>true</code>, если контекст активен.
+	 */
+	public boolean isActive() {
+		return session != null;
+	}
+
+	/**
+	 * Возвращает текущую сессию, связанную с контекстом.
+	 *
+	 * @return Объект сессии.
+	 * @throws IllegalStateException Если сессии нет.
+	 */
+	public StatelessSession getSession() throws IllegalStateException {
+		if (session == null)
+			throw new IllegalStateException("Stateless context is not active.");
+		return session;
+	}
+
+	/**
+	 * Устанавливает объект сессии для контекста.
+	 *
+	 * @param session        Сессия.
+	 * @param sessionFactory Фабрика сессий.
+	 */
+	void activate(final StatelessSession session, final SessionFactory sessionFactory) {
+		this.session = session;
+		this.sessionFactory = sessionFactory;
+		this.lastError = null;
+		this.afterCommit.clear();
+	}
+
+	/**
+	 * Выполняет действия, отложенные до подтверждения транзакции.
+	 */
+	void committed() {
+		for (final Runnable action : afterCommit)
+			action.run();
+		afterCommit.clear();
+	}
+
+	/**
+	 * Деактивирует контекст, очищая его.
+	 */
+	void deactivate() {
+		session = null;
+	}
+
+	/**
+	 * Удаляет объект из кеша второго уровня. Сессия без состояния кеш не обновляет, поэтому
+	 * изменения через нее должны сопровождаться вытеснением устаревших копий. Если идентификатор
+	 * объекта определить нельзя, вытесняется весь регион типа. Вытеснение повторяется после
+	 * подтверждения транзакции: до него другие сессии могли снова закешировать старое значение.
+	 *
+	 * @param type   Тип объекта.
+	 * @param object Измененный объект.
+	 */
+	public void evict(final Class<?> type, final Object object) {
+		if (sessionFactory == null) return;
+		final Cache cache = sessionFactory.getCache();
+		if (cache == null) return;
+		final Serializable id = object instanceof BaseDomainObject ? ((BaseDomainObject) object).getId() : null;
+		evict(cache, type, id);
+		afterCommit.add(new Runnable() {
+			@Override
+			public void run() {
+				evict(cache, type, id);
+			}
+		});
+	}
+
+	/**
+	 * Отмечает изменение состава сущности после подтверждения транзакции, см. {@link EntityModifications}.
+	 * Отметка до подтверждения позволила бы параллельному подсчету закешировать старое количество
+	 * под новой версией.
+	 *
+	 * @param type Тип вставленного или удаленного объекта.
+	 */
+	public void touch(final Class<?> type) {
+		afterCommit.add(new Runnable() {
+			@Override
+			public void run() {
+				EntityModifications.touch(type.getName());
+			}
+		});
+	}
+
+	private static void evict(final Cache cache, final Class<?> type, final Serializable id) {
+		if (id != null)
+			cache.evictEntity(type, id);
+		else
+			cache.evictEntityRegion(type);
+	}
+
+	/**
+	 * Возвращает признак того, что операция была перезапущена.
+	 *
+	 * @return <code>true</code>, если операция была перезапущена.
+	 */
+	public boolean isRestarted() {
+		return restarted;
+	}
+
+	/**
+	 * Устанавливает признак, что операция была перезапущена.
+	 */
+	void restarted() {
+		this.restarted = true;
+	}
+
+	/**
+	 * Возвращает последнюю возникшую ошибку.
+	 *
+	 * @return Последняя возникшая ошибка.
+	 */
+	public Exception getLastError() {
+		return lastError;
+	}
+
+	/**
+	 * Устанавливает последнюю возникшую ошибку.
+	 *
+	 * @param value Последняя возникшая ошибка.
+	 */
+	void setLastError(final Exception value) {
+		this.lastError = value;
+	}
+
+}
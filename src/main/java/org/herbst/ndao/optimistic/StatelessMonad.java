@@ -0,0 +1,35 @@
+package org.herbst.ndao.optimistic;
+
+/**
+ * Операция с данными без сессионного кеша для массовой загрузки и обработки. Выполняется в транзакции
+ * с теми же правилами перезапуска, что и {@link Monad}.
+ *
+ * @see Database#executeStateless(StatelessMonad)
+ */
+public abstract class StatelessMonad {
+
+	/**
+	 * Реализация операции.
+	 *
+	 * @param cx Контекст, в котором выполняется операция.
+	 * @throws Exception Если во время выполнения операции возникла ошибка.
+	 */
+	public abstract void action(final StatelessContext cx) throws Exception;
+
+	/**
+	 * Обработчик успешного выполнения операции.
+	 *
+	 * @param cx Контекст, в котором выполняется операция.
+	 */
+	public void success(final StatelessContext cx) {
+	}
+
+	/**
+	 * Обработчик ошибки операции.
+	 *
+	 * @param cx Контекст, в котором выполняется операция.
+	 */
+	public void fail(final StatelessContext cx) {
+	}
+
+}
@@ -0,0 +1,98 @@
+package org.herbst.ndao.optimistic;
+
+import org.hibernate.Session;
+
+import javax.persistence.PersistenceException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Счетчик, значение которого разнесено по нескольким строкам {@link CounterStripe}. Каждое приращение
+ * изменяет случайно выбранную полосу одним запросом <code>UPDATE ... SET amount = amount + ?</code>,
+ * поэтому конкурирующие транзакции блокируют разные строки, а чтение суммирует все полосы.
+ * Подходит для часто изменяемых и редко читаемых счетчиков: просмотров, отметок и т.п.
+ */
+public class StripedCounter {
+
+	/**
+	 * Запрос приращения полосы.
+	 */
+	private final static String ADD_QUERY = "update CounterStripe s set s.amount = s.amount + :delta where s.id = :id";
+
+	/**
+	 * Запрос суммы полос.
+	 */
+	private final static String SUM_QUERY = "select sum(s.amount) from CounterStripe s where s.name = :name";
+
+	/**
+	 * Имя счетчика.
+	 */
+	private final String name;
+
+	/**
+	 * Количество полос.
+	 */
+	private final int stripes;
+
+	/**
+	 * Конструктор.
+	 *
+	 * @param name    Имя счетчика.
+	 * @param stripes Количество полос; чем больше конкурирующих писателей, тем больше полос нужно.
+	 */
+	public StripedCounter(final String name, int stripes) {
+		if (stripes <= 0)
+			throw new IllegalArgumentException("Stripe count must be positive: " + stripes);
+		this.name = name;
+		this.stripes = stripes;
+	}
+
+	/**
+	 * Увеличивает значение счетчика. Отсутствующая полоса создается; если ее одновременно создаст
+	 * другая транзакция, операция будет перезапущена из-за нарушения уникальности ключа.
+	 *
+	 * @param cx    Контекст операции.
+	 * @param delta Приращение, может быть отрицательным.
+	 * @throws PersistenceException Если возникла ошибка.
+	 */
+	public void add(final MonadicContext cx, long delta) throws PersistenceException {
+		final Session sx = cx.getSession();
+		final int stripe = ThreadLocalRandom.current().nextInt(stripes);
+		final int updated = sx.createQuery(ADD_QUERY)
+				.setParameter("delta", delta)
+				.setParameter("id", CounterStripe.id(name, stripe))
+				.executeUpdate();
+		if (updated == 0)
+			sx.save(new CounterStripe(name, stripe, delta));
+	}
+
+	/**
+	 * Возвращает значение счетчика - сумму всех полос.
+	 *
+	 * @param cx Контекст операции.
+	 * @return Значение счетчика.
+	 * @throws PersistenceException Если возникла ошибка.
+	 */
+	public long get(final MonadicContext cx) throws PersistenceException {
+		final Number sum = (Number) cx.getSession().createQuery(SUM_QUERY).setParameter("name", name).uniqueResult();
+		return sum != null ? sum.longValue() : 0;
+	}
+
+	/**
+	 * Возвращает имя счетчика.
+	 *
+	 * @return Имя счетчика.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Возвращает количество полос.
+	 *
+	 * @return Количество полос.
+	 */
+	public int getStripes() {
+		return stripes;
+	}
+
+}
@@ -5,6 +5,17 @@ package org.herbst.ndao.optimistic;
  */
 public abstract class SuccessCommitAction {
 
+    /**
+     * Возвращает ключ упорядочивания: при асинхронном выполнении, см. {@link CommitActionDispatcher},
+     * действия с одинаковым ключом выполняются в порядке добавления, действия без ключа - в порядке добавления
+     * внутри одной транзакции.
+     *
+     * @return Ключ упорядочивания или <code>null</code>.
+     */
+    public Object getOrderingKey() {
+        return null;
+    }
+
     /**
      * Реализация операции.
      *
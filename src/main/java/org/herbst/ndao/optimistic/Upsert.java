@@ -0,0 +1,172 @@
+package org.herbst.ndao.optimistic;
+
+import org.herbst.ndao.dialect.UpsertSupport;
+import org.hibernate.Session;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.engine.spi.IdentifierValue;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.jdbc.ReturningWork;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.type.Type;
+
+import javax.persistence.PersistenceException;
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Вставка или обновление объектов одним запросом на объект, который строит диалект {@link UpsertSupport}.
+ * Запросы отправляются в БД пачками. Существующая строка перезаписывается без проверки версии,
+ * версия увеличивается. Идентификатор объекта должен быть задан.
+ */
+final class Upsert {
+
+	/**
+	 * Описание сущности.
+	 */
+	private final AbstractEntityPersister persister;
+
+	/**
+	 * Индексы записываемых свойств.
+	 */
+	private final int[] properties;
+
+	/**
+	 * SQL запрос.
+	 */
+	private final String sql;
+
+	/**
+	 * Конструктор.
+	 *
+	 * @param factory Фабрика сессий.
+	 * @param type    Тип сущности.
+	 * @throws UnsupportedOperationException Если диалект не поддерживает вставку или обновление.
+	 */
+	Upsert(final SessionFactoryImplementor factory, final Class<?> type) throws UnsupportedOperationException {
+		this(factory, type, false);
+	}
+
+	/**
+	 * Конструктор.
+	 *
+	 * @param factory     Фабрика сессий.
+	 * @param type        Тип сущности.
+	 * @param keepVersion Записывать версию объекта как есть, а не увеличивать версию существующей строки.
+	 * @throws UnsupportedOperationException Если диалект не поддерживает вставку или обновление.
+	 */
+	Upsert(final SessionFactoryImplementor factory, final Class<?> type, boolean keepVersion) throws UnsupportedOperationException {
+		final Dialect dialect = factory.getDialect();
+		if (!(dialect instanceof UpsertSupport))
+			throw new UnsupportedOperationException("Dialect " + dialect.getClass().getName() + " does not support upsert");
+		this.persister = (AbstractEntityPersister) factory.getMetamodel().entityPersister(type);
+		final List<String> columns = new ArrayList<String>();
+		final List<Integer> sqlTypes = new ArrayList<Integer>();
+		final List<Integer> bound = new ArrayList<Integer>();
+		for (final int sqlType : persister.getIdentifierType().sqlTypes(factory))
+			sqlTypes.add(sqlType);
+		final boolean[] insertable = persister.getPropertyInsertability();
+		final Type[] types = persister.getPropertyTypes();
+		for (int i = 0; i < types.length; ++i) {
+			final String[] names = persister.getPropertyColumnNames(i);
+			if (!insertable[i] || names.length == 0) continue;
+			bound.add(i);
+			for (final String name : names)
+				columns.add(name);
+			for (final int sqlType : types[i].sqlTypes(factory))
+				sqlTypes.add(sqlType);
+		}
+		this.properties = new int[bound.size()];
+		for (int i = 0; i < properties.length; ++i)
+			properties[i] = bound.get(i);
+		final int[] parameterTypes = new int[sqlTypes.size()];
+		for (int i = 0; i < parameterTypes.length; ++i)
+			parameterTypes[i] = sqlTypes.get(i);
+		this.sql = ((UpsertSupport) dialect).getUpsertString(persister.getTableName(), persister.getIdentifierColumnNames(),
+				columns.toArray(new String[columns.size()]), persister.isVersioned() && !keepVersion ? persister.getVersionColumnName() : null, parameterTypes);
+	}
+
+	/**
+	 * Записывает объекты пачками. Отложенные изменения сессии сбрасываются в БД заранее, копии объектов
+	 * в сессии перечитываются, кеш второго уровня очищается сразу и после подтверждения транзакции.
+	 *
+	 * @param cx        Контекст операции.
+	 * @param objects   Записываемые объекты.
+	 * @param batchSize Размер пачки.
+	 * @return Отчет о записи.
+	 * @throws PersistenceException Если возникла ошибка.
+	 */
+	BatchReport execute(final MonadicContext cx, final Iterable<?> objects, final int batchSize) throws PersistenceException {
+		final Session sx = cx.getSession();
+		final SessionImplementor session = (SessionImplementor) sx;
+		final SessionFactoryImplementor factory = session.getFactory();
+		final Type[] types = persister.getPropertyTypes();
+		final List<Serializable> ids = new ArrayList<Serializable>();
+		final BatchReport report = new BatchReport();
+		final IdentifierValue unsavedValue = persister.getEntityMetamodel().getIdentifierProperty().getUnsavedValue();
+		sx.flush();
+		sx.doReturningWork(new ReturningWork<Void>() {
+			@Override
+			public Void execute(final Connection connection) throws SQLException {
+				final PreparedStatement ps = connection.prepareStatement(sql);
+				try {
+					long started = System.nanoTime();
+					int pending = 0;
+					for (final Object object : objects) {
+						final Serializable id = persister.getIdentifier(object, session);
+						// примитивный идентификатор нового объекта не null, а равен unsaved-value (0 у DomainObject)
+						if (id == null || Boolean.TRUE.equals(unsavedValue.isUnsaved(id)))
+							throw new IllegalArgumentException("Upsert requires an assigned identifier: " + persister.getEntityName());
+						ids.add(id);
+						final Object[] values = persister.getPropertyValues(object);
+						int index = 1;
+						persister.getIdentifierType().nullSafeSet(ps, id, index, session);
+						index += persister.getIdentifierType().getColumnSpan(factory);
+						for (final int property : properties) {
+							types[property].nullSafeSet(ps, values[property], index, session);
+							index += types[property].getColumnSpan(factory);
+						}
+						ps.addBatch();
+						if (++pending == batchSize) {
+							ps.executeBatch();
+							final long now = System.nanoTime();
+							report.add(pending, now - started);
+							started = now;
+							pending = 0;
+						}
+					}
+					if (pending > 0) {
+						ps.executeBatch();
+						report.add(pending, System.nanoTime() - started);
+					}
+					return null;
+				} finally {
+					ps.close();
+				}
+			}
+		});
+		for (final Serializable id : ids) {
+			final Object loaded = session.getPersistenceContext().getEntity(session.generateEntityKey(id, persister));
+			if (loaded != null) sx.refresh(loaded);
+		}
+		if (persister.hasCache())
+			for (final Serializable id : ids)
+				factory.getCache().evictEntity(persister.getEntityName(), id);
+		cx.addSuccessCommitAction(new SuccessCommitAction() {
+			@Override
+			public void action() throws Exception {
+				if (persister.hasCache())
+					for (final Serializable id : ids)
+						factory.getCache().evictEntity(persister.getEntityName(), id);
+				// вставка или обновление неизвестны, поэтому считаем, что состав изменился
+				EntityModifications.touch(persister.getEntityName());
+			}
+		});
+		return report;
+	}
+
+}
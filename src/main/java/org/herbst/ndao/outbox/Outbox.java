@@ -0,0 +1,39 @@
+package org.herbst.ndao.outbox;
+
+import org.herbst.ndao.optimistic.MonadicContext;
+
+import javax.persistence.PersistenceException;
+
+/**
+ * Транзакционный исходящий ящик. В отличие от {@link org.herbst.ndao.optimistic.SuccessCommitAction},
+ * сообщение записывается в БД в транзакции операции, поэтому не теряется, если процесс завершится
+ * между подтверждением транзакции и выполнением побочного эффекта. Доставку выполняет {@link OutboxRelay}.
+ */
+public final class Outbox {
+
+	private Outbox() {
+	}
+
+	/**
+	 * Записывает сообщение в исходящий ящик в транзакции операции.
+	 *
+	 * @param cx      Контекст транзакционной операции.
+	 * @param topic   Тема сообщения.
+	 * @param key     Ключ идемпотентности, вычисленный из данных операции: при повторе операции
+	 *                получатель отбросит сообщение с тем же ключом.
+	 * @param payload Содержимое сообщения.
+	 * @return Записанное сообщение.
+	 * @throws PersistenceException     Если возникла ошибка.
+	 * @throws IllegalArgumentException Если ключ не задан.
+	 */
+	public static OutboxMessage publish(final MonadicContext cx, final String topic, final String key, final String payload) throws PersistenceException {
+		if (!cx.isTransactional())
+			throw new IllegalStateException("Outbox messages require a transactional operation");
+		if (key == null || key.isEmpty())
+			throw new IllegalArgumentException("Outbox messages require an idempotency key");
+		final OutboxMessage message = new OutboxMessage(topic, key, payload);
+		cx.getSession().save(message);
+		return message;
+	}
+
+}
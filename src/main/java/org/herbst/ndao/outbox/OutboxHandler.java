@@ -0,0 +1,19 @@
+package org.herbst.ndao.outbox;
+
+import java.util.List;
+
+/**
+ * Получатель сообщений исходящего ящика. Доставка выполняется как минимум один раз: если обработчик
+ * выбросил исключение, транзакция удаления сообщений не подтвердилась или аренда пачки истекла
+ * до удаления, пачка будет доставлена повторно, поэтому получатель должен отбрасывать повторы по {@link OutboxMessage#getKey()}.
+ */
+public interface OutboxHandler {
+
+	/**
+	 * Доставляет пачку сообщений в порядке их записи.
+	 *
+	 * @param messages Сообщения.
+	 * @throws Exception Если доставка не удалась; пачка останется в ящике.
+	 */
+	void handle(List<OutboxMessage> messages) throws Exception;
+}
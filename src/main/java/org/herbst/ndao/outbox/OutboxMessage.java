@@ -0,0 +1,133 @@
+package org.herbst.ndao.outbox;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+
+/**
+ * Сообщение транзакционного исходящего ящика. Записывается в той же транзакции, что и изменения,
+ * о которых сообщает, и удаляется после доставки {@link OutboxRelay}. Сущность нужно зарегистрировать
+ * в {@link org.herbst.ndao.optimistic.DatabaseBuilder#withAnnotatedClass(Class)}.
+ */
+@Entity
+@Table(
+		name = "outbox",
+		indexes = @Index(name = "outbox_topic", columnList = "topic, id")
+)
+public class OutboxMessage {
+
+	/**
+	 * Максимальная длина содержимого сообщения.
+	 */
+	public final static int MAX_PAYLOAD = 1048576;
+
+	/**
+	 * Идентификатор; задает порядок доставки.
+	 */
+	private Long id;
+
+	/**
+	 * Тема сообщения.
+	 */
+	private String topic;
+
+	/**
+	 * Ключ идемпотентности, по которому получатель отбрасывает повторную доставку.
+	 */
+	private String key;
+
+	/**
+	 * Содержимое сообщения.
+	 */
+	private String payload;
+
+	/**
+	 * Время создания в миллисекундах.
+	 */
+	private long created;
+
+	/**
+	 * Срок аренды в миллисекундах, до которого сообщение доставляет захвативший его {@link OutboxRelay};
+	 * 0 - сообщение свободно.
+	 */
+	private long leaseUntil;
+
+	/**
+	 * Конструктор для Hibernate.
+	 */
+	protected OutboxMessage() {
+	}
+
+	/**
+	 * Конструктор.
+	 *
+	 * @param topic   Тема сообщения.
+	 * @param key     Ключ идемпотентности.
+	 * @param payload Содержимое сообщения.
+	 */
+	public OutboxMessage(final String topic, final String key, final String payload) {
+		this.topic = topic;
+		this.key = key;
+		this.payload = payload;
+		this.created = System.currentTimeMillis();
+	}
+
+	@Id
+	@GeneratedValue
+	public Long getId() {
+		return id;
+	}
+
+	public void setId(final Long value) {
+		this.id = value;
+	}
+
+	@Column(nullable = false, length = 255)
+	public String getTopic() {
+		return topic;
+	}
+
+	public void setTopic(final String value) {
+		this.topic = value;
+	}
+
+	@Column(name = "idempotency_key", nullable = false, unique = true, length = 255)
+	public String getKey() {
+		return key;
+	}
+
+	public void setKey(final String value) {
+		this.key = value;
+	}
+
+	@Column(length = MAX_PAYLOAD)
+	public String getPayload() {
+		return payload;
+	}
+
+	public void setPayload(final String value) {
+		this.payload = value;
+	}
+
+	@Column(nullable = false)
+	public long getCreated() {
+		return created;
+	}
+
+	public void setCreated(long value) {
+		this.created = value;
+	}
+
+	@Column(name = "lease_until", nullable = false)
+	public long getLeaseUntil() {
+		return leaseUntil;
+	}
+
+	public void setLeaseUntil(long value) {
+		this.leaseUntil = value;
+	}
+
+}
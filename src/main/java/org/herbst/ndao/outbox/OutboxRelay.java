@@ -0,0 +1,261 @@
+package org.herbst.ndao.outbox;
+
+import org.herbst.ndao.optimistic.Database;
+import org.herbst.ndao.optimistic.HerbstException;
+import org.herbst.ndao.optimistic.Monad;
+import org.herbst.ndao.optimistic.MonadicContext;
+import org.herbst.ndao.utils.NamedThreadFactory;
+import org.hibernate.LockMode;
+import org.hibernate.query.Query;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Фоновая доставка сообщений исходящего ящика. Каждый проход состоит из трех шагов:
+ * <ol>
+ *     <li>короткая транзакция выбирает пачку самых старых свободных сообщений с блокировкой
+ *     <code>FOR UPDATE SKIP LOCKED</code> и захватывает их, записывая срок аренды в <code>lease_until</code>;</li>
+ *     <li>пачка передается обработчику вне транзакции, поэтому медленный получатель не держит
+ *     блокировки и соединение;</li>
+ *     <li>вторая короткая транзакция удаляет доставленные сообщения одним запросом. Если обработчик
+ *     выбросил исключение, аренда снимается, и пачка доставляется повторно следующим проходом.</li>
+ * </ol>
+ * Сообщения, захваченные процессом, который завершился до удаления, снова становятся доступными после
+ * истечения аренды, поэтому аренда должна быть больше времени доставки пачки с запасом на расхождение часов.
+ * Несколько экземпляров, в том числе в разных процессах, разбирают ящик параллельно, не мешая друг другу.
+ * Пока выбираются полные пачки, проходы идут без пауз. На диалектах без SKIP LOCKED (HSQLDB) захват
+ * использует обычную блокировку и выполняется по очереди.
+ */
+public class OutboxRelay {
+
+	private final static Logger log = LoggerFactory.getLogger(OutboxRelay.class);
+
+	/**
+	 * Срок аренды пачки по умолчанию в миллисекундах.
+	 */
+	public final static long DEFAULT_LEASE = 60000;
+
+	/**
+	 * База данных.
+	 */
+	private final Database database;
+
+	/**
+	 * Тема или <code>null</code> для всех тем.
+	 */
+	private final String topic;
+
+	/**
+	 * Обработчик.
+	 */
+	private final OutboxHandler handler;
+
+	/**
+	 * Размер пачки.
+	 */
+	private final int batchSize;
+
+	/**
+	 * Пауза между проходами, если ящик пуст, в миллисекундах.
+	 */
+	private final long interval;
+
+	/**
+	 * Срок аренды пачки в миллисекундах.
+	 */
+	private final long lease;
+
+	/**
+	 * Поток доставки.
+	 */
+	private ExecutorService worker;
+
+	/**
+	 * Признак работы фоновой доставки.
+	 */
+	private volatile boolean running;
+
+	/**
+	 * Конструктор.
+	 *
+	 * @param database  База данных.
+	 * @param topic     Тема или <code>null</code> для всех тем.
+	 * @param handler   Обработчик.
+	 * @param batchSize Размер пачки.
+	 * @param interval  Пауза между проходами, если ящик пуст, в миллисекундах.
+	 */
+	public OutboxRelay(final Database database, final String topic, final OutboxHandler handler, int batchSize, long interval) {
+		this(database, topic, handler, batchSize, interval, DEFAULT_LEASE);
+	}
+
+	/**
+	 * Конструктор.
+	 *
+	 * @param database  База данных.
+	 * @param topic     Тема или <code>null</code> для всех тем.
+	 * @param handler   Обработчик.
+	 * @param batchSize Размер пачки.
+	 * @param interval  Пауза между проходами, если ящик пуст, в миллисекундах.
+	 * @param lease     Срок аренды пачки в миллисекундах.
+	 */
+	public OutboxRelay(final Database database, final String topic, final OutboxHandler handler, int batchSize, long interval, long lease) {
+		if (batchSize <= 0)
+			throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+		if (lease <= 0)
+			throw new IllegalArgumentException("Lease must be positive: " + lease);
+		this.database = database;
+		this.topic = topic;
+		this.handler = handler;
+		this.batchSize = batchSize;
+		this.interval = interval;
+		this.lease = lease;
+	}
+
+	/**
+	 * Запускает фоновую доставку.
+	 */
+	public synchronized void start() {
+		if (worker != null) return;
+		running = true;
+		worker = Executors.newSingleThreadExecutor(new NamedThreadFactory("ndao-outbox"));
+		worker.execute(new Runnable() {
+			@Override
+			public void run() {
+				loop();
+			}
+		});
+	}
+
+	/**
+	 * Останавливает фоновую доставку, дожидаясь окончания текущего прохода.
+	 *
+	 * @param timeout Время ожидания в миллисекундах.
+	 */
+	public synchronized void stop(long timeout) {
+		if (worker == null) return;
+		running = false;
+		worker.shutdown();
+		try {
+			worker.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		worker = null;
+	}
+
+	/**
+	 * Выполняет один проход: захватывает, доставляет и удаляет одну пачку сообщений.
+	 *
+	 * @return Количество доставленных сообщений.
+	 * @throws HerbstException Если захват, доставка или удаление не удались.
+	 */
+	public int relay() throws HerbstException {
+		final long leaseUntil = System.currentTimeMillis() + lease;
+		final List<OutboxMessage> messages = claim(leaseUntil);
+		if (messages.isEmpty()) return 0;
+		final List<Long> ids = new ArrayList<Long>(messages.size());
+		for (final OutboxMessage message : messages)
+			ids.add(message.getId());
+		try {
+			handler.handle(messages);
+		} catch (Exception ex) {
+			release(ids, leaseUntil);
+			throw new HerbstException(ex, "#outbox-delivery-error", "reason", ex.getMessage());
+		}
+		database.execute(new Monad() {
+			@Override
+			public void action(final MonadicContext cx) throws Exception {
+				cx.getSession().createQuery("delete from OutboxMessage m where m.id in (:ids)")
+						.setParameterList("ids", ids)
+						.executeUpdate();
+			}
+		});
+		return messages.size();
+	}
+
+	/**
+	 * Захватывает пачку свободных сообщений, записывая им срок аренды.
+	 *
+	 * @param leaseUntil Срок аренды.
+	 * @return Захваченные сообщения, отсоединенные от сессии.
+	 * @throws HerbstException Если захват не удался.
+	 */
+	private List<OutboxMessage> claim(final long leaseUntil) throws HerbstException {
+		final List<OutboxMessage> claimed = new ArrayList<OutboxMessage>();
+		database.execute(new Monad() {
+			@Override
+			public void action(final MonadicContext cx) throws Exception {
+				claimed.clear();
+				final Query<OutboxMessage> query = topic == null
+						? cx.getSession().createQuery("from OutboxMessage m where m.leaseUntil < :now order by m.id", OutboxMessage.class)
+						: cx.getSession().createQuery("from OutboxMessage m where m.topic = :topic and m.leaseUntil < :now order by m.id", OutboxMessage.class)
+								.setParameter("topic", topic);
+				final List<OutboxMessage> messages = query
+						.setParameter("now", System.currentTimeMillis())
+						.setLockMode("m", LockMode.UPGRADE_SKIPLOCKED)
+						.setMaxResults(batchSize)
+						.list();
+				for (final OutboxMessage message : messages)
+					message.setLeaseUntil(leaseUntil);
+				claimed.addAll(messages);
+			}
+		});
+		return claimed;
+	}
+
+	/**
+	 * Снимает аренду с недоставленной пачки, если ее не перехватил другой экземпляр.
+	 *
+	 * @param ids        Идентификаторы сообщений.
+	 * @param leaseUntil Срок аренды, записанный при захвате.
+	 */
+	private void release(final List<Long> ids, final long leaseUntil) {
+		try {
+			database.execute(new Monad() {
+				@Override
+				public void action(final MonadicContext cx) throws Exception {
+					cx.getSession().createQuery("update OutboxMessage m set m.leaseUntil = 0 where m.id in (:ids) and m.leaseUntil = :lease")
+							.setParameterList("ids", ids)
+							.setParameter("lease", leaseUntil)
+							.executeUpdate();
+				}
+			});
+		} catch (HerbstException ex) {
+			// пачка станет доступной после истечения аренды
+			log.warn("Could not release outbox lease", ex);
+		}
+	}
+
+	/**
+	 * Цикл фоновой доставки.
+	 */
+	private void loop() {
+		while (running) {
+			long pause;
+			try {
+				pause = relay() == batchSize ? 0 : interval;
+			} catch (HerbstException ex) {
+				log.error("Outbox delivery failed", ex);
+				pause = interval;
+			} catch (RuntimeException ex) {
+				// ошибка вне операции (например, закрытая фабрика сессий) не должна останавливать поток доставки
+				log.error("Outbox delivery failed", ex);
+				pause = interval;
+			}
+			if (pause > 0) {
+				try {
+					Thread.sleep(pause);
+				} catch (InterruptedException ex) {
+					return;
+				}
+			}
+		}
+	}
+
+}
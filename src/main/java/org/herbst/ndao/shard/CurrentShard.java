@@ -0,0 +1,48 @@
+package org.herbst.ndao.shard;
+
+/**
+ * Номер шарда операции, которую выполняет текущий поток через {@link ShardedDatabase}. По нему генераторы
+ * идентификаторов, например {@link org.herbst.ndao.optimistic.PooledIdGenerator}, выдают идентификаторы
+ * того виртуального шарда, на который направлена операция, даже если физическая база размещает несколько шардов.
+ */
+public final class CurrentShard {
+
+    private static final ThreadLocal<Integer> current = new ThreadLocal<Integer>();
+
+    private CurrentShard() {
+    }
+
+    /**
+     * Возвращает номер шарда текущей операции.
+     *
+     * @return Номер шарда или <code>null</code>, если операция выполняется не через {@link ShardedDatabase}.
+     */
+    public static Integer get() {
+        return current.get();
+    }
+
+    /**
+     * Устанавливает номер шарда операции.
+     *
+     * @param shard Номер шарда.
+     * @return Предыдущий номер шарда для {@link #restore(Integer)}.
+     */
+    static Integer enter(int shard) {
+        Integer previous = current.get();
+        current.set(shard);
+        return previous;
+    }
+
+    /**
+     * Восстанавливает номер шарда, действовавший до {@link #enter(int)}.
+     *
+     * @param previous Предыдущий номер шарда или <code>null</code>.
+     */
+    static void restore(Integer previous) {
+        if (previous == null) {
+            current.remove();
+        } else {
+            current.set(previous);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package org.herbst.ndao.shard;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Слияние нескольких упорядоченных последовательностей в одну упорядоченную. Следующий элемент
+ * выбирается за O(log k), где k - количество последовательностей; элементы источников читаются
+ * по мере выдачи, поэтому источники могут быть ленивыми. При равенстве элементов раньше выдается
+ * элемент источника с меньшим номером.
+ */
+public class MergeIterator<T> implements Iterator<T> {
+
+    /**
+     * Текущий элемент источника.
+     */
+    private final static class Head<T> {
+
+        private final T value;
+
+        private final int source;
+
+        Head(T value, int source) {
+            this.value = value;
+            this.source = source;
+        }
+    }
+
+    private final List<? extends Iterator<? extends T>> sources;
+
+    private final PriorityQueue<Head<T>> heads;
+
+    /**
+     * Конструктор.
+     *
+     * @param sources    Источники, каждый упорядочен по <code>comparator</code>.
+     * @param comparator Порядок.
+     */
+    public MergeIterator(List<? extends Iterator<? extends T>> sources, final Comparator<? super T> comparator) {
+        this.sources = sources;
+        this.heads = new PriorityQueue<Head<T>>(Math.max(1, sources.size()), new Comparator<Head<T>>() {
+            @Override
+            public int compare(Head<T> a, Head<T> b) {
+                int result = comparator.compare(a.value, b.value);
+                return result != 0 ? result : Integer.compare(a.source, b.source);
+            }
+        });
+        for (int i = 0; i < sources.size(); i++) {
+            advance(i);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !heads.isEmpty();
+    }
+
+    @Override
+    public T next() {
+        Head<T> head = heads.poll();
+        if (head == null) {
+            throw new NoSuchElementException();
+        }
+        advance(head.source);
+        return head.value;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    private void advance(int source) {
+        Iterator<? extends T> iterator = sources.get(source);
+        if (iterator.hasNext()) {
+            heads.add(new Head<T>(iterator.next(), source));
+        }
+    }
+}
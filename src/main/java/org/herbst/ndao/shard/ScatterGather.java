@@ -0,0 +1,219 @@
+package org.herbst.ndao.shard;
+
+import org.herbst.ndao.optimistic.Database;
+import org.herbst.ndao.optimistic.HerbstException;
+import org.herbst.ndao.optimistic.Monad;
+import org.herbst.ndao.optimistic.MonadicContext;
+import org.herbst.ndao.optimistic.Persister;
+import org.herbst.ndao.optimistic.QueryParams;
+import org.herbst.ndao.utils.NamedThreadFactory;
+import org.hibernate.Query;
+import org.hibernate.jpa.QueryHints;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * Параллельное выполнение запроса на всех физических базах {@link ShardedDatabase} с объединением результатов;
+ * база, в которой размещено несколько виртуальных шардов, опрашивается один раз.
+ * Запросы выполняются на ограниченном пуле потоков; шард, не ответивший за отведенное время или
+ * завершившийся ошибкой, исключается из результата, а результат помечается как частичный, см. {@link ShardResult}.
+ * Отмена ожидания не прерывает запрос к шарду, поэтому всем запросам операции на шарде задается таймаут JDBC
+ * по оставшемуся времени, задача, не начавшаяся до срока, не выполняется, а ошибка не перезапускает операцию.
+ * Упорядоченные списки объединяются слиянием ({@link MergeIterator}) с учетом ограничения количества строк.
+ */
+public class ScatterGather {
+
+    private final ShardedDatabase database;
+
+    private final ExecutorService pool;
+
+    private final long timeout;
+
+    /**
+     * Конструктор.
+     *
+     * @param database Шардированная база данных.
+     * @param threads  Количество потоков, одновременно выполняющих запросы к шардам.
+     * @param timeout  Время ожидания ответа шардов в миллисекундах.
+     */
+    public ScatterGather(ShardedDatabase database, int threads, long timeout) {
+        this.database = database;
+        this.pool = Executors.newFixedThreadPool(threads, new NamedThreadFactory("ndao-scatter"));
+        this.timeout = timeout;
+    }
+
+    /**
+     * Выполняет запрос на всех шардах.
+     *
+     * @param function Запрос.
+     * @return Результаты по номерам ответивших шардов.
+     */
+    public <R> ShardResult<Map<Integer, R>> scatter(final ShardFunction<R> function) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        Map<Integer, CompletableFuture<R>> futures = new LinkedHashMap<Integer, CompletableFuture<R>>();
+        for (final Map.Entry<Integer, Database> physical : database.getPhysicalShards().entrySet()) {
+            final int shard = physical.getKey();
+            futures.put(shard, CompletableFuture.supplyAsync(new Supplier<R>() {
+                @Override
+                public R get() {
+                    final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remaining <= 0) {
+                        throw new CompletionException(new TimeoutException("Shard " + shard + " was not queried in time"));
+                    }
+                    final List<R> result = new ArrayList<R>(1);
+                    try {
+                        // одна попытка: перезапуск не уложится в срок, а его результат все равно не будет ожидаться
+                        physical.getValue().execute(false, true, new Monad() {
+                            @Override
+                            public void action(MonadicContext cx) throws Exception {
+                                cx.getSession().setProperty(QueryHints.SPEC_HINT_TIMEOUT, queryTimeout(remaining));
+                                result.clear();
+                                result.add(function.apply(shard, cx, remaining));
+                            }
+                        }, 1);
+                    } catch (HerbstException e) {
+                        throw new CompletionException(e);
+                    }
+                    return result.get(0);
+                }
+            }, pool));
+        }
+        Map<Integer, R> values = new LinkedHashMap<Integer, R>();
+        Map<Integer, Throwable> failures = new HashMap<Integer, Throwable>();
+        for (Map.Entry<Integer, CompletableFuture<R>> entry : futures.entrySet()) {
+            try {
+                values.put(entry.getKey(), entry.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+            } catch (TimeoutException e) {
+                entry.getValue().cancel(false);
+                failures.put(entry.getKey(), e);
+            } catch (ExecutionException e) {
+                failures.put(entry.getKey(), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failures.put(entry.getKey(), e);
+            }
+        }
+        return new ShardResult<Map<Integer, R>>(values, failures);
+    }
+
+    /**
+     * Выполняет HQL запрос на всех шардах и объединяет упорядоченные результаты.
+     *
+     * @param query      HQL запрос с ORDER BY.
+     * @param params     Параметры запроса или <code>null</code>.
+     * @param comparator Порядок, совпадающий с ORDER BY запроса.
+     * @param limit      Максимальное количество строк результата; 0 - без ограничения.
+     * @return Объединенный список.
+     */
+    public <T> ShardResult<List<T>> list(final String query, final Map<String, ?> params, Comparator<? super T> comparator, final int limit) {
+        ShardResult<Map<Integer, List<T>>> result = scatter(new ShardFunction<List<T>>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public List<T> apply(int shard, MonadicContext cx, long timeout) throws Exception {
+                Query<?> hql = cx.getSession().createQuery(query);
+                if (params != null) QueryParams.bind(hql, params);
+                if (limit > 0) hql.setMaxResults(limit);
+                return (List<T>) hql.list();
+            }
+        });
+        return new ShardResult<List<T>>(merge(result.getValue(), comparator, limit), result.getFailures());
+    }
+
+    /**
+     * Выполняет запрос через {@link Persister} на всех шардах и объединяет упорядоченные результаты.
+     *
+     * @param function   Запрос, возвращающий упорядоченный список не длиннее <code>limit</code>.
+     * @param comparator Порядок результатов запроса.
+     * @param limit      Максимальное количество строк результата; 0 - без ограничения.
+     * @return Объединенный список.
+     */
+    public <T> ShardResult<List<T>> list(ShardFunction<List<T>> function, Comparator<? super T> comparator, int limit) {
+        ShardResult<Map<Integer, List<T>>> result = scatter(function);
+        return new ShardResult<List<T>>(merge(result.getValue(), comparator, limit), result.getFailures());
+    }
+
+    /**
+     * Суммирует скалярный числовой HQL запрос, например <code>select count(*) ...</code>, по всем шардам.
+     *
+     * @param query  HQL запрос.
+     * @param params Параметры запроса или <code>null</code>.
+     * @return Сумма.
+     */
+    public ShardResult<Long> sum(final String query, final Map<String, ?> params) {
+        ShardResult<Map<Integer, Number>> result = scatter(new ShardFunction<Number>() {
+            @Override
+            public Number apply(int shard, MonadicContext cx, long timeout) throws Exception {
+                Query<?> hql = cx.getSession().createQuery(query);
+                if (params != null) QueryParams.bind(hql, params);
+                return (Number) hql.uniqueResult();
+            }
+        });
+        return new ShardResult<Long>(total(result.getValue()), result.getFailures());
+    }
+
+    /**
+     * Подсчитывает все объекты управляемого типа по всем шардам, см. {@link Persister#countAll(MonadicContext)}.
+     *
+     * @param persister Класс доступа к объектам.
+     * @return Количество объектов.
+     */
+    public ShardResult<Long> countAll(final Persister<?, ?> persister) {
+        ShardResult<Map<Integer, Number>> result = scatter(new ShardFunction<Number>() {
+            @Override
+            public Number apply(int shard, MonadicContext cx, long timeout) throws Exception {
+                return persister.countAll(cx);
+            }
+        });
+        return new ShardResult<Long>(total(result.getValue()), result.getFailures());
+    }
+
+    /**
+     * Останавливает пул потоков.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Переводит оставшееся время в таймаут запросов: Hibernate округляет его до целых секунд,
+     * а нулевой таймаут JDBC означает его отсутствие, поэтому время округляется вверх.
+     */
+    private static int queryTimeout(long remaining) {
+        return (int) Math.min(Integer.MAX_VALUE / 1000, (remaining + 999) / 1000) * 1000;
+    }
+
+    private static <T> List<T> merge(Map<Integer, List<T>> lists, Comparator<? super T> comparator, int limit) {
+        List<Iterator<T>> sources = new ArrayList<Iterator<T>>(lists.size());
+        for (List<T> list : lists.values()) {
+            sources.add(list.iterator());
+        }
+        List<T> merged = new ArrayList<T>();
+        MergeIterator<T> iterator = new MergeIterator<T>(sources, comparator);
+        while (iterator.hasNext() && (limit <= 0 || merged.size() < limit)) {
+            merged.add(iterator.next());
+        }
+        return merged;
+    }
+
+    private static long total(Map<Integer, Number> values) {
+        long total = 0;
+        for (Number value : values.values()) {
+            if (value != null) total += value.longValue();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,22 @@
+package org.herbst.ndao.shard;
+
+import org.herbst.ndao.optimistic.MonadicContext;
+
+/**
+ * Запрос, выполняемый на каждом шарде в операции только для чтения, см. {@link ScatterGather#scatter(ShardFunction)}.
+ * Запросам сессии операции уже задан таймаут по оставшемуся времени; работа вне сессии должна сама
+ * укладываться в переданное время.
+ */
+public interface ShardFunction<R> {
+
+    /**
+     * Выполняет запрос на шарде.
+     *
+     * @param shard   Номер шарда.
+     * @param cx      Контекст операции на шарде.
+     * @param timeout Время до окончания ожидания результатов в миллисекундах.
+     * @return Результат шарда.
+     * @throws Exception Если возникла ошибка.
+     */
+    R apply(int shard, MonadicContext cx, long timeout) throws Exception;
+}
@@ -0,0 +1,322 @@
+package org.herbst.ndao.shard;
+
+import org.herbst.ndao.optimistic.BaseDomainObject;
+import org.herbst.ndao.optimistic.Database;
+import org.herbst.ndao.optimistic.HerbstException;
+import org.herbst.ndao.optimistic.Monad;
+import org.herbst.ndao.optimistic.MonadicContext;
+import org.herbst.ndao.optimistic.PooledIdGenerator;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.id.IdentifierGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Перенос виртуального шарда {@link ShardedDatabase} в другую физическую базу данных без изменения
+ * идентификаторов и почти без остановки:
+ * <ol>
+ *     <li>строки шарда (диапазон глобальных идентификаторов) копируются пачками по возрастанию идентификатора;</li>
+ *     <li>проходы догоняющей синхронизации сравнивают пары (идентификатор, версия) источника и приемника,
+ *     обновляют измененные строки приемника на месте с версией источника и удаляют из приемника удаленные,
+ *     пока изменений не станет мало;</li>
+ *     <li>шард приостанавливается ({@link ShardedDatabase#freeze(int, long)}), последний проход переносит
+ *     оставшиеся изменения, sequence шарда {@link PooledIdGenerator} в новой базе продвигается за все
+ *     идентификаторы, выданные в старой, шард переключается на новую базу и возобновляется;</li>
+ *     <li>строки шарда удаляются из старой базы.</li>
+ * </ol>
+ * Переносятся только столбцы собственных таблиц сущностей; типы нужно перечислять так, чтобы
+ * родительские сущности шли раньше дочерних: строки копируются в этом порядке, а удаляются в обратном,
+ * поэтому внешние ключи между типами не нарушаются. Пока старые строки не удалены, {@link ScatterGather}
+ * может вернуть их дважды.
+ */
+public class ShardMigrator {
+
+    private final static Logger log = LoggerFactory.getLogger(ShardMigrator.class);
+
+    private final ShardedDatabase database;
+
+    private final List<Class<? extends BaseDomainObject<?>>> types;
+
+    private int batchSize = 1000;
+
+    private int catchUpThreshold = 100;
+
+    private int maxPasses = 10;
+
+    private long freezeTimeout = 5000;
+
+    /**
+     * Конструктор.
+     *
+     * @param database Шардированная база данных.
+     * @param types    Переносимые типы сущностей с глобальными идентификаторами, родительские раньше дочерних.
+     */
+    public ShardMigrator(ShardedDatabase database, List<Class<? extends BaseDomainObject<?>>> types) {
+        this.database = database;
+        this.types = new ArrayList<Class<? extends BaseDomainObject<?>>>(types);
+    }
+
+    /**
+     * Устанавливает размер пачки копирования.
+     */
+    public ShardMigrator withBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Устанавливает количество изменений за проход, при котором догоняющая синхронизация заканчивается
+     * и шард приостанавливается, и максимальное количество проходов до приостановки.
+     */
+    public ShardMigrator withCatchUp(int threshold, int maxPasses) {
+        this.catchUpThreshold = threshold;
+        this.maxPasses = maxPasses;
+        return this;
+    }
+
+    /**
+     * Устанавливает время ожидания выполняющихся операций шарда при приостановке в миллисекундах.
+     */
+    public ShardMigrator withFreezeTimeout(long freezeTimeout) {
+        this.freezeTimeout = freezeTimeout;
+        return this;
+    }
+
+    /**
+     * Переносит виртуальный шард в другую физическую базу данных.
+     *
+     * @param shard  Номер шарда.
+     * @param target Новая база данных шарда.
+     * @throws HerbstException       Если при переносе данных возникли ошибки; шард остается в старой базе.
+     * @throws IllegalStateException Если не удалось приостановить шард.
+     */
+    public void migrate(int shard, Database target) throws HerbstException {
+        Database source = database.getShard(shard);
+        if (source == target) return;
+        int passes = 0;
+        int changed;
+        do {
+            changed = sync(shard, source, target);
+            passes++;
+            log.info("Shard {} migration pass {}: {} rows copied", shard, passes, changed);
+        } while (changed > catchUpThreshold && passes < maxPasses);
+        if (!database.freeze(shard, freezeTimeout)) {
+            throw new IllegalStateException("Unable to freeze shard " + shard + " in " + freezeTimeout + " ms");
+        }
+        try {
+            changed = sync(shard, source, target);
+            moveSequences(shard, source, target);
+            database.remap(shard, target);
+            log.info("Shard {} switched to the new database, {} rows copied while frozen", shard, changed);
+        } finally {
+            database.unfreeze(shard);
+        }
+        cleanup(shard, source);
+    }
+
+    /**
+     * Выполняет один проход синхронизации шарда по всем типам.
+     *
+     * @param shard  Номер шарда.
+     * @param source Исходная база данных.
+     * @param target База данных приемник.
+     * @return Количество скопированных и удаленных в приемнике строк.
+     * @throws HerbstException Если возникла ошибка.
+     */
+    public int sync(int shard, Database source, Database target) throws HerbstException {
+        int changed = 0;
+        List<List<Long>> removed = new ArrayList<List<Long>>();
+        for (Class<? extends BaseDomainObject<?>> type : types) {
+            List<Long> ids = new ArrayList<Long>();
+            changed += sync(type, shard, source, target, ids);
+            removed.add(ids);
+        }
+        // удаленные строки убираем, начиная с дочерних сущностей
+        for (int i = types.size() - 1; i >= 0; i--) {
+            final Class<? extends BaseDomainObject<?>> type = types.get(i);
+            final List<Long> ids = removed.get(i);
+            for (int from = 0; from < ids.size(); from += batchSize) {
+                final List<Long> batch = ids.subList(from, Math.min(ids.size(), from + batchSize));
+                target.execute(new Monad() {
+                    @Override
+                    public void action(MonadicContext cx) throws Exception {
+                        delete(cx, type, batch);
+                    }
+                });
+            }
+            changed += ids.size();
+        }
+        return changed;
+    }
+
+    /**
+     * Копирует измененные строки типа и собирает идентификаторы строк, которых больше нет в источнике.
+     *
+     * @return Количество скопированных строк.
+     */
+    private int sync(final Class<? extends BaseDomainObject<?>> type, int shard, Database source, Database target, List<Long> removed) throws HerbstException {
+        final long upper = upper(shard);
+        long after = lower(shard) - 1;
+        int changed = 0;
+        for (;;) {
+            Map<Long, Long> sourceKeys = keys(source, type, after, upper, batchSize);
+            // после последней пачки источника приемник проверяется до конца диапазона, иначе строки,
+            // удаленные из хвоста источника, в приемнике останутся
+            long last = sourceKeys.size() < batchSize ? upper : Collections.max(sourceKeys.keySet());
+            Map<Long, Long> targetKeys = keys(target, type, after, last, 0);
+            final List<Long> copied = new ArrayList<Long>();
+            for (Map.Entry<Long, Long> key : sourceKeys.entrySet()) {
+                if (!key.getValue().equals(targetKeys.get(key.getKey()))) copied.add(key.getKey());
+            }
+            for (Long id : targetKeys.keySet()) {
+                if (!sourceKeys.containsKey(id)) removed.add(id);
+            }
+            final List<Object> objects = load(source, type, copied);
+            if (!objects.isEmpty()) {
+                // строка обновляется на месте, чтобы не трогать ссылающиеся на нее строки, а версия
+                // записывается из источника, чтобы следующий проход не считал строку измененной
+                target.execute(new Monad() {
+                    @Override
+                    public void action(MonadicContext cx) throws Exception {
+                        BaseDomainObject.copyAll(cx, type, objects);
+                    }
+                });
+                changed += objects.size();
+            }
+            if (sourceKeys.size() < batchSize) return changed;
+            after = last;
+        }
+    }
+
+    /**
+     * Продвигает sequence шарда в новой базе за идентификаторы, выданные и зарезервированные в старой,
+     * и за наибольший перенесенный идентификатор, чтобы новые идентификаторы шарда не совпали с перенесенными.
+     */
+    private void moveSequences(final int shard, Database source, Database target) throws HerbstException {
+        for (final Class<? extends BaseDomainObject<?>> type : types) {
+            final long[] limit = new long[1];
+            source.execute(new Monad() {
+                @Override
+                public void action(MonadicContext cx) throws Exception {
+                    PooledIdGenerator generator = generator(cx, type);
+                    if (generator != null) limit[0] = generator.reservedLimit(cx.getSession(), shard);
+                }
+            });
+            target.execute(new Monad() {
+                @Override
+                public void action(MonadicContext cx) throws Exception {
+                    String id = cx.getSession().getSessionFactory().getClassMetadata(type).getIdentifierPropertyName();
+                    Number max = (Number) cx.getSession()
+                            .createQuery("select max(e." + id + ") from " + type.getName() + " e where e." + id
+                                    + " >= :lower and e." + id + " <= :upper")
+                            .setParameter("lower", lower(shard))
+                            .setParameter("upper", upper(shard))
+                            .uniqueResult();
+                    if (max != null) limit[0] = Math.max(limit[0], GlobalShardIdUtils.getLocalId(max.longValue()) + 1);
+                }
+            });
+            // отдельной операцией: sequence может создаваться в изолированной транзакции, которую
+            // не должны задерживать блокировки чтения максимума
+            target.execute(new Monad() {
+                @Override
+                public void action(MonadicContext cx) throws Exception {
+                    PooledIdGenerator generator = generator(cx, type);
+                    if (generator != null) generator.advance(cx.getSession(), shard, limit[0]);
+                }
+            });
+        }
+    }
+
+    private static PooledIdGenerator generator(MonadicContext cx, Class<?> type) {
+        IdentifierGenerator generator = ((SessionFactoryImplementor) cx.getSession().getSessionFactory())
+                .getMetamodel().entityPersister(type).getIdentifierGenerator();
+        return generator instanceof PooledIdGenerator ? (PooledIdGenerator) generator : null;
+    }
+
+    private void cleanup(int shard, Database source) throws HerbstException {
+        final long upper = upper(shard);
+        for (int i = types.size() - 1; i >= 0; i--) {
+            final Class<? extends BaseDomainObject<?>> type = types.get(i);
+            long after = lower(shard) - 1;
+            for (;;) {
+                Map<Long, Long> keys = keys(source, type, after, upper, batchSize);
+                if (keys.isEmpty()) break;
+                final List<Long> ids = new ArrayList<Long>(keys.keySet());
+                source.execute(new Monad() {
+                    @Override
+                    public void action(MonadicContext cx) throws Exception {
+                        delete(cx, type, ids);
+                    }
+                });
+                after = Collections.max(ids);
+            }
+        }
+    }
+
+    /**
+     * Читает пары (идентификатор, версия) из диапазона <code>(after, max]</code> по возрастанию идентификатора.
+     * Чтение идет в транзакционной операции, чтобы не попасть на отстающую реплику.
+     */
+    private static Map<Long, Long> keys(Database db, final Class<?> type, final long after, final long max, final int limit) throws HerbstException {
+        final Map<Long, Long> keys = new HashMap<Long, Long>();
+        db.execute(new Monad() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public void action(MonadicContext cx) throws Exception {
+                keys.clear();
+                String id = cx.getSession().getSessionFactory().getClassMetadata(type).getIdentifierPropertyName();
+                org.hibernate.Query<?> query = cx.getSession()
+                        .createQuery("select e." + id + ", e.version from " + type.getName() + " e where e." + id
+                                + " > :after and e." + id + " <= :max order by e." + id)
+                        .setParameter("after", after)
+                        .setParameter("max", max);
+                if (limit > 0) query.setMaxResults(limit);
+                for (Object[] row : (List<Object[]>) query.list()) {
+                    keys.put(((Number) row[0]).longValue(), ((Number) row[1]).longValue());
+                }
+            }
+        });
+        return keys;
+    }
+
+    private static List<Object> load(Database db, final Class<?> type, final List<Long> ids) throws HerbstException {
+        final List<Object> objects = new ArrayList<Object>();
+        if (ids.isEmpty()) return objects;
+        db.execute(new Monad() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public void action(MonadicContext cx) throws Exception {
+                objects.clear();
+                String id = cx.getSession().getSessionFactory().getClassMetadata(type).getIdentifierPropertyName();
+                objects.addAll(cx.getSession()
+                        .createQuery("from " + type.getName() + " e where e." + id + " in (:ids)")
+                        .setParameterList("ids", ids)
+                        .list());
+            }
+        });
+        return objects;
+    }
+
+    private static void delete(MonadicContext cx, Class<?> type, List<Long> ids) {
+        if (ids.isEmpty()) return;
+        String id = cx.getSession().getSessionFactory().getClassMetadata(type).getIdentifierPropertyName();
+        cx.getSession()
+                .createQuery("delete from " + type.getName() + " e where e." + id + " in (:ids)")
+                .setParameterList("ids", ids)
+                .executeUpdate();
+    }
+
+    private static long lower(int shard) {
+        return GlobalShardIdUtils.getGlobalShardId(shard, 0);
+    }
+
+    private static long upper(int shard) {
+        return GlobalShardIdUtils.getGlobalShardId(shard, GlobalShardIdUtils.getLocalId(-1L));
+    }
+}
@@ -0,0 +1,25 @@
+package org.herbst.ndao.shard;
+
+import org.herbst.ndao.optimistic.Monad;
+
+/**
+ * Операция, заранее объявляющая ключ шарда, на котором она выполняется, см. {@link ShardedDatabase#execute(ShardMonad)}.
+ */
+public abstract class ShardMonad extends Monad {
+
+    /**
+     * Возвращает ключ шарда - глобальный идентификатор ({@link GlobalShardIdUtils}) объекта, с которым работает операция.
+     *
+     * @return Глобальный идентификатор.
+     */
+    public abstract long getShardKey();
+
+    /**
+     * Возвращает номер шарда операции.
+     *
+     * @return Номер шарда.
+     */
+    public int getShard() {
+        return GlobalShardIdUtils.getShard(getShardKey());
+    }
+}
@@ -0,0 +1,42 @@
+package org.herbst.ndao.shard;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Результат запроса ко всем шардам. Если часть шардов не ответила вовремя или завершилась ошибкой,
+ * результат собран по остальным шардам и помечен как частичный.
+ */
+public class ShardResult<T> {
+
+    private final T value;
+
+    private final Map<Integer, Throwable> failures;
+
+    public ShardResult(T value, Map<Integer, Throwable> failures) {
+        this.value = value;
+        this.failures = Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * Возвращает результат по ответившим шардам.
+     */
+    public T getValue() {
+        return value;
+    }
+
+    /**
+     * Возвращает ошибки по номерам шардов, не вошедших в результат; для шардов, не ответивших
+     * вовремя, ошибка - {@link java.util.concurrent.TimeoutException}.
+     */
+    public Map<Integer, Throwable> getFailures() {
+        return failures;
+    }
+
+    /**
+     * Проверяет, что результат собран не по всем шардам.
+     */
+    public boolean isPartial() {
+        return !failures.isEmpty();
+    }
+}
@@ -0,0 +1,309 @@
+package org.herbst.ndao.shard;
+
+import org.herbst.ndao.optimistic.BaseDomainObject;
+import org.herbst.ndao.optimistic.Database;
+import org.herbst.ndao.optimistic.HerbstException;
+import org.herbst.ndao.optimistic.Monad;
+import org.herbst.ndao.optimistic.MonadicContext;
+import org.herbst.ndao.optimistic.Persister;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Набор баз данных по шардам. Номер шарда в старших битах глобального идентификатора, см.
+ * {@link GlobalShardIdUtils#getShard(long)}, - виртуальный: несколько виртуальных шардов могут
+ * размещаться в одной физической {@link Database} со своей фабрикой сессий и пулом соединений,
+ * а размещение можно менять во время работы без изменения идентификаторов, см. {@link ShardMigrator}.
+ * Транзакция всегда ограничена одной физической базой: вложенная операция на другом шарде выполняется
+ * в собственной транзакции. Идентификаторы, которые выдает {@link org.herbst.ndao.optimistic.PooledIdGenerator}
+ * в операции, принадлежат шарду, на который операция направлена, см. {@link CurrentShard}.
+ * <p/>
+ * Операции, направленные через этот класс, выполняются под разделяемой блокировкой своего виртуального
+ * шарда, поэтому {@link #freeze(int, long)} дожидается их завершения и приостанавливает новые на время
+ * переключения шарда. Операции с базой, полученной через {@link #getShard(int)}, блокировку не берут.
+ */
+public class ShardedDatabase {
+
+    /**
+     * Максимальное количество шардов, которое кодирует {@link GlobalShardIdUtils}.
+     */
+    public final static int MAX_SHARDS = 256;
+
+    private final AtomicReferenceArray<Database> shards = new AtomicReferenceArray<Database>(MAX_SHARDS);
+
+    private final ReentrantReadWriteLock[] locks = new ReentrantReadWriteLock[MAX_SHARDS];
+
+    public ShardedDatabase() {
+        for (int i = 0; i < MAX_SHARDS; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * Добавляет базу данных шарда.
+     *
+     * @param shard    Номер шарда.
+     * @param database База данных шарда.
+     * @return Этот набор.
+     */
+    public ShardedDatabase withShard(int shard, Database database) {
+        checkShardNumber(shard);
+        if (!shards.compareAndSet(shard, null, database)) {
+            throw new IllegalStateException("Shard " + shard + " is already registered");
+        }
+        return this;
+    }
+
+    /**
+     * Размещает диапазон виртуальных шардов в одной физической базе данных.
+     *
+     * @param from     Первый номер шарда.
+     * @param to       Последний номер шарда, включительно.
+     * @param database База данных.
+     * @return Этот набор.
+     */
+    public ShardedDatabase withShards(int from, int to, Database database) {
+        for (int shard = from; shard <= to; shard++) {
+            withShard(shard, database);
+        }
+        return this;
+    }
+
+    /**
+     * Возвращает базу данных шарда.
+     *
+     * @param shard Номер шарда.
+     * @return База данных.
+     * @throws IllegalArgumentException Если шард не зарегистрирован.
+     */
+    public Database getShard(int shard) throws IllegalArgumentException {
+        checkShardNumber(shard);
+        Database database = shards.get(shard);
+        if (database == null) {
+            throw new IllegalArgumentException("No database for shard " + shard);
+        }
+        return database;
+    }
+
+    /**
+     * Возвращает базу данных шарда, которому принадлежит глобальный идентификатор.
+     *
+     * @param id Глобальный идентификатор.
+     * @return База данных.
+     * @throws IllegalArgumentException Если шард не зарегистрирован.
+     */
+    public Database forId(long id) throws IllegalArgumentException {
+        return getShard(GlobalShardIdUtils.getShard(id));
+    }
+
+    /**
+     * Возвращает номера зарегистрированных шардов по возрастанию.
+     *
+     * @return Номера шардов.
+     */
+    public List<Integer> getShardNumbers() {
+        List<Integer> result = new ArrayList<Integer>();
+        for (int i = 0; i < MAX_SHARDS; i++) {
+            if (shards.get(i) != null) result.add(i);
+        }
+        return result;
+    }
+
+    /**
+     * Возвращает физические базы данных, каждую один раз, по наименьшему размещенному в ней номеру шарда.
+     *
+     * @return Базы данных по номерам шардов.
+     */
+    public Map<Integer, Database> getPhysicalShards() {
+        Set<Database> seen = Collections.newSetFromMap(new IdentityHashMap<Database, Boolean>());
+        Map<Integer, Database> result = new LinkedHashMap<Integer, Database>();
+        for (int i = 0; i < MAX_SHARDS; i++) {
+            Database database = shards.get(i);
+            if (database != null && seen.add(database)) result.put(i, database);
+        }
+        return result;
+    }
+
+    /**
+     * Приостанавливает операции шарда: дожидается завершения выполняющихся операций и задерживает новые
+     * до {@link #unfreeze(int)}. Должен вызываться тем же потоком, что и {@link #unfreeze(int)}.
+     *
+     * @param shard   Номер шарда.
+     * @param timeout Время ожидания выполняющихся операций в миллисекундах.
+     * @return <code>true</code>, если шард приостановлен.
+     */
+    public boolean freeze(int shard, long timeout) {
+        checkShardNumber(shard);
+        try {
+            return locks[shard].writeLock().tryLock(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Возобновляет операции шарда, приостановленные {@link #freeze(int, long)}.
+     *
+     * @param shard Номер шарда.
+     */
+    public void unfreeze(int shard) {
+        checkShardNumber(shard);
+        locks[shard].writeLock().unlock();
+    }
+
+    /**
+     * Переносит шард в другую физическую базу данных. Данные шарда должны быть уже перенесены,
+     * а шард - приостановлен, см. {@link ShardMigrator}.
+     *
+     * @param shard    Номер шарда.
+     * @param database Новая база данных шарда.
+     */
+    public void remap(int shard, Database database) {
+        checkShardNumber(shard);
+        if (!locks[shard].isWriteLockedByCurrentThread()) {
+            throw new IllegalStateException("Shard " + shard + " must be frozen before remapping");
+        }
+        shards.set(shard, database);
+    }
+
+    /**
+     * Выполняет операцию на шарде, объявленном операцией.
+     *
+     * @param operation Выполняемая операция.
+     * @throws HerbstException Если при выполнении операции возникли ошибки.
+     */
+    public void execute(ShardMonad operation) throws HerbstException {
+        execute(operation.getShard(), operation, false);
+    }
+
+    /**
+     * Выполняет операцию только для чтения на шарде, объявленном операцией.
+     *
+     * @param operation Выполняемая операция.
+     * @throws HerbstException Если при выполнении операции возникли ошибки.
+     */
+    public void executeReadOnly(ShardMonad operation) throws HerbstException {
+        execute(operation.getShard(), operation, true);
+    }
+
+    /**
+     * Асинхронно выполняет операцию на шарде, объявленном операцией.
+     *
+     * @param operation Выполняемая операция.
+     * @return Результат операции.
+     */
+    public CompletableFuture<Void> executeAsync(final ShardMonad operation) {
+        return CompletableFuture.runAsync(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    execute(operation);
+                } catch (HerbstException e) {
+                    throw new CompletionException(e);
+                }
+            }
+        }, getShard(operation.getShard()).getExecutor());
+    }
+
+    /**
+     * Выполняет операцию на шарде, которому принадлежит глобальный идентификатор.
+     *
+     * @param shardKey  Глобальный идентификатор.
+     * @param operation Выполняемая операция.
+     * @throws HerbstException Если при выполнении операции возникли ошибки.
+     */
+    public void execute(long shardKey, Monad operation) throws HerbstException {
+        execute(GlobalShardIdUtils.getShard(shardKey), operation, false);
+    }
+
+    /**
+     * Загружает объект по глобальному идентификатору с его шарда.
+     *
+     * @param persister Класс доступа к объектам.
+     * @param id        Глобальный идентификатор.
+     * @return Объект или <code>null</code>.
+     * @throws HerbstException Если при выполнении операции возникли ошибки.
+     */
+    public <T> T get(final Persister<T, Long> persister, final long id) throws HerbstException {
+        final List<T> result = new ArrayList<T>(1);
+        execute(GlobalShardIdUtils.getShard(id), new Monad() {
+            @Override
+            public void action(MonadicContext cx) throws Exception {
+                result.clear();
+                result.add(persister.get(cx, id));
+            }
+        }, true);
+        return result.get(0);
+    }
+
+    /**
+     * Загружает доменный объект по глобальному идентификатору с его шарда.
+     *
+     * @param clazz Класс объекта.
+     * @param id    Глобальный идентификатор.
+     * @return Объект или <code>null</code>.
+     * @throws HerbstException Если при выполнении операции возникли ошибки.
+     */
+    public <T extends BaseDomainObject<?>> T get(final Class<T> clazz, final long id) throws HerbstException {
+        final List<T> result = new ArrayList<T>(1);
+        execute(GlobalShardIdUtils.getShard(id), new Monad() {
+            @Override
+            public void action(MonadicContext cx) throws Exception {
+                result.clear();
+                result.add(BaseDomainObject.<T>get(cx, clazz, id));
+            }
+        }, true);
+        return result.get(0);
+    }
+
+    /**
+     * Закрывает все физические базы данных.
+     */
+    public void destroy() {
+        for (Database database : getPhysicalShards().values()) {
+            database.destroy();
+        }
+        for (int i = 0; i < MAX_SHARDS; i++) {
+            shards.set(i, null);
+        }
+    }
+
+    /**
+     * Выполняет операцию на шарде под разделяемой блокировкой шарда.
+     */
+    private void execute(int shard, Monad operation, boolean readOnly) throws HerbstException {
+        checkShardNumber(shard);
+        Lock lock = locks[shard].readLock();
+        lock.lock();
+        Integer previous = CurrentShard.enter(shard);
+        try {
+            if (readOnly) {
+                getShard(shard).executeReadOnly(operation);
+            } else {
+                getShard(shard).execute(operation);
+            }
+        } finally {
+            CurrentShard.restore(previous);
+            lock.unlock();
+        }
+    }
+
+    private static void checkShardNumber(int shard) {
+        if (shard < 0 || shard >= MAX_SHARDS) {
+            throw new IllegalArgumentException("Shard number out of range: " + shard);
+        }
+    }
+}
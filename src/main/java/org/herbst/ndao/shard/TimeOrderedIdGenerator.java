@@ -0,0 +1,171 @@
+package org.herbst.ndao.shard;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Генератор глобальных идентификаторов без обращения к базе (по мотивам Snowflake).
+ * <p>
+ * Локальная часть идентификатора (55 младших битов, см. {@link GlobalShardIdUtils}) раскладывается так:
+ * <ul>
+ *     <li>41 бит - миллисекунды от {@link #EPOCH} (хватает примерно на 69 лет);</li>
+ *     <li>5 битов - номер узла внутри шарда;</li>
+ *     <li>9 битов - счетчик внутри миллисекунды.</li>
+ * </ul>
+ * Номер шарда записывается в старшие биты через {@link GlobalShardIdUtils#getGlobalShardId(int, long)},
+ * поэтому {@link GlobalShardIdUtils#getShard(long)} и {@link GlobalShardIdUtils#getLocalId(long)} работают
+ * с такими идентификаторами как обычно.
+ * <p>
+ * Последнее выданное значение (время и счетчик) хранится в одном {@link AtomicLong} и меняется через CAS.
+ * Идентификаторы одного генератора строго возрастают. Если счетчик миллисекунды исчерпан, генератор ждет
+ * следующей миллисекунды реального времени, а не забегает вперед: иначе после перезапуска процесса новый
+ * генератор с той же парой (шард, узел) выдал бы уже выданные идентификаторы. Если часы отстали, генератор
+ * продолжает счетчик последней выданной миллисекунды, но не более чем на {@link #getMaxDrift()} мс; при большем
+ * отставании часов {@link #nextId()} бросает {@link IllegalStateException}.
+ * Уникальность между процессами обеспечивается только разными парами (шард, узел).
+ */
+public class TimeOrderedIdGenerator {
+
+    /**
+     * Начало отсчета времени: 2015-01-01T00:00:00Z.
+     */
+    public static final long EPOCH = 1420070400000L;
+
+    public static final int NODE_BITS = 5;
+
+    public static final int COUNTER_BITS = 9;
+
+    public static final int TIMESTAMP_BITS = 41;
+
+    public static final int MAX_NODE = (1 << NODE_BITS) - 1;
+
+    private static final int MAX_SHARD = 0b11111111;
+
+    private static final long COUNTER_MASK = (1L << COUNTER_BITS) - 1;
+
+    private static final long MAX_TIMESTAMP = (1L << TIMESTAMP_BITS) - 1;
+
+    /**
+     * Допустимое по умолчанию отставание часов от последнего выданного значения, мс.
+     */
+    public static final long DEFAULT_MAX_DRIFT = 5000;
+
+    /**
+     * Пауза ожидания следующей миллисекунды.
+     */
+    private static final long WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final int shard;
+
+    private final int node;
+
+    private final long maxDrift;
+
+    /**
+     * Последнее выданное значение: время от {@link #EPOCH} в старших битах и счетчик в {@link #COUNTER_BITS} младших.
+     */
+    private final AtomicLong last = new AtomicLong();
+
+    /**
+     * @param shard Номер шарда (0..255).
+     * @param node Номер узла внутри шарда (0..31).
+     */
+    public TimeOrderedIdGenerator(int shard, int node) {
+        this(shard, node, DEFAULT_MAX_DRIFT);
+    }
+
+    /**
+     * @param shard Номер шарда (0..255).
+     * @param node Номер узла внутри шарда (0..31).
+     * @param maxDrift Допустимое отставание часов от последнего выданного значения, мс.
+     */
+    public TimeOrderedIdGenerator(int shard, int node, long maxDrift) {
+        if (shard < 0 || shard > MAX_SHARD) {
+            throw new IllegalArgumentException("Shard must be in [0, " + MAX_SHARD + "]: " + shard);
+        }
+        if (node < 0 || node > MAX_NODE) {
+            throw new IllegalArgumentException("Node must be in [0, " + MAX_NODE + "]: " + node);
+        }
+        if (maxDrift < 0) {
+            throw new IllegalArgumentException("Max drift must not be negative: " + maxDrift);
+        }
+        this.shard = shard;
+        this.node = node;
+        this.maxDrift = maxDrift;
+    }
+
+    /**
+     * Возвращает следующий идентификатор.
+     *
+     * @return Глобальный шард идентификатор.
+     * @throws IllegalStateException Если часы отстали больше чем на {@link #getMaxDrift()} мс или время вне диапазона.
+     */
+    public long nextId() {
+        for (;;) {
+            long previous = last.get();
+            long now = currentTimeMillis() - EPOCH;
+            if (now < 0 || now > MAX_TIMESTAMP) {
+                throw new IllegalStateException("Timestamp is out of range: " + now);
+            }
+            long lastTimestamp = previous >>> COUNTER_BITS;
+            long next;
+            if (now > lastTimestamp) {
+                next = now << COUNTER_BITS;
+            } else if (lastTimestamp - now > maxDrift) {
+                throw new IllegalStateException("Clock moved backwards by " + (lastTimestamp - now) + " ms");
+            } else if ((previous & COUNTER_MASK) < COUNTER_MASK) {
+                next = previous + 1;
+            } else {
+                // счетчик миллисекунды исчерпан - ждем, пока реальное время ее не минует
+                LockSupport.parkNanos(WAIT_NANOS);
+                continue;
+            }
+            if (last.compareAndSet(previous, next)) {
+                long timestamp = next >>> COUNTER_BITS;
+                long localId = timestamp << (NODE_BITS + COUNTER_BITS) | (long) node << COUNTER_BITS | next & COUNTER_MASK;
+                return GlobalShardIdUtils.getGlobalShardId(shard, localId);
+            }
+        }
+    }
+
+    public int getShard() {
+        return shard;
+    }
+
+    public int getNode() {
+        return node;
+    }
+
+    public long getMaxDrift() {
+        return maxDrift;
+    }
+
+    /**
+     * Возвращает время создания идентификатора (мс от 1970 года). Для идентификаторов, выданных
+     * после отставания часов, время может быть больше реального не более чем на {@link #getMaxDrift()} мс.
+     *
+     * @param id Идентификатор, выданный генератором.
+     * @return Время в миллисекундах.
+     */
+    public static long getTimestamp(long id) {
+        return (GlobalShardIdUtils.getLocalId(id) >>> (NODE_BITS + COUNTER_BITS)) + EPOCH;
+    }
+
+    /**
+     * Возвращает номер узла, выдавшего идентификатор.
+     *
+     * @param id Идентификатор, выданный генератором.
+     * @return Номер узла.
+     */
+    public static int getNode(long id) {
+        return (int) (id >>> COUNTER_BITS & MAX_NODE);
+    }
+
+    /**
+     * Возвращает текущее время; переопределяется в тестах.
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+}
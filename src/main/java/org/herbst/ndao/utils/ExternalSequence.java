@@ -1,90 +1,371 @@
 package org.herbst.ndao.utils;
 
 import org.hibernate.Session;
+import org.hibernate.SessionFactory;
 import org.hibernate.dialect.Dialect;
 import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.jdbc.AbstractReturningWork;
 import org.hibernate.jdbc.ReturningWork;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Created by kris on 07.04.15.
+ * <p>
+ * С размером блока больше единицы работает в кэширующем режиме по схеме hi-lo: одно обращение к базе
+ * берет значение {@code hi} и резервирует блок {@code [hi * blockSize, (hi + 1) * blockSize)}, значения из
+ * которого выдаются без блокировок. Когда блок израсходован наполовину, следующий запрашивается в фоне.
+ * Sequence всегда создается с шагом 1, поэтому подходит и уже существующая; все ее пользователи должны
+ * работать в кэширующем режиме с одним размером блока.
+ * <p>
+ * Sequence создается в отдельной подтвержденной транзакции, а ее имя запоминается только после
+ * подтверждения, чтобы откат транзакции вызывающего кода не оставил в кэше несуществующую sequence.
  */
 public class ExternalSequence {
 
+    /**
+     * Уже проверенные sequence по фабрикам сессий: каталог sequence читается один раз на имя.
+     */
+    private static final Map<SessionFactory, Set<String>> existing =
+            Collections.synchronizedMap(new WeakHashMap<SessionFactory, Set<String>>());
+
+    private static final ExecutorService prefetchExecutor =
+            Executors.newCachedThreadPool(new NamedThreadFactory("ndao-sequence-prefetch"));
+
     private final String sequenceName;
 
     private Dialect dialect;
 
+    private final SessionFactoryImplementor factory;
+
+    private final int blockSize;
+
+    private final AtomicReference<Block> block = new AtomicReference<>();
+
+    private final AtomicReference<CompletableFuture<Block>> prefetch = new AtomicReference<>();
+
     public ExternalSequence(final Session session, final String sequenceName) {
+        this(session, sequenceName, 1);
+    }
+
+    /**
+     * @param session Сессия, в которой при необходимости создается sequence.
+     * @param sequenceName Имя sequence.
+     * @param blockSize Размер резервируемого блока значений; 1 - без кэширования.
+     */
+    public ExternalSequence(final Session session, final String sequenceName, int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+        }
         this.sequenceName = sequenceName;
-        dialect = ((SessionFactoryImplementor)session.getSessionFactory()).getDialect();
+        this.blockSize = blockSize;
+        factory = (SessionFactoryImplementor) session.getSessionFactory();
+        dialect = factory.getDialect();
 
-        //Проверяем что такой sequence есть, иначе создаем
-        ReturningWork<Boolean> checkAndCreateSequence = new ReturningWork<Boolean>() {
+        //Проверяем что такой sequence есть, иначе создаем вне транзакции сессии
+        if (isKnown()) return;
+        AbstractReturningWork<Boolean> checkAndCreateSequence = new AbstractReturningWork<Boolean>() {
             @Override
             public Boolean execute(Connection connection) throws SQLException {
-                Dialect dialect = ((SessionFactoryImplementor)session.getSessionFactory()).getDialect();
-                PreparedStatement preparedStatement = null;
-                ResultSet resultSet = null;
-                try {
-
-                    //Сначала проверяем наличие
-                    preparedStatement = connection.prepareStatement( dialect.getQuerySequencesString());
-                    resultSet = preparedStatement.executeQuery();
-                    while ( resultSet.next() ) {
-                        if(sequenceName.equals(resultSet.getString(1))) return false;
-                    }
-
-                    //Если дошли до сюда значит его нет-создаем
-                    for (String sql: dialect.getCreateSequenceStrings(sequenceName, 1, 1)){
-                        connection.prepareStatement(sql).execute();
-                    }
-                    return true;
-                }catch (SQLException e) {
-                    throw e;
-                } finally {
-                    if(preparedStatement != null) {
-                        preparedStatement.close();
-                    }
-                    if(resultSet != null) {
-                        resultSet.close();
-                    }
-                    return false;
-                }
+                return checkAndCreate(connection);
             }
         };
-        session.doReturningWork(checkAndCreateSequence);
+        ((SessionImplementor) session).getTransactionCoordinator().createIsolationDelegate()
+                .delegateWork(checkAndCreateSequence, true);
+        knownSequences().add(sequenceName.toLowerCase());
+    }
+
+    /**
+     * Создает sequence поверх уже полученного соединения. Используется там, где сессии нет
+     * (генераторы идентификаторов, изолированная работа), а соединение есть. Созданную sequence
+     * подтверждает вызывающий код, поэтому ее имя запоминается, только если соединение в режиме autocommit.
+     *
+     * @param factory Фабрика сессий.
+     * @param connection Соединение, в котором проверяется наличие и при необходимости создается sequence.
+     * @param sequenceName Имя sequence.
+     * @throws SQLException
+     */
+    public ExternalSequence(SessionFactoryImplementor factory, Connection connection, String sequenceName) throws SQLException {
+        this(factory, connection, sequenceName, 1);
+    }
+
+    /**
+     * Создает sequence поверх уже полученного соединения, см. {@link #ExternalSequence(SessionFactoryImplementor, Connection, String)}.
+     *
+     * @param factory Фабрика сессий.
+     * @param connection Соединение, в котором проверяется наличие и при необходимости создается sequence.
+     * @param sequenceName Имя sequence.
+     * @param blockSize Размер резервируемого блока значений; 1 - без кэширования.
+     * @throws SQLException
+     */
+    public ExternalSequence(SessionFactoryImplementor factory, Connection connection, String sequenceName, int blockSize) throws SQLException {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+        }
+        this.sequenceName = sequenceName;
+        this.factory = factory;
+        this.blockSize = blockSize;
+        dialect = factory.getDialect();
+        if (!isKnown() && checkAndCreate(connection) && connection.getAutoCommit()) {
+            knownSequences().add(sequenceName.toLowerCase());
+        }
+    }
+
+    public String getSequenceName() {
+        return sequenceName;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
     }
 
     public long nextVal(final Session session){
+        if (blockSize > 1) {
+            return nextCached(session, null);
+        }
         ReturningWork<Long> nextValSequenceWork = new ReturningWork<Long>() {
             @Override
             public Long execute(Connection connection) throws SQLException {
-                Dialect dialect = ((SessionFactoryImplementor)session.getSessionFactory()).getDialect();
-                PreparedStatement preparedStatement = null;
-                ResultSet resultSet = null;
+                return nextVal(connection);
+            }
+        };
+        return session.doReturningWork(nextValSequenceWork);
+    }
+
+    /**
+     * Возвращает следующее значение sequence, используя переданное соединение.
+     *
+     * @param connection Соединение.
+     * @return Следующее значение.
+     * @throws SQLException
+     */
+    public long nextVal(Connection connection) throws SQLException {
+        if (blockSize > 1) {
+            return nextCached(null, connection);
+        }
+        return selectNextVal(connection);
+    }
+
+    /**
+     * Возвращает границу, ниже которой лежат все значения, выданные или зарезервированные этой sequence
+     * во всех процессах. Берет новое значение sequence, поэтому его блок пропускается.
+     *
+     * @param connection Соединение.
+     * @return Граница значений, не включительно.
+     * @throws SQLException
+     */
+    public long reservedLimit(Connection connection) throws SQLException {
+        return selectNextVal(connection) * blockSize;
+    }
+
+    /**
+     * Продвигает sequence так, чтобы все следующие значения были не меньше границы, и отбрасывает блок,
+     * закэшированный этим экземпляром. Назад sequence не сдвигается. Пока sequence продвигается,
+     * другие процессы не должны брать из нее значения: между чтением и перезапуском они получили бы
+     * значения, которые sequence выдаст повторно. Перезапуск использует {@code alter sequence ... restart with},
+     * который поддерживают HSQLDB и PostgreSQL.
+     *
+     * @param connection Соединение.
+     * @param limit      Наименьшее допустимое следующее значение.
+     * @throws SQLException
+     */
+    public void advance(Connection connection, long limit) throws SQLException {
+        long hi = (limit + blockSize - 1) / blockSize;
+        if (selectNextVal(connection) < hi) {
+            PreparedStatement restart = connection.prepareStatement("alter sequence " + sequenceName + " restart with " + hi);
+            try {
+                restart.execute();
+            } finally {
+                restart.close();
+            }
+        }
+        synchronized (this) {
+            prefetch.set(null);
+            block.set(null);
+        }
+    }
+
+    /**
+     * Выдает значение из текущего блока; на границе блока берет уже запрошенный в фоне блок или, если его нет,
+     * резервирует новый синхронно через сессию или соединение.
+     */
+    private long nextCached(Session session, Connection connection) {
+        for (;;) {
+            Block current = block.get();
+            if (current != null) {
+                long value = current.next.getAndIncrement();
+                if (value < current.limit) {
+                    if (value == current.prefetchAt) {
+                        startPrefetch();
+                    }
+                    return value;
+                }
+            }
+            synchronized (this) {
+                if (block.get() == current) {
+                    block.set(takePrefetched(session, connection));
+                }
+            }
+        }
+    }
+
+    private void startPrefetch() {
+        final CompletableFuture<Block> future = new CompletableFuture<>();
+        if (!prefetch.compareAndSet(null, future)) return;
+        prefetchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Session session = null;
                 try {
-                    preparedStatement = connection.prepareStatement( dialect.getSequenceNextValString(sequenceName));
-                    resultSet = preparedStatement.executeQuery();
-                    resultSet.next();
-                    return resultSet.getLong(1);
-                }catch (SQLException e) {
-                    throw e;
+                    session = factory.openSession();
+                    future.complete(session.doReturningWork(new ReturningWork<Block>() {
+                        @Override
+                        public Block execute(Connection connection) throws SQLException {
+                            return reserve(connection);
+                        }
+                    }));
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
                 } finally {
-                    if(preparedStatement != null) {
-                        preparedStatement.close();
-                    }
-                    if(resultSet != null) {
-                        resultSet.close();
+                    if (session != null) {
+                        session.close();
                     }
                 }
+            }
+        });
+    }
 
+    private Block takePrefetched(Session session, Connection connection) {
+        CompletableFuture<Block> future = prefetch.getAndSet(null);
+        if (future != null) {
+            try {
+                return future.join();
+            } catch (CompletionException e) {
+                //Фоновое резервирование не удалось - резервируем сами
             }
-        };
-        return session.doReturningWork(nextValSequenceWork);
+        }
+        if (connection != null) {
+            try {
+                return reserve(connection);
+            } catch (SQLException e) {
+                throw factory.getJdbcServices().getSqlExceptionHelper().convert(e, "Could not reserve block of " + sequenceName);
+            }
+        }
+        return session.doReturningWork(new ReturningWork<Block>() {
+            @Override
+            public Block execute(Connection connection) throws SQLException {
+                return reserve(connection);
+            }
+        });
+    }
+
+    private Block reserve(Connection connection) throws SQLException {
+        return new Block(selectNextVal(connection) * blockSize, blockSize);
+    }
+
+    private long selectNextVal(Connection connection) throws SQLException {
+        PreparedStatement preparedStatement = null;
+        ResultSet resultSet = null;
+        try {
+            preparedStatement = connection.prepareStatement( dialect.getSequenceNextValString(sequenceName));
+            resultSet = preparedStatement.executeQuery();
+            resultSet.next();
+            return resultSet.getLong(1);
+        } finally {
+            if(resultSet != null) {
+                resultSet.close();
+            }
+            if(preparedStatement != null) {
+                preparedStatement.close();
+            }
+        }
+    }
+
+    private Set<String> knownSequences() {
+        synchronized (existing) {
+            Set<String> names = existing.get(factory);
+            if (names == null) {
+                names = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+                existing.put(factory, names);
+            }
+            return names;
+        }
+    }
+
+    private boolean isKnown() {
+        return knownSequences().contains(sequenceName.toLowerCase());
+    }
+
+    /**
+     * Проверяет наличие sequence и создает его, если его нет. Имя созданной sequence не запоминается:
+     * это делает вызывающий код после подтверждения создания.
+     *
+     * @return true, если sequence был создан.
+     */
+    private boolean checkAndCreate(Connection connection) throws SQLException {
+        Set<String> names = knownSequences();
+        PreparedStatement preparedStatement = null;
+        ResultSet resultSet = null;
+        try {
+
+            //Сначала проверяем наличие, запоминая весь каталог
+            preparedStatement = connection.prepareStatement( dialect.getQuerySequencesString());
+            resultSet = preparedStatement.executeQuery();
+            while ( resultSet.next() ) {
+                names.add(resultSet.getString(1).toLowerCase());
+            }
+            if (names.contains(sequenceName.toLowerCase())) return false;
+        } finally {
+            if(resultSet != null) {
+                resultSet.close();
+            }
+            if(preparedStatement != null) {
+                preparedStatement.close();
+            }
+        }
+
+        //Если дошли до сюда значит его нет-создаем
+        for (String sql: dialect.getCreateSequenceStrings(sequenceName, 1, 1)){
+            PreparedStatement create = connection.prepareStatement(sql);
+            try {
+                create.execute();
+            } finally {
+                create.close();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Зарезервированный блок значений.
+     */
+    private static final class Block {
+
+        private final AtomicLong next;
+
+        private final long limit;
+
+        private final long prefetchAt;
+
+        private Block(long start, int size) {
+            next = new AtomicLong(start);
+            limit = start + size;
+            prefetchAt = start + size / 2;
+        }
     }
 }
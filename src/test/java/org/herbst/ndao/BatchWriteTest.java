@@ -0,0 +1,144 @@
+package org.herbst.ndao;
+
+import org.herbst.ndao.domain.FakeDomain;
+import org.herbst.ndao.optimistic.BatchReport;
+import org.herbst.ndao.optimistic.Database;
+import org.herbst.ndao.optimistic.DatabaseBuilder;
+import org.herbst.ndao.optimistic.Monad;
+import org.herbst.ndao.optimistic.MonadicContext;
+import org.herbst.ndao.optimistic.Persister;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Массовая запись {@link Persister#saveAll}, {@link Persister#updateAll} и {@link Persister#deleteAll}.
+ */
+public class BatchWriteTest extends Assert {
+
+    private static class FakePersister extends Persister<FakeDomain, Long> {
+    }
+
+    private final FakePersister persister = new FakePersister();
+
+    private Database database;
+
+    @Before
+    public void setUp() throws Exception {
+        database = new DatabaseBuilder()
+                .withDriverClass("org.hsqldb.jdbcDriver")
+                .withDialect("org.herbst.ndao.dialect.EHSQLDialect")
+                .withUrl("jdbc:hsqldb:mem:batchdb")
+                .withAuth("sa", "")
+                .withJdbcBatchSize(7)
+                .withAnnotatedClass(FakeDomain.class)
+                .build();
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                cx.getSession().createQuery("delete from FakeDomain").executeUpdate();
+            }
+        });
+        persister.setBatchSize(10);
+    }
+
+    @After
+    public void tearDown() {
+        database.destroy();
+    }
+
+    private static List<FakeDomain> create(int count, String uuid) {
+        List<FakeDomain> objects = new ArrayList<FakeDomain>();
+        for (int i = 0; i < count; i++) {
+            FakeDomain domain = new FakeDomain();
+            domain.setUuid(uuid);
+            objects.add(domain);
+        }
+        return objects;
+    }
+
+    private BatchReport saveAll(final List<FakeDomain> objects) throws Exception {
+        final BatchReport[] report = new BatchReport[1];
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                report[0] = persister.saveAll(cx, objects);
+            }
+        });
+        return report[0];
+    }
+
+    private long count(final String uuid) throws Exception {
+        final Number[] count = new Number[1];
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                count[0] = (Number) cx.getSession()
+                        .createQuery("select count(*) from FakeDomain where uuid = :uuid")
+                        .setParameter("uuid", uuid)
+                        .uniqueResult();
+            }
+        });
+        return count[0].longValue();
+    }
+
+    @Test
+    public void savesInBatchesAndClearsSession() throws Exception {
+        final List<FakeDomain> objects = create(25, "saved");
+        final boolean[] contains = new boolean[1];
+        final BatchReport[] report = new BatchReport[1];
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                report[0] = persister.saveAll(cx, objects);
+                for (FakeDomain object : objects)
+                    contains[0] |= cx.getSession().contains(object);
+            }
+        });
+        assertEquals(25, report[0].getCount());
+        assertEquals(3, report[0].getBatches());
+        assertEquals(Arrays.asList(10, 10, 5), report[0].getBatchSizes());
+        assertEquals(3, report[0].getBatchNanos().size());
+        assertFalse(contains[0]);
+        assertEquals(25, count("saved"));
+    }
+
+    @Test
+    public void updatesAndDeletesDetachedObjects() throws Exception {
+        final List<FakeDomain> objects = create(12, "saved");
+        saveAll(objects);
+        for (FakeDomain object : objects)
+            object.setUuid("updated");
+        final BatchReport[] report = new BatchReport[2];
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                report[0] = persister.updateAll(cx, objects);
+            }
+        });
+        assertEquals(Arrays.asList(10, 2), report[0].getBatchSizes());
+        assertEquals(0, count("saved"));
+        assertEquals(12, count("updated"));
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                report[1] = persister.deleteAll(cx, objects.subList(0, 5));
+            }
+        });
+        assertEquals(5, report[1].getCount());
+        assertEquals(7, count("updated"));
+    }
+
+    @Test
+    public void defaultBatchSizeIsJdbcBatchSize() throws Exception {
+        persister.setBatchSize(0);
+        BatchReport report = saveAll(create(15, "saved"));
+        assertEquals(Arrays.asList(7, 7, 1), report.getBatchSizes());
+    }
+
+}
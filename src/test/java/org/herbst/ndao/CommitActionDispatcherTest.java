@@ -0,0 +1,136 @@
+package org.herbst.ndao;
+
+import org.herbst.ndao.optimistic.CommitActionDispatcher;
+import org.herbst.ndao.optimistic.SuccessCommitAction;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Порядок выполнения действий после подтверждения и их сохранность при остановке.
+ */
+public class CommitActionDispatcherTest extends Assert {
+
+    /**
+     * Действие, которое записывает свой номер в журнал своего ключа.
+     */
+    private static class Record extends SuccessCommitAction {
+
+        private final Object key;
+
+        private final int number;
+
+        private final List<Integer> journal;
+
+        Record(Object key, int number, List<Integer> journal) {
+            this.key = key;
+            this.number = number;
+            this.journal = journal;
+        }
+
+        @Override
+        public Object getOrderingKey() {
+            return key;
+        }
+
+        @Override
+        public void action() throws Exception {
+            if (number % 7 == 0) Thread.sleep(1);
+            journal.add(number);
+        }
+    }
+
+    private static List<Integer> journal() {
+        return Collections.synchronizedList(new ArrayList<Integer>());
+    }
+
+    private static void assertOrdered(List<Integer> journal, int count) {
+        assertEquals(count, journal.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(Integer.valueOf(i), journal.get(i));
+        }
+    }
+
+    @Test
+    public void actionsKeepOrderPerKeyAndPerTransaction() throws Exception {
+        CommitActionDispatcher dispatcher = new CommitActionDispatcher(4, 3);
+        List<List<Integer>> keyed = new ArrayList<List<Integer>>();
+        for (int k = 0; k < 5; k++) {
+            keyed.add(journal());
+        }
+        List<Integer> keyless = journal();
+        for (int tx = 0; tx < 40; tx++) {
+            List<SuccessCommitAction> actions = new ArrayList<SuccessCommitAction>();
+            for (int k = 0; k < keyed.size(); k++) {
+                actions.add(new Record("key" + k, tx, keyed.get(k)));
+            }
+            // действия без ключа одной транзакции
+            List<Integer> local = journal();
+            for (int i = 0; i < 10; i++) {
+                actions.add(new Record(null, i, local));
+            }
+            actions.add(new Record(null, tx, keyless));
+            dispatcher.dispatch(actions, null);
+            if (tx == 39) {
+                dispatcher.shutdown(10000);
+                assertOrdered(local, 10);
+            }
+        }
+        for (List<Integer> journal : keyed) {
+            assertOrdered(journal, 40);
+        }
+        assertEquals(40, keyless.size());
+    }
+
+    @Test
+    public void dispatchRacingShutdownLosesNothing() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            final CommitActionDispatcher dispatcher = new CommitActionDispatcher(2, 1);
+            final AtomicInteger executed = new AtomicInteger();
+            final AtomicInteger dispatched = new AtomicInteger();
+            final CountDownLatch started = new CountDownLatch(4);
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int t = 0; t < 4; t++) {
+                final int thread = t;
+                Thread producer = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        started.countDown();
+                        for (int i = 0; i < 50; i++) {
+                            dispatched.incrementAndGet();
+                            dispatcher.dispatch(Collections.<SuccessCommitAction>singletonList(new SuccessCommitAction() {
+                                @Override
+                                public Object getOrderingKey() {
+                                    return thread;
+                                }
+
+                                @Override
+                                public void action() {
+                                    executed.incrementAndGet();
+                                }
+                            }), null);
+                        }
+                    }
+                });
+                producer.start();
+                threads.add(producer);
+            }
+            started.await();
+            dispatcher.shutdown(round % 2 == 0 ? 0 : 5);
+            for (Thread producer : threads) {
+                producer.join(10000);
+                assertFalse("Dispatch must not hang after shutdown", producer.isAlive());
+            }
+            // действие, которое поток дорожки начал до истечения ожидания, может еще выполняться
+            for (int i = 0; i < 100 && executed.get() < dispatched.get(); i++) {
+                Thread.sleep(50);
+            }
+            assertEquals(dispatched.get(), executed.get());
+        }
+    }
+}
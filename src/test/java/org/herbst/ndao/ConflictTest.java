@@ -0,0 +1,170 @@
+package org.herbst.ndao;
+
+import org.herbst.ndao.domain.FakeDomain;
+import org.herbst.ndao.optimistic.ConflictManager;
+import org.herbst.ndao.optimistic.Database;
+import org.herbst.ndao.optimistic.DatabaseBuilder;
+import org.herbst.ndao.optimistic.EscalationPolicy;
+import org.herbst.ndao.optimistic.Monad;
+import org.herbst.ndao.optimistic.MonadicContext;
+import org.hibernate.LockMode;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Конфликт при подтверждении транзакции между двумя фабриками сессий над одной базой HSQLDB.
+ */
+public class ConflictTest extends Assert {
+
+    private static final String URL = "jdbc:hsqldb:mem:conflictdb;hsqldb.tx=mvcc";
+
+    private static DatabaseBuilder build() {
+        return new DatabaseBuilder()
+                .withDriverClass("org.hsqldb.jdbcDriver")
+                .withDialect("org.herbst.ndao.dialect.EHSQLDialect")
+                .withUrl(URL)
+                .withAuth("sa", "")
+                .withAnnotatedClass(FakeDomain.class);
+    }
+
+    @Test
+    public void batchedConflictMakesOperationKeyHot() throws Exception {
+        ConflictManager conflicts = new ConflictManager(1, 60000, 60000, 4);
+        Database first = build().withConflictManager(conflicts).withMetrics().build();
+        Database second = build().build();
+        try {
+            long id = create(first);
+            String key = ConflictManager.key(FakeDomain.class, id);
+            assertFalse(conflicts.isHot(key));
+            assertEquals(2, updateConcurrently(first, second, id, key));
+            assertTrue(conflicts.isHot(key));
+            assertEquals(Long.valueOf(1), first.getMetrics().getConflicts().get("unknown"));
+        } finally {
+            first.destroy();
+            second.destroy();
+        }
+    }
+
+    @Test
+    public void namedConflictMakesEntityKeyHot() throws Exception {
+        ConflictManager conflicts = new ConflictManager(1, 60000, 60000, 4);
+        Database first = build().withConflictManager(conflicts).withMetrics()
+                .withProperty("hibernate.jdbc.batch_versioned_data", "false").build();
+        Database second = build().build();
+        try {
+            long id = create(first);
+            String key = ConflictManager.key(FakeDomain.class, id);
+            assertEquals(2, updateConcurrently(first, second, id, null));
+            assertTrue(conflicts.isHot(key));
+            assertEquals(Long.valueOf(1), first.getMetrics().getConflicts().get(FakeDomain.class.getName()));
+        } finally {
+            first.destroy();
+            second.destroy();
+        }
+    }
+
+    @Test
+    public void namedConflictEscalatesToPessimisticLock() throws Exception {
+        Database first = build().withEscalationPolicy(new EscalationPolicy().forEntity(FakeDomain.class, 1))
+                .withProperty("hibernate.jdbc.batch_versioned_data", "false").build();
+        Database second = build().build();
+        try {
+            long id = create(first);
+            List<LockMode> locks = new ArrayList<LockMode>();
+            assertEquals(2, updateConcurrently(first, second, id, null, locks));
+            assertEquals(LockMode.PESSIMISTIC_WRITE, locks.get(1));
+            assertFalse(locks.get(0) == LockMode.PESSIMISTIC_WRITE);
+        } finally {
+            first.destroy();
+            second.destroy();
+        }
+    }
+
+    @Test
+    public void batchedConflictEscalatesByOperationKey() throws Exception {
+        Database first = build().withEscalationPolicy(new EscalationPolicy().byDefault(1)).build();
+        Database second = build().build();
+        try {
+            long id = create(first);
+            List<LockMode> locks = new ArrayList<LockMode>();
+            assertEquals(2, updateConcurrently(first, second, id, ConflictManager.key(FakeDomain.class, id), locks));
+            assertEquals(LockMode.PESSIMISTIC_WRITE, locks.get(1));
+        } finally {
+            first.destroy();
+            second.destroy();
+        }
+    }
+
+    @Test
+    public void conflictBelowThresholdDoesNotEscalate() throws Exception {
+        Database first = build().withEscalationPolicy(new EscalationPolicy().forEntity(FakeDomain.class, 2))
+                .withProperty("hibernate.jdbc.batch_versioned_data", "false").build();
+        Database second = build().build();
+        try {
+            long id = create(first);
+            List<LockMode> locks = new ArrayList<LockMode>();
+            assertEquals(2, updateConcurrently(first, second, id, null, locks));
+            assertFalse(locks.contains(LockMode.PESSIMISTIC_WRITE));
+        } finally {
+            first.destroy();
+            second.destroy();
+        }
+    }
+
+    private static long create(Database database) throws Exception {
+        final FakeDomain created = new FakeDomain();
+        created.setUuid("initial");
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                cx.getSession().save(created);
+            }
+        });
+        return created.getId();
+    }
+
+    /**
+     * Изменяет объект через первую базу; во время первой попытки вторая база успевает изменить его раньше.
+     *
+     * @return Количество попыток первой операции.
+     */
+    private static int updateConcurrently(Database first, Database second, long id, String conflictKey)
+            throws Exception {
+        return updateConcurrently(first, second, id, conflictKey, new ArrayList<LockMode>());
+    }
+
+    /**
+     * Изменяет объект конкурентно, см. {@link #updateConcurrently(Database, Database, long, String)},
+     * и запоминает блокировку объекта в сессии каждой попытки.
+     */
+    private static int updateConcurrently(Database first, final Database second, final long id, final String conflictKey,
+                                          final List<LockMode> locks) throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        first.execute(new Monad() {
+            @Override
+            public String getConflictKey() {
+                return conflictKey;
+            }
+
+            @Override
+            public void action(MonadicContext cx) throws Exception {
+                FakeDomain domain = (FakeDomain) cx.getSession().get(FakeDomain.class, id);
+                locks.add(cx.getSession().getCurrentLockMode(domain));
+                domain.setUuid("first-" + attempts.get());
+                if (attempts.getAndIncrement() == 0) {
+                    second.execute(new Monad() {
+                        @Override
+                        public void action(MonadicContext cx) {
+                            ((FakeDomain) cx.getSession().get(FakeDomain.class, id)).setUuid("second");
+                        }
+                    });
+                }
+            }
+        });
+        return attempts.get();
+    }
+}
@@ -0,0 +1,202 @@
+package org.herbst.ndao;
+
+import org.herbst.ndao.domain.CountedDomain;
+import org.herbst.ndao.optimistic.CounterStripe;
+import org.herbst.ndao.optimistic.Database;
+import org.herbst.ndao.optimistic.DatabaseBuilder;
+import org.herbst.ndao.optimistic.Monad;
+import org.herbst.ndao.optimistic.MonadicContext;
+import org.herbst.ndao.optimistic.Persister;
+import org.herbst.ndao.optimistic.StripedCounter;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Атомарные приращения {@link Persister#increment} и счетчик {@link StripedCounter}.
+ */
+public class CounterTest extends Assert {
+
+    private static class CountedPersister extends Persister<CountedDomain, Long> {
+    }
+
+    private final CountedPersister persister = new CountedPersister();
+
+    private Database database;
+
+    private long id;
+
+    @Before
+    public void setUp() throws Exception {
+        database = new DatabaseBuilder()
+                .withDriverClass("org.hsqldb.jdbcDriver")
+                .withDialect("org.herbst.ndao.dialect.EHSQLDialect")
+                .withUrl("jdbc:hsqldb:mem:counterdb")
+                .withAuth("sa", "")
+                .withAnnotatedClass(CountedDomain.class)
+                .withAnnotatedClass(CounterStripe.class)
+                .build();
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                cx.getSession().createQuery("delete from CountedDomain").executeUpdate();
+                cx.getSession().createQuery("delete from CounterStripe").executeUpdate();
+                CountedDomain counted = new CountedDomain();
+                cx.getSession().save(counted);
+                id = counted.getId();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        database.destroy();
+    }
+
+    private boolean increment(final long target, final long delta) throws Exception {
+        final boolean[] found = new boolean[1];
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                found[0] = persister.increment(cx, target, "views", delta);
+            }
+        });
+        return found[0];
+    }
+
+    private CountedDomain load() throws Exception {
+        final CountedDomain[] loaded = new CountedDomain[1];
+        database.executeReadOnly(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                loaded[0] = cx.getSession().get(CountedDomain.class, id);
+            }
+        });
+        return loaded[0];
+    }
+
+    private long cachedViews() throws Exception {
+        final long[] views = new long[1];
+        database.executeReadOnly(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                views[0] = ((Number) cx.getSession().createQuery("select c.views from CountedDomain c where c.id = :id")
+                        .setParameter("id", id)
+                        .setCacheable(true)
+                        .uniqueResult()).longValue();
+            }
+        });
+        return views[0];
+    }
+
+    @Test
+    public void incrementChangesValueAndVersion() throws Exception {
+        // объект попадает в кеш второго уровня до приращения
+        CountedDomain before = load();
+        assertTrue(increment(id, 5));
+        assertTrue(increment(id, -2));
+        CountedDomain after = load();
+        assertEquals(3, after.getViews());
+        assertEquals(before.getVersion() + 2, after.getVersion());
+        assertFalse(increment(id + 1000, 1));
+    }
+
+    @Test
+    public void incrementRefreshesLoadedObject() throws Exception {
+        final long[] views = new long[1];
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                CountedDomain counted = cx.getSession().get(CountedDomain.class, id);
+                persister.increment(cx, id, "views", 7);
+                views[0] = counted.getViews();
+            }
+        });
+        assertEquals(7, views[0]);
+    }
+
+    @Test
+    public void incrementInvalidatesQueryCache() throws Exception {
+        assertEquals(0, cachedViews());
+        assertTrue(increment(id, 4));
+        assertEquals(4, cachedViews());
+    }
+
+    @Test
+    public void concurrentIncrementsAreNotLost() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int t = 0; t < 4; t++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int i = 0; i < 25; i++)
+                            increment(id, 1);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures)
+                future.get();
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(100, load().getViews());
+    }
+
+    @Test
+    public void stripedCounterSumsStripes() throws Exception {
+        final StripedCounter counter = new StripedCounter("views", 4);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int t = 0; t < 4; t++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int i = 0; i < 25; i++) {
+                            database.execute(new Monad() {
+                                @Override
+                                public void action(MonadicContext cx) {
+                                    counter.add(cx, 2);
+                                }
+                            });
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures)
+                future.get();
+        } finally {
+            executor.shutdown();
+        }
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                counter.add(cx, -50);
+            }
+        });
+        final long[] value = new long[2];
+        database.executeReadOnly(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                value[0] = counter.get(cx);
+                value[1] = ((Number) cx.getSession().createQuery("select count(*) from CounterStripe").uniqueResult()).longValue();
+                // у другого счетчика своих полос нет
+                assertEquals(0, new StripedCounter("likes", 4).get(cx));
+            }
+        });
+        assertEquals(150, value[0]);
+        assertTrue(value[1] <= 4);
+    }
+}
@@ -0,0 +1,107 @@
+package org.herbst.ndao;
+
+import org.herbst.ndao.domain.ShardedDomain;
+import org.herbst.ndao.optimistic.CountStrategy;
+import org.herbst.ndao.optimistic.Database;
+import org.herbst.ndao.optimistic.DatabaseBuilder;
+import org.herbst.ndao.optimistic.HerbstException;
+import org.herbst.ndao.optimistic.Monad;
+import org.herbst.ndao.optimistic.MonadicContext;
+import org.herbst.ndao.optimistic.Persister;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EntityCounterTest extends Assert {
+
+    private static class ShardedPersister extends Persister<ShardedDomain, Long> {
+    }
+
+    private final ShardedPersister persister = new ShardedPersister();
+
+    private Database first;
+
+    private Database second;
+
+    private static Database build(String name) throws Exception {
+        Database database = new DatabaseBuilder()
+                .withDriverClass("org.hsqldb.jdbcDriver")
+                .withDialect("org.herbst.ndao.dialect.EHSQLDialect")
+                .withUrl("jdbc:hsqldb:mem:" + name)
+                .withAuth("sa", "")
+                .withAnnotatedClass(ShardedDomain.class)
+                .build();
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                cx.getSession().createQuery("delete from ShardedDomain").executeUpdate();
+            }
+        });
+        return database;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        first = build("countfirst");
+        second = build("countsecond");
+        persister.setCountStrategy(CountStrategy.CACHED, 0);
+    }
+
+    @After
+    public void tearDown() {
+        first.destroy();
+        second.destroy();
+    }
+
+    private static void insert(Database database, final int count) throws Exception {
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                for (int i = 0; i < count; i++) {
+                    cx.getSession().save(new ShardedDomain());
+                }
+            }
+        });
+    }
+
+    private int countReadOnly(Database database) throws Exception {
+        final int[] count = new int[1];
+        database.executeReadOnly(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                count[0] = persister.countAll(cx);
+            }
+        });
+        return count[0];
+    }
+
+    @Test
+    public void cachedCountIsKeptPerFactory() throws Exception {
+        insert(first, 2);
+        insert(second, 3);
+        assertEquals(2, countReadOnly(first));
+        assertEquals(3, countReadOnly(second));
+        assertEquals(2, countReadOnly(first));
+    }
+
+    @Test
+    public void countOfWritingTransactionIsNotCached() throws Exception {
+        insert(first, 2);
+        final int[] inside = new int[1];
+        try {
+            first.execute(new Monad() {
+                @Override
+                public void action(MonadicContext cx) {
+                    cx.getSession().save(new ShardedDomain());
+                    inside[0] = persister.countAll(cx);
+                    throw new IllegalStateException("rollback");
+                }
+            });
+            fail("Operation must fail");
+        } catch (HerbstException expected) {
+        }
+        assertEquals(3, inside[0]);
+        assertEquals(2, countReadOnly(first));
+    }
+}
@@ -0,0 +1,83 @@
+package org.herbst.ndao;
+
+import org.herbst.ndao.domain.FakeDomain;
+import org.herbst.ndao.optimistic.Database;
+import org.herbst.ndao.optimistic.DatabaseBuilder;
+import org.herbst.ndao.optimistic.HerbstException;
+import org.herbst.ndao.optimistic.Monad;
+import org.herbst.ndao.optimistic.MonadicContext;
+import org.herbst.ndao.utils.ExternalSequence;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+public class ExternalSequenceTest extends Assert {
+
+    private Database database;
+
+    @Before
+    public void setUp() throws Exception {
+        database = new DatabaseBuilder()
+                .withDriverClass("org.hsqldb.jdbcDriver")
+                .withDialect("org.herbst.ndao.dialect.EHSQLDialect")
+                .withUrl("jdbc:hsqldb:mem:sequencedb")
+                .withAuth("sa", "")
+                .withAnnotatedClass(FakeDomain.class)
+                .build();
+    }
+
+    @After
+    public void tearDown() {
+        database.destroy();
+    }
+
+    @Test
+    public void cachedBlocksOfExistingSequenceDoNotOverlap() throws Exception {
+        final Set<Long> values = new HashSet<Long>();
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                // sequence с шагом 1, созданная без кэширования
+                ExternalSequence plain = new ExternalSequence(cx.getSession(), "overlap_seq");
+                values.add(plain.nextVal(cx.getSession()));
+                values.add(plain.nextVal(cx.getSession()));
+                // два процесса с кэшированием поверх той же sequence
+                ExternalSequence first = new ExternalSequence(cx.getSession(), "overlap_seq", 10);
+                ExternalSequence second = new ExternalSequence(cx.getSession(), "overlap_seq", 10);
+                for (int i = 0; i < 25; i++) {
+                    assertTrue(values.add(first.nextVal(cx.getSession())));
+                    assertTrue(values.add(second.nextVal(cx.getSession())));
+                }
+            }
+        });
+        assertEquals(52, values.size());
+    }
+
+    @Test
+    public void sequenceSurvivesRollbackOfCreatingOperation() throws Exception {
+        try {
+            database.execute(new Monad() {
+                @Override
+                public void action(MonadicContext cx) {
+                    new ExternalSequence(cx.getSession(), "rollback_seq");
+                    throw new IllegalStateException("rollback");
+                }
+            });
+            fail("Operation must fail");
+        } catch (HerbstException e) {
+            // транзакция операции откатилась, а sequence создана в своей
+        }
+        final long[] value = new long[1];
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                value[0] = new ExternalSequence(cx.getSession(), "rollback_seq").nextVal(cx.getSession());
+            }
+        });
+        assertEquals(1, value[0]);
+    }
+}
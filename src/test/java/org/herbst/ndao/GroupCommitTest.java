@@ -0,0 +1,207 @@
+package org.herbst.ndao;
+
+import org.herbst.ndao.domain.FakeDomain;
+import org.herbst.ndao.optimistic.Database;
+import org.herbst.ndao.optimistic.DatabaseBuilder;
+import org.herbst.ndao.optimistic.Monad;
+import org.herbst.ndao.optimistic.MonadicContext;
+import org.hibernate.Session;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Групповое подтверждение операций, отправленных через {@link Database#executeGrouped(Monad)}.
+ */
+public class GroupCommitTest extends Assert {
+
+    private Database database;
+
+    @Before
+    public void setUp() throws Exception {
+        database = new DatabaseBuilder()
+                .withDriverClass("org.hsqldb.jdbcDriver")
+                .withDialect("org.herbst.ndao.dialect.EHSQLDialect")
+                .withUrl("jdbc:hsqldb:mem:groupdb")
+                .withAuth("sa", "")
+                .withAnnotatedClass(FakeDomain.class)
+                .withGroupCommit(200, 10, 1)
+                .build();
+    }
+
+    @After
+    public void tearDown() {
+        database.destroy();
+    }
+
+    private long create(String uuid) throws Exception {
+        final FakeDomain created = new FakeDomain();
+        created.setUuid(uuid);
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                cx.getSession().save(created);
+            }
+        });
+        return created.getId();
+    }
+
+    private String uuid(final long id) throws Exception {
+        final String[] uuid = new String[1];
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                uuid[0] = (String) cx.getSession().createQuery("select d.uuid from FakeDomain d where d.id = :id")
+                        .setParameter("id", id).uniqueResult();
+            }
+        });
+        return uuid[0];
+    }
+
+    /**
+     * Операция, которая меняет объект и считает свои выполнения.
+     */
+    private static class Rename extends Monad {
+
+        private final long id;
+
+        private final String uuid;
+
+        private final AtomicInteger runs = new AtomicInteger();
+
+        private final Set<Session> sessions;
+
+        Rename(long id, String uuid, Set<Session> sessions) {
+            this.id = id;
+            this.uuid = uuid;
+            this.sessions = sessions;
+        }
+
+        @Override
+        public void action(MonadicContext cx) throws Exception {
+            runs.incrementAndGet();
+            sessions.add(cx.getSession());
+            cx.getSession().get(FakeDomain.class, id).setUuid(uuid);
+        }
+    }
+
+    private static Set<Session> sessions() {
+        return Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<Session, Boolean>()));
+    }
+
+    private List<Rename> renames(int count, String prefix, Set<Session> sessions) throws Exception {
+        List<Rename> renames = new ArrayList<Rename>();
+        for (int i = 0; i < count; i++) {
+            renames.add(new Rename(create("initial"), prefix + i, sessions));
+        }
+        return renames;
+    }
+
+    @Test
+    public void operationsShareOneTransaction() throws Exception {
+        Set<Session> sessions = sessions();
+        List<Rename> renames = renames(5, "grouped", sessions);
+        List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+        for (Rename rename : renames) {
+            futures.add(database.executeGrouped(rename));
+        }
+        for (CompletableFuture<Void> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        assertEquals(1, sessions.size());
+        for (Rename rename : renames) {
+            assertEquals(1, rename.runs.get());
+            assertEquals(rename.uuid, uuid(rename.id));
+        }
+    }
+
+    @Test
+    public void failingOperationIsIsolated() throws Exception {
+        List<Rename> renames = renames(4, "isolated", sessions());
+        final AtomicInteger failures = new AtomicInteger();
+        List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+        futures.add(database.executeGrouped(renames.get(0)));
+        futures.add(database.executeGrouped(renames.get(1)));
+        CompletableFuture<Void> failing = database.executeGrouped(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                failures.incrementAndGet();
+                throw new IllegalStateException("broken operation");
+            }
+        });
+        futures.add(database.executeGrouped(renames.get(2)));
+        futures.add(database.executeGrouped(renames.get(3)));
+        for (CompletableFuture<Void> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        try {
+            failing.get(10, TimeUnit.SECONDS);
+            fail("Failing operation must fail");
+        } catch (ExecutionException e) {
+            // ошибка возвращается только виновнику
+        }
+        // в группе и отдельно
+        assertEquals(2, failures.get());
+        for (Rename rename : renames) {
+            assertEquals(rename.uuid, uuid(rename.id));
+        }
+        // выполненные до виновника операции откатились вместе с группой и выполнились повторно
+        assertEquals(2, renames.get(0).runs.get());
+        assertEquals(1, renames.get(3).runs.get());
+    }
+
+    @Test
+    public void groupIsRerunAfterCommitFailure() throws Exception {
+        List<Rename> renames = renames(3, "rerun", sessions());
+        StringBuilder tooLong = new StringBuilder();
+        while (tooLong.length() < 300) tooLong.append("overflow");
+        // ошибка возникает только при сбросе изменений перед подтверждением транзакции
+        Rename broken = new Rename(create("initial"), tooLong.toString(), sessions());
+        List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+        futures.add(database.executeGrouped(renames.get(0)));
+        CompletableFuture<Void> failing = database.executeGrouped(broken);
+        futures.add(database.executeGrouped(renames.get(1)));
+        futures.add(database.executeGrouped(renames.get(2)));
+        for (CompletableFuture<Void> future : futures) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+        try {
+            failing.get(30, TimeUnit.SECONDS);
+            fail("Operation violating the column length must fail");
+        } catch (ExecutionException e) {
+            // ошибка возвращается только виновнику
+        }
+        for (Rename rename : renames) {
+            assertEquals(2, rename.runs.get());
+            assertEquals(rename.uuid, uuid(rename.id));
+        }
+        assertEquals("initial", uuid(broken.id));
+    }
+
+    @Test
+    public void submitAfterShutdownIsRejected() throws Exception {
+        database.destroy();
+        try {
+            database.executeGrouped(new Monad() {
+                @Override
+                public void action(MonadicContext cx) {
+                }
+            }).get(10, TimeUnit.SECONDS);
+            fail("Submit after shutdown must be rejected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package org.herbst.ndao;
+
+import org.herbst.ndao.domain.TimedDomain;
+import org.herbst.ndao.optimistic.Database;
+import org.herbst.ndao.optimistic.DatabaseBuilder;
+import org.herbst.ndao.optimistic.KeysetPage;
+import org.herbst.ndao.optimistic.KeysetPager;
+import org.herbst.ndao.optimistic.Monad;
+import org.herbst.ndao.optimistic.MonadicContext;
+import org.herbst.ndao.optimistic.Persister;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+public class KeysetPagerTest extends Assert {
+
+    private static class TimedPersister extends Persister<TimedDomain, Long> {
+    }
+
+    private Database database;
+
+    private final List<Long> ids = new ArrayList<Long>();
+
+    private final List<Long> created = new ArrayList<Long>();
+
+    @Before
+    public void setUp() throws Exception {
+        database = new DatabaseBuilder()
+                .withDriverClass("org.hsqldb.jdbcDriver")
+                .withDialect("org.herbst.ndao.dialect.EHSQLDialect")
+                .withUrl("jdbc:hsqldb:mem:keysetdb")
+                .withAuth("sa", "")
+                .withAnnotatedClass(TimedDomain.class)
+                .build();
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                cx.getSession().createQuery("delete from TimedDomain").executeUpdate();
+                // строки различаются только микросекундами внутри одной миллисекунды
+                for (int i = 0; i < 7; i++) {
+                    Timestamp created = new Timestamp(1500000000000L);
+                    created.setNanos((7 - i) * 1000);
+                    TimedDomain domain = new TimedDomain();
+                    domain.setCreated(created);
+                    cx.getSession().save(domain);
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        database.destroy();
+    }
+
+    /**
+     * Обходит все страницы по две строки, запоминая идентификаторы и наносекунды времени создания.
+     */
+    private void pageAll(final KeysetPager<TimedDomain> pager) throws Exception {
+        database.executeReadOnly(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                ids.clear();
+                created.clear();
+                String token = null;
+                int pages = 0;
+                do {
+                    // повторно выбранная строка зациклила бы постраничный обход
+                    assertTrue(++pages <= 4);
+                    KeysetPage<TimedDomain> page = pager.page(cx, token, 2);
+                    for (TimedDomain domain : page.getItems()) {
+                        ids.add(domain.getId());
+                        created.add((long) ((Timestamp) domain.getCreated()).getNanos());
+                    }
+                    token = page.getNextToken();
+                } while (token != null);
+            }
+        });
+        assertEquals(7, ids.size());
+        assertEquals(7, new HashSet<Long>(ids).size());
+    }
+
+    @Test
+    public void pagesBySubMillisecondTimestamps() throws Exception {
+        pageAll(new TimedPersister().keyset("created", "id"));
+        for (int i = 1; i < created.size(); i++) {
+            assertTrue(created.get(i) > created.get(i - 1));
+        }
+    }
+
+    @Test
+    public void pagesInDescendingOrder() throws Exception {
+        pageAll(new TimedPersister().keyset("created desc", "id desc"));
+        for (int i = 1; i < created.size(); i++) {
+            assertTrue(created.get(i) < created.get(i - 1));
+        }
+    }
+
+    @Test
+    public void pagesInMixedOrder() throws Exception {
+        pageAll(new TimedPersister().keyset("created DESC", "id asc"));
+        for (int i = 1; i < created.size(); i++) {
+            assertTrue(created.get(i) < created.get(i - 1));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownDirection() {
+        new TimedPersister().keyset("created descending", "id");
+    }
+}
@@ -0,0 +1,62 @@
+package org.herbst.ndao;
+
+import org.herbst.ndao.shard.MergeIterator;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+public class MergeIteratorTest extends Assert {
+
+    private static final Comparator<Integer> NATURAL = new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a, Integer b) {
+            return a.compareTo(b);
+        }
+    };
+
+    @Test
+    public void mergesSortedSources() {
+        List<Iterator<Integer>> sources = new ArrayList<Iterator<Integer>>();
+        sources.add(Arrays.asList(1, 4, 7, 10).iterator());
+        sources.add(Collections.<Integer>emptyList().iterator());
+        sources.add(Arrays.asList(2, 3, 8).iterator());
+        sources.add(Arrays.asList(5, 6, 9, 11, 12).iterator());
+        List<Integer> merged = new ArrayList<Integer>();
+        MergeIterator<Integer> iterator = new MergeIterator<Integer>(sources, NATURAL);
+        while (iterator.hasNext()) {
+            merged.add(iterator.next());
+        }
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12), merged);
+    }
+
+    @Test
+    public void keepsSourceOrderForEqualElements() {
+        final List<int[]> a = Arrays.asList(new int[]{1, 0}, new int[]{2, 0});
+        final List<int[]> b = Arrays.asList(new int[]{1, 1}, new int[]{2, 1});
+        List<Iterator<int[]>> sources = new ArrayList<Iterator<int[]>>();
+        sources.add(b.iterator());
+        sources.add(a.iterator());
+        MergeIterator<int[]> iterator = new MergeIterator<int[]>(sources, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] x, int[] y) {
+                return Integer.compare(x[0], y[0]);
+            }
+        });
+        assertEquals(1, iterator.next()[1]);
+        assertEquals(0, iterator.next()[1]);
+        assertEquals(1, iterator.next()[1]);
+        assertEquals(0, iterator.next()[1]);
+        assertFalse(iterator.hasNext());
+    }
+
+    @Test
+    public void emptyWithoutSources() {
+        assertFalse(new MergeIterator<Integer>(new ArrayList<Iterator<Integer>>(), NATURAL).hasNext());
+    }
+}
@@ -0,0 +1,172 @@
+package org.herbst.ndao;
+
+import org.herbst.ndao.optimistic.Database;
+import org.herbst.ndao.optimistic.DatabaseBuilder;
+import org.herbst.ndao.optimistic.HerbstException;
+import org.herbst.ndao.optimistic.Monad;
+import org.herbst.ndao.optimistic.MonadicContext;
+import org.herbst.ndao.outbox.Outbox;
+import org.herbst.ndao.outbox.OutboxHandler;
+import org.herbst.ndao.outbox.OutboxMessage;
+import org.herbst.ndao.outbox.OutboxRelay;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Запись сообщений в исходящий ящик и их доставка с повтором после ошибки получателя.
+ */
+public class OutboxRelayTest extends Assert {
+
+    private Database database;
+
+    @Before
+    public void setUp() throws Exception {
+        database = new DatabaseBuilder()
+                .withDriverClass("org.hsqldb.jdbcDriver")
+                .withDialect("org.herbst.ndao.dialect.EHSQLDialect")
+                .withUrl("jdbc:hsqldb:mem:outboxdb")
+                .withAuth("sa", "")
+                .withAnnotatedClass(OutboxMessage.class)
+                .build();
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                cx.getSession().createQuery("delete from OutboxMessage").executeUpdate();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        database.destroy();
+    }
+
+    private void publish(final String... keys) throws Exception {
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                for (String key : keys)
+                    Outbox.publish(cx, "orders", key, "payload-" + key);
+            }
+        });
+    }
+
+    /**
+     * Получатель, который падает на первых вызовах и запоминает ключи доставленных сообщений.
+     */
+    private static class FlakyHandler implements OutboxHandler {
+
+        private final AtomicInteger failures;
+
+        private final List<String> delivered = new ArrayList<String>();
+
+        private final CountDownLatch done;
+
+        FlakyHandler(int failures, int expected) {
+            this.failures = new AtomicInteger(failures);
+            this.done = new CountDownLatch(expected);
+        }
+
+        @Override
+        public synchronized void handle(List<OutboxMessage> messages) throws Exception {
+            if (failures.getAndDecrement() > 0)
+                throw new IllegalStateException("Receiver is down");
+            for (OutboxMessage message : messages) {
+                delivered.add(message.getKey());
+                done.countDown();
+            }
+        }
+    }
+
+    @Test
+    public void failedBatchIsRedelivered() throws Exception {
+        publish("a", "b", "c");
+        FlakyHandler handler = new FlakyHandler(1, 3);
+        OutboxRelay relay = new OutboxRelay(database, "orders", handler, 2, 10);
+        try {
+            relay.relay();
+            fail("Receiver failure must fail the pass");
+        } catch (HerbstException e) {
+            assertTrue(handler.delivered.isEmpty());
+        }
+        assertEquals(2, relay.relay());
+        assertEquals(1, relay.relay());
+        assertEquals(0, relay.relay());
+        assertEquals(Arrays.asList("a", "b", "c"), handler.delivered);
+    }
+
+    @Test
+    public void claimedBatchIsDeliveredOutsideTransaction() throws Exception {
+        publish("p", "q");
+        final OutboxRelay[] competitor = new OutboxRelay[1];
+        final int[] seen = new int[]{-1};
+        OutboxHandler handler = new OutboxHandler() {
+            @Override
+            public void handle(List<OutboxMessage> messages) throws Exception {
+                // блокировки захвата уже сняты, а аренда не дает другому экземпляру взять ту же пачку
+                seen[0] = competitor[0].relay();
+            }
+        };
+        competitor[0] = new OutboxRelay(database, "orders", new FlakyHandler(0, 0), 10, 10);
+        assertEquals(2, new OutboxRelay(database, "orders", handler, 10, 10).relay());
+        assertEquals(0, seen[0]);
+        assertEquals(0, competitor[0].relay());
+    }
+
+    @Test
+    public void expiredLeaseIsRedelivered() throws Exception {
+        publish("m");
+        OutboxHandler crashing = new OutboxHandler() {
+            @Override
+            public void handle(List<OutboxMessage> messages) {
+                // процесс завершился, не удалив и не освободив пачку
+                throw new Error("Process died");
+            }
+        };
+        try {
+            new OutboxRelay(database, "orders", crashing, 10, 10, 200).relay();
+            fail("Handler error must propagate");
+        } catch (Error expected) {
+        }
+        FlakyHandler handler = new FlakyHandler(0, 1);
+        OutboxRelay relay = new OutboxRelay(database, "orders", handler, 10, 10);
+        assertEquals(0, relay.relay());
+        Thread.sleep(300);
+        assertEquals(1, relay.relay());
+        assertEquals(Arrays.asList("m"), handler.delivered);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void publishRequiresKey() throws Throwable {
+        try {
+            publish((String) null);
+        } catch (HerbstException e) {
+            throw database.getContext().getLastError();
+        }
+    }
+
+    @Test
+    public void backgroundRelaySurvivesFailures() throws Exception {
+        publish("x", "y");
+        FlakyHandler handler = new FlakyHandler(2, 3);
+        OutboxRelay relay = new OutboxRelay(database, null, handler, 10, 10);
+        relay.start();
+        try {
+            publish("z");
+            assertTrue(handler.done.await(10, TimeUnit.SECONDS));
+        } finally {
+            relay.stop(5000);
+        }
+        assertEquals(Arrays.asList("x", "y", "z"), handler.delivered.subList(0, 3));
+        assertEquals(0, relay.relay());
+    }
+}
@@ -0,0 +1,135 @@
+package org.herbst.ndao;
+
+import org.herbst.ndao.domain.ShardedDomain;
+import org.herbst.ndao.optimistic.BaseDomainObject;
+import org.herbst.ndao.optimistic.Database;
+import org.herbst.ndao.optimistic.DatabaseBuilder;
+import org.herbst.ndao.optimistic.Monad;
+import org.herbst.ndao.optimistic.MonadicContext;
+import org.herbst.ndao.shard.GlobalShardIdUtils;
+import org.herbst.ndao.shard.ShardMigrator;
+import org.herbst.ndao.shard.ShardedDatabase;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Идентификаторы {@link org.herbst.ndao.optimistic.SequenceDomainObject} из
+ * {@link org.herbst.ndao.optimistic.PooledIdGenerator}.
+ */
+public class PooledIdGeneratorTest extends Assert {
+
+    private static Database build(String name) throws Exception {
+        return new DatabaseBuilder()
+                .withDriverClass("org.hsqldb.jdbcDriver")
+                .withDialect("org.herbst.ndao.dialect.EHSQLDialect")
+                .withUrl("jdbc:hsqldb:mem:" + name)
+                .withAuth("sa", "")
+                .withAnnotatedClass(ShardedDomain.class)
+                .build();
+    }
+
+    private static List<Long> create(Database database, final int count) throws Exception {
+        final List<Long> ids = new ArrayList<Long>();
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                ids.clear();
+                for (int i = 0; i < count; i++) {
+                    ShardedDomain created = new ShardedDomain();
+                    created.setName("row" + i);
+                    cx.getSession().save(created);
+                    ids.add(created.getId());
+                }
+            }
+        });
+        return ids;
+    }
+
+    private static List<Long> create(ShardedDatabase sharded, int shard, final int count) throws Exception {
+        final List<Long> ids = new ArrayList<Long>();
+        sharded.execute(GlobalShardIdUtils.getGlobalShardId(shard, 0), new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                ids.clear();
+                for (int i = 0; i < count; i++) {
+                    ShardedDomain created = new ShardedDomain();
+                    created.setName("row" + i);
+                    cx.getSession().save(created);
+                    ids.add(created.getId());
+                }
+            }
+        });
+        return ids;
+    }
+
+    @Test
+    public void factoriesOverOneDatabaseGetDisjointBlocks() throws Exception {
+        Database first = build("pooleddb");
+        Database second = build("pooleddb");
+        try {
+            Set<Long> ids = new HashSet<Long>();
+            for (int i = 0; i < 3; i++) {
+                ids.addAll(create(first, 70));
+                ids.addAll(create(second, 70));
+            }
+            assertEquals(420, ids.size());
+            // без шарда выдаются локальные идентификаторы
+            for (Long id : ids) {
+                assertEquals(0, GlobalShardIdUtils.getShard(id));
+            }
+        } finally {
+            first.destroy();
+            second.destroy();
+        }
+    }
+
+    @Test
+    public void virtualShardsOfOneDatabaseGetTheirOwnIds() throws Exception {
+        ShardedDatabase sharded = new ShardedDatabase().withShards(0, 3, build("virtualdb"));
+        try {
+            Set<Long> ids = new HashSet<Long>();
+            for (int shard = 0; shard <= 3; shard++) {
+                for (Long id : create(sharded, shard, 5)) {
+                    assertEquals(shard, GlobalShardIdUtils.getShard(id));
+                    assertTrue(ids.add(id));
+                }
+            }
+            assertEquals("row0", sharded.get(ShardedDomain.class, ids.iterator().next()).getName());
+        } finally {
+            sharded.destroy();
+        }
+    }
+
+    @Test
+    public void migratedShardContinuesAboveIssuedIds() throws Exception {
+        Database source = build("movesrc");
+        // другой процесс над той же базой уже зарезервировал блок шарда
+        Database other = build("movesrc");
+        Database target = build("movedst");
+        ShardedDatabase sharded = new ShardedDatabase().withShards(0, 1, source);
+        ShardedDatabase otherSharded = new ShardedDatabase().withShards(0, 1, other);
+        try {
+            List<Long> issued = new ArrayList<Long>(create(sharded, 1, 5));
+            issued.addAll(create(otherSharded, 1, 1));
+            List<Class<? extends BaseDomainObject<?>>> types = new ArrayList<Class<? extends BaseDomainObject<?>>>();
+            types.add(ShardedDomain.class);
+            new ShardMigrator(sharded, types).migrate(1, target);
+            assertSame(target, sharded.getShard(1));
+
+            long max = Collections.max(issued);
+            for (Long id : create(sharded, 1, 150)) {
+                assertEquals(1, GlobalShardIdUtils.getShard(id));
+                assertTrue("New id " + id + " must be above issued " + max, id > max);
+            }
+        } finally {
+            sharded.destroy();
+            otherSharded.destroy();
+        }
+    }
+}
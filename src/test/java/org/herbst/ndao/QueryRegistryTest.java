@@ -0,0 +1,107 @@
+package org.herbst.ndao;
+
+import org.herbst.ndao.domain.FakeDomain;
+import org.herbst.ndao.optimistic.Database;
+import org.herbst.ndao.optimistic.DatabaseBuilder;
+import org.herbst.ndao.optimistic.HerbstException;
+import org.herbst.ndao.optimistic.Monad;
+import org.herbst.ndao.optimistic.MonadicContext;
+import org.herbst.ndao.optimistic.QueryParams;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Именованные запросы реестра и связывание их параметров по объявленным типам.
+ */
+public class QueryRegistryTest extends Assert {
+
+    private Database database;
+
+    private long id;
+
+    @Before
+    public void setUp() throws Exception {
+        database = new DatabaseBuilder()
+                .withDriverClass("org.hsqldb.jdbcDriver")
+                .withDialect("org.herbst.ndao.dialect.EHSQLDialect")
+                .withUrl("jdbc:hsqldb:mem:querydb")
+                .withAuth("sa", "")
+                .withAnnotatedClass(FakeDomain.class)
+                .withQuery("fake.byId", "from FakeDomain f where f.id = :id")
+                .withQuery("fake.byIds", "from FakeDomain f where f.id in (:ids) order by f.id")
+                .withQuery("fake.byUuid", "from FakeDomain f where f.uuid = :uuid")
+                .build();
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                cx.getSession().createQuery("delete from FakeDomain").executeUpdate();
+                FakeDomain domain = new FakeDomain();
+                domain.setUuid("registry");
+                cx.getSession().save(domain);
+                id = domain.getId();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        database.destroy();
+    }
+
+    private List<FakeDomain> query(final String name, final QueryParams params) throws Exception {
+        final Object[] result = new Object[1];
+        database.executeReadOnly(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                result[0] = database.namedQuery(cx, name, params);
+            }
+        });
+        @SuppressWarnings("unchecked")
+        List<FakeDomain> list = (List<FakeDomain>) result[0];
+        return list;
+    }
+
+    @Test
+    public void bindsNumbersByDeclaredType() throws Exception {
+        // Integer для свойства Long приводится к объявленному типу
+        assertEquals(1, query("fake.byId", QueryParams.of("id", (int) id)).size());
+        assertEquals(1, query("fake.byIds", QueryParams.of("ids", Arrays.asList((int) id, (short) 0))).size());
+        assertEquals("registry", query("fake.byId", QueryParams.of("id", id)).get(0).getUuid());
+    }
+
+    @Test
+    public void bindsNullByDeclaredType() throws Exception {
+        assertTrue(query("fake.byUuid", QueryParams.of("uuid", null)).isEmpty());
+    }
+
+    @Test
+    public void rejectsNumbersThatDoNotFit() throws Exception {
+        try {
+            query("fake.byId", QueryParams.of("id", 1.5));
+            fail("Fraction must not be bound as long");
+        } catch (HerbstException e) {
+            assertTrue(database.getContext().getLastError() instanceof IllegalArgumentException);
+        }
+    }
+
+    @Test
+    public void rejectsUnknownQueryAndParameters() throws Exception {
+        try {
+            query("fake.byId", QueryParams.of("identifier", id));
+            fail("Parameter names must match the declaration");
+        } catch (HerbstException e) {
+            assertTrue(database.getContext().getLastError() instanceof IllegalArgumentException);
+        }
+        try {
+            query("fake.missing", QueryParams.empty());
+            fail("Unknown query must fail");
+        } catch (HerbstException e) {
+            assertTrue(database.getContext().getLastError() instanceof IllegalArgumentException);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package org.herbst.ndao;
+
+import org.herbst.ndao.domain.FakeDomain;
+import org.herbst.ndao.optimistic.Database;
+import org.herbst.ndao.optimistic.DatabaseBuilder;
+import org.herbst.ndao.optimistic.Monad;
+import org.herbst.ndao.optimistic.MonadicContext;
+import org.hibernate.FlushMode;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Операции только для чтения {@link Database#executeReadOnly(Monad)}.
+ */
+public class ReadOnlyTest extends Assert {
+
+    private Database database;
+
+    private long id;
+
+    @Before
+    public void setUp() throws Exception {
+        database = new DatabaseBuilder()
+                .withDriverClass("org.hsqldb.jdbcDriver")
+                .withDialect("org.herbst.ndao.dialect.EHSQLDialect")
+                .withUrl("jdbc:hsqldb:mem:readonlydb")
+                .withAuth("sa", "")
+                .withAnnotatedClass(FakeDomain.class)
+                .build();
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                cx.getSession().createQuery("delete from FakeDomain").executeUpdate();
+            }
+        });
+        final FakeDomain created = new FakeDomain();
+        created.setUuid("initial");
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                cx.getSession().save(created);
+            }
+        });
+        id = created.getId();
+    }
+
+    @After
+    public void tearDown() {
+        database.destroy();
+    }
+
+    private String load() throws Exception {
+        final String[] uuid = new String[1];
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                uuid[0] = cx.getSession().get(FakeDomain.class, id).getUuid();
+            }
+        });
+        return uuid[0];
+    }
+
+    @Test
+    public void sessionIsReadOnlyWithManualFlush() throws Exception {
+        final boolean[] readOnly = new boolean[3];
+        final FlushMode[] flushMode = new FlushMode[1];
+        database.executeReadOnly(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                readOnly[0] = cx.isReadOnly();
+                readOnly[1] = cx.getSession().isDefaultReadOnly();
+                readOnly[2] = cx.getSession().isReadOnly(cx.getSession().get(FakeDomain.class, id));
+                flushMode[0] = cx.getSession().getHibernateFlushMode();
+            }
+        });
+        assertTrue(readOnly[0]);
+        assertTrue(readOnly[1]);
+        assertTrue(readOnly[2]);
+        assertEquals(FlushMode.MANUAL, flushMode[0]);
+    }
+
+    @Test
+    public void changesAreNotFlushed() throws Exception {
+        final Number[] found = new Number[1];
+        database.executeReadOnly(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                cx.getSession().get(FakeDomain.class, id).setUuid("changed");
+                // запрос по той же таблице не сбрасывает изменения перед выполнением
+                found[0] = (Number) cx.getSession()
+                        .createQuery("select count(*) from FakeDomain where uuid = 'changed'").uniqueResult();
+            }
+        });
+        assertEquals(0, found[0].intValue());
+        assertEquals("initial", load());
+    }
+
+    @Test
+    public void connectionIsWritableAfterReadOnlyOperation() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            database.executeReadOnly(new Monad() {
+                @Override
+                public void action(MonadicContext cx) {
+                    cx.getSession().get(FakeDomain.class, id);
+                }
+            });
+        }
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                cx.getSession().get(FakeDomain.class, id).setUuid("changed");
+            }
+        });
+        assertEquals("changed", load());
+    }
+
+}
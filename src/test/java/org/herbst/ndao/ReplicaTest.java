@@ -0,0 +1,130 @@
+package org.herbst.ndao;
+
+import org.herbst.ndao.domain.FakeDomain;
+import org.herbst.ndao.optimistic.Database;
+import org.herbst.ndao.optimistic.DatabaseBuilder;
+import org.herbst.ndao.optimistic.Monad;
+import org.herbst.ndao.optimistic.MonadicContext;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Чтение с реплики: основная база и реплика - две разные базы HSQLDB в памяти.
+ */
+public class ReplicaTest extends Assert {
+
+    private static final String PRIMARY = "jdbc:hsqldb:mem:primarydb";
+
+    private static final String REPLICA = "jdbc:hsqldb:mem:replicadb";
+
+    private static DatabaseBuilder build(String url) {
+        DatabaseBuilder builder = new DatabaseBuilder()
+                .withDriverClass("org.hsqldb.jdbcDriver")
+                .withDialect("org.herbst.ndao.dialect.EHSQLDialect")
+                .withUrl(url)
+                .withAuth("sa", "");
+        // отображение, добавленное мимо withAnnotatedClass, должно попасть и в реплику
+        builder.getHibernateConfiguration().addAnnotatedClass(FakeDomain.class);
+        return builder;
+    }
+
+    private static void insert(Database database, final String uuid) throws Exception {
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                FakeDomain domain = new FakeDomain();
+                domain.setUuid(uuid);
+                cx.getSession().save(domain);
+            }
+        });
+    }
+
+    private static List<String> uuids(Database database, boolean readOnly) throws Exception {
+        final List<String> result = new ArrayList<String>();
+        Monad query = new Monad() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public void action(MonadicContext cx) {
+                result.clear();
+                result.addAll(cx.getSession().createQuery("select uuid from FakeDomain order by uuid").list());
+            }
+        };
+        if (readOnly) {
+            database.executeReadOnly(query);
+        } else {
+            database.execute(query);
+        }
+        return result;
+    }
+
+    @Test
+    public void readsGoToReplicaWritesToPrimary() throws Exception {
+        // схему реплики создает отдельная фабрика: сама реплика DDL не выполняет
+        Database replicaOwner = build(REPLICA).build();
+        insert(replicaOwner, "replica");
+        replicaOwner.destroy();
+
+        Database database = build(PRIMARY).withReplica(REPLICA, "sa", "").withReadYourWrites(TimeUnit.MINUTES.toMillis(1)).build();
+        try {
+            insert(database, "primary");
+            // поток только что подтвердил транзакцию - читает с основной базы
+            assertEquals("primary", uuids(database, true).get(0));
+
+            Database reader = build(PRIMARY).withReplica(REPLICA, "sa", "").build();
+            try {
+                assertEquals("replica", uuids(reader, true).get(0));
+                assertEquals("primary", uuids(reader, false).get(0));
+            } finally {
+                reader.destroy();
+            }
+        } finally {
+            database.destroy();
+        }
+    }
+
+    @Test
+    public void asyncCommitPinsCallerToPrimary() throws Exception {
+        Database replicaOwner = build(REPLICA).build();
+        replicaOwner.destroy();
+        Database database = build(PRIMARY).withReplica(REPLICA, "sa", "").withReadYourWrites(TimeUnit.MINUTES.toMillis(1)).build();
+        try {
+            database.executeAsync(new Monad() {
+                @Override
+                public void action(MonadicContext cx) {
+                    FakeDomain domain = new FakeDomain();
+                    domain.setUuid("async");
+                    cx.getSession().save(domain);
+                }
+            }).get(10, TimeUnit.SECONDS);
+            assertTrue(uuids(database, true).contains("async"));
+        } finally {
+            database.destroy();
+        }
+    }
+
+    @Test
+    public void replicaDoesNotManageSchema() throws Exception {
+        String empty = "jdbc:hsqldb:mem:emptyreplicadb";
+        Database database = build(PRIMARY).withReplica(empty, "sa", "").build();
+        try {
+            Connection connection = DriverManager.getConnection(empty, "sa", "");
+            try {
+                ResultSet tables = connection.createStatement().executeQuery(
+                        "select count(*) from information_schema.tables where table_name = 'FAKE_DO'");
+                tables.next();
+                assertEquals(0, tables.getInt(1));
+            } finally {
+                connection.close();
+            }
+        } finally {
+            database.destroy();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package org.herbst.ndao;
+
+import org.herbst.ndao.optimistic.ExponentialRetryPolicy;
+import org.herbst.ndao.optimistic.LinearRetryPolicy;
+import org.herbst.ndao.optimistic.RetryBudget;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RetryPolicyTest extends Assert {
+
+    @Test
+    public void linear() {
+        LinearRetryPolicy policy = new LinearRetryPolicy(100);
+        assertEquals(100, policy.delay(1, 0));
+        assertEquals(300, policy.delay(3, 200));
+    }
+
+    @Test
+    public void exponentialStaysInBounds() {
+        ExponentialRetryPolicy policy = new ExponentialRetryPolicy(10, 1000);
+        long delay = 0;
+        for (int attempt = 1; attempt < 100; attempt++) {
+            long next = policy.delay(attempt, delay);
+            assertTrue(next >= 10);
+            assertTrue(next <= 1000);
+            assertTrue(next <= Math.max(10, delay * 3));
+            delay = next;
+        }
+    }
+
+    @Test
+    public void budgetDeniesWhenExhausted() {
+        RetryBudget budget = new RetryBudget(2, 0.5);
+        assertTrue(budget.tryAcquire());
+        assertTrue(budget.tryAcquire());
+        assertFalse(budget.tryAcquire());
+        assertEquals(2, budget.getGranted());
+        assertEquals(1, budget.getDenied());
+
+        budget.success();
+        budget.success();
+        assertTrue(budget.tryAcquire());
+        assertFalse(budget.tryAcquire());
+        assertEquals(2, budget.getDenied());
+    }
+
+    @Test
+    public void unlimitedBudgetCountsRetries() {
+        RetryBudget budget = RetryBudget.unlimited();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(budget.tryAcquire());
+        }
+        assertEquals(10, budget.getGranted());
+        assertEquals(0, budget.getDenied());
+    }
+
+}
@@ -0,0 +1,181 @@
+package org.herbst.ndao;
+
+import org.herbst.ndao.domain.FakeDomain;
+import org.herbst.ndao.optimistic.Database;
+import org.herbst.ndao.optimistic.DatabaseBuilder;
+import org.herbst.ndao.optimistic.HerbstException;
+import org.herbst.ndao.optimistic.Monad;
+import org.herbst.ndao.optimistic.MonadicContext;
+import org.herbst.ndao.optimistic.SuccessCommitAction;
+import org.hibernate.HibernateException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Вложенные операции в точке сохранения {@link Database#executeSavepoint(Monad, int)}.
+ */
+public class SavepointTest extends Assert {
+
+    private Database database;
+
+    private long id;
+
+    @Before
+    public void setUp() throws Exception {
+        database = new DatabaseBuilder()
+                .withDriverClass("org.hsqldb.jdbcDriver")
+                .withDialect("org.herbst.ndao.dialect.EHSQLDialect")
+                .withUrl("jdbc:hsqldb:mem:savepointdb")
+                .withAuth("sa", "")
+                .withAnnotatedClass(FakeDomain.class)
+                .build();
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                cx.getSession().createQuery("delete from FakeDomain").executeUpdate();
+            }
+        });
+        final FakeDomain created = new FakeDomain();
+        created.setUuid("initial");
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                cx.getSession().save(created);
+            }
+        });
+        id = created.getId();
+    }
+
+    @After
+    public void tearDown() {
+        database.destroy();
+    }
+
+    private static SuccessCommitAction record(final List<String> actions, final String name) {
+        return new SuccessCommitAction() {
+            @Override
+            public void action() throws Exception {
+                actions.add(name);
+            }
+        };
+    }
+
+    private long count() throws Exception {
+        final Number[] count = new Number[1];
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                count[0] = (Number) cx.getSession().createQuery("select count(*) from FakeDomain").uniqueResult();
+            }
+        });
+        return count[0].longValue();
+    }
+
+    private String load() throws Exception {
+        final String[] uuid = new String[1];
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                uuid[0] = cx.getSession().get(FakeDomain.class, id).getUuid();
+            }
+        });
+        return uuid[0];
+    }
+
+    @Test
+    public void failedStepRestoresStateAndDropsItsActions() throws Exception {
+        final List<String> actions = new ArrayList<String>();
+        final String[] restored = new String[1];
+        final boolean[] attached = new boolean[1];
+        final boolean[] thrown = new boolean[1];
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                final FakeDomain domain = cx.getSession().get(FakeDomain.class, id);
+                domain.setUuid("outer");
+                cx.addSuccessCommitAction(record(actions, "outer"));
+                final FakeDomain created = new FakeDomain();
+                try {
+                    database.executeSavepoint(new Monad() {
+                        @Override
+                        public void action(MonadicContext cx) {
+                            domain.setUuid("nested");
+                            created.setUuid("nested");
+                            cx.getSession().save(created);
+                            cx.addSuccessCommitAction(record(actions, "nested"));
+                            cx.getSession().flush();
+                            throw new IllegalStateException("failed");
+                        }
+                    });
+                } catch (HerbstException expected) {
+                    thrown[0] = true;
+                }
+                restored[0] = domain.getUuid();
+                attached[0] = cx.getSession().contains(created);
+            }
+        });
+        assertTrue(thrown[0]);
+        assertEquals("outer", restored[0]);
+        assertFalse(attached[0]);
+        assertEquals(Arrays.asList("outer"), actions);
+        assertEquals("outer", load());
+        assertEquals(1, count());
+    }
+
+    @Test
+    public void restartsOnlyTheFailedStep() throws Exception {
+        final List<String> actions = new ArrayList<String>();
+        final AtomicInteger outer = new AtomicInteger();
+        final AtomicInteger nested = new AtomicInteger();
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) throws Exception {
+                outer.incrementAndGet();
+                final FakeDomain domain = cx.getSession().get(FakeDomain.class, id);
+                database.executeSavepoint(new Monad() {
+                    @Override
+                    public void action(MonadicContext cx) {
+                        domain.setUuid("nested-" + nested.get());
+                        cx.addSuccessCommitAction(record(actions, "nested-" + nested.get()));
+                        if (nested.getAndIncrement() == 0)
+                            throw new HibernateException("restart");
+                    }
+                });
+            }
+        });
+        assertEquals(1, outer.get());
+        assertEquals(2, nested.get());
+        assertEquals(Arrays.asList("nested-1"), actions);
+        assertEquals("nested-1", load());
+    }
+
+    @Test
+    public void successfulStepKeepsChangesAndActions() throws Exception {
+        final List<String> actions = new ArrayList<String>();
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) throws Exception {
+                cx.addSuccessCommitAction(record(actions, "outer"));
+                database.executeSavepoint(new Monad() {
+                    @Override
+                    public void action(MonadicContext cx) {
+                        FakeDomain created = new FakeDomain();
+                        created.setUuid("nested");
+                        cx.getSession().save(created);
+                        cx.addSuccessCommitAction(record(actions, "nested"));
+                    }
+                });
+            }
+        });
+        assertEquals(Arrays.asList("outer", "nested"), actions);
+        assertEquals(2, count());
+    }
+
+}
@@ -0,0 +1,121 @@
+package org.herbst.ndao;
+
+import org.herbst.ndao.domain.ShardedDomain;
+import org.herbst.ndao.optimistic.Database;
+import org.herbst.ndao.optimistic.DatabaseBuilder;
+import org.herbst.ndao.optimistic.Monad;
+import org.herbst.ndao.optimistic.MonadicContext;
+import org.herbst.ndao.optimistic.Persister;
+import org.herbst.ndao.shard.GlobalShardIdUtils;
+import org.herbst.ndao.shard.ScatterGather;
+import org.herbst.ndao.shard.ShardFunction;
+import org.herbst.ndao.shard.ShardResult;
+import org.herbst.ndao.shard.ShardedDatabase;
+import org.hibernate.jpa.QueryHints;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Запросы ко всем шардам двух баз HSQLDB и исключение шарда, не ответившего вовремя.
+ */
+public class ScatterGatherTest extends Assert {
+
+    private static class ShardedPersister extends Persister<ShardedDomain, Long> {
+    }
+
+    private ShardedDatabase sharded;
+
+    private ScatterGather scatter;
+
+    private static Database build(int shard) throws Exception {
+        return new DatabaseBuilder()
+                .withDriverClass("org.hsqldb.jdbcDriver")
+                .withDialect("org.herbst.ndao.dialect.EHSQLDialect")
+                .withUrl("jdbc:hsqldb:mem:scatterdb" + shard)
+                .withAuth("sa", "")
+                .withShard(shard)
+                .withAnnotatedClass(ShardedDomain.class)
+                .build();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        sharded = new ShardedDatabase()
+                .withShard(0, build(0))
+                .withShard(1, build(1));
+        for (final int shard : new int[]{0, 1}) {
+            sharded.execute(GlobalShardIdUtils.getGlobalShardId(shard, 0), new Monad() {
+                @Override
+                public void action(MonadicContext cx) {
+                    cx.getSession().createQuery("delete from ShardedDomain").executeUpdate();
+                }
+            });
+        }
+        scatter = new ScatterGather(sharded, 2, 1000);
+    }
+
+    @After
+    public void tearDown() {
+        scatter.shutdown();
+        sharded.destroy();
+    }
+
+    private void create(final int shard, final String... names) throws Exception {
+        sharded.execute(GlobalShardIdUtils.getGlobalShardId(shard, 0), new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                for (String name : names) {
+                    ShardedDomain created = new ShardedDomain();
+                    created.setName(name);
+                    cx.getSession().save(created);
+                }
+            }
+        });
+    }
+
+    @Test
+    public void gathersAllShards() throws Exception {
+        create(0, "a", "c", "e");
+        create(1, "b", "d");
+        ShardResult<Long> count = scatter.countAll(new ShardedPersister());
+        assertFalse(count.isPartial());
+        assertEquals(Long.valueOf(5), count.getValue());
+        ShardResult<Long> sum = scatter.sum("select count(*) from ShardedDomain d where d.name > :name",
+                Collections.singletonMap("name", "b"));
+        assertEquals(Long.valueOf(3), sum.getValue());
+        ShardResult<List<String>> names = scatter.list("select d.name from ShardedDomain d order by d.name", null,
+                new Comparator<String>() {
+                    @Override
+                    public int compare(String o1, String o2) {
+                        return o1.compareTo(o2);
+                    }
+                }, 4);
+        assertFalse(names.isPartial());
+        assertEquals(Arrays.asList("a", "b", "c", "d"), names.getValue());
+    }
+
+    @Test
+    public void slowShardIsExcludedAndQueriesGetTimeout() throws Exception {
+        ShardResult<Map<Integer, Object>> result = scatter.scatter(new ShardFunction<Object>() {
+            @Override
+            public Object apply(int shard, MonadicContext cx, long timeout) throws Exception {
+                assertTrue(timeout > 0 && timeout <= 1000);
+                if (shard == 1) Thread.sleep(1500);
+                return cx.getSession().getProperties().get(QueryHints.SPEC_HINT_TIMEOUT);
+            }
+        });
+        assertTrue(result.isPartial());
+        assertEquals(Collections.singleton(0), result.getValue().keySet());
+        assertEquals(1000, result.getValue().get(0));
+        assertTrue(result.getFailures().get(1) instanceof TimeoutException);
+    }
+}
@@ -0,0 +1,112 @@
+package org.herbst.ndao;
+
+import org.herbst.ndao.domain.ChildDomain;
+import org.herbst.ndao.domain.ParentDomain;
+import org.herbst.ndao.optimistic.Database;
+import org.herbst.ndao.optimistic.DatabaseBuilder;
+import org.herbst.ndao.optimistic.Monad;
+import org.herbst.ndao.optimistic.MonadicContext;
+import org.herbst.ndao.optimistic.ScrollIterator;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ScrollIteratorTest extends Assert {
+
+    private static final int FETCH_SIZE = 5;
+
+    private Database database;
+
+    private final List<Long> parents = new ArrayList<Long>();
+
+    @Before
+    public void setUp() throws Exception {
+        database = new DatabaseBuilder()
+                .withDriverClass("org.hsqldb.jdbcDriver")
+                .withDialect("org.herbst.ndao.dialect.EHSQLDialect")
+                .withUrl("jdbc:hsqldb:mem:scrolldb")
+                .withAuth("sa", "")
+                .withAnnotatedClass(ParentDomain.class)
+                .withAnnotatedClass(ChildDomain.class)
+                .build();
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                Session session = cx.getSession();
+                session.createQuery("delete from ChildDomain").executeUpdate();
+                session.createQuery("delete from ParentDomain").executeUpdate();
+            }
+        });
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                Session session = cx.getSession();
+                parents.clear();
+                for (int i = 0; i < 20; i++) {
+                    ParentDomain parent = new ParentDomain();
+                    parent.setName("parent" + i);
+                    session.save(parent);
+                    ChildDomain child = new ChildDomain();
+                    child.setParent(parent);
+                    session.save(child);
+                    parents.add(parent.getId());
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        database.destroy();
+    }
+
+    @Test
+    public void releasesRowsAndFetchedAssociationsButKeepsPreloadedObjects() throws Exception {
+        final List<ChildDomain> children = new ArrayList<ChildDomain>();
+        final int[] managed = new int[1];
+        final boolean[] kept = new boolean[2];
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                Session session = cx.getSession();
+                ParentDomain readOnly = session.get(ParentDomain.class, parents.get(0));
+                session.setReadOnly(readOnly, true);
+                ParentDomain changed = session.get(ParentDomain.class, parents.get(1));
+                changed.setName("changed");
+
+                ScrollIterator<ChildDomain> iterator = database.scroll(cx,
+                        "select c from ChildDomain c join fetch c.parent order by c.id", null, FETCH_SIZE);
+                try {
+                    while (iterator.hasNext()) {
+                        children.add(iterator.next());
+                        managed[0] = Math.max(managed[0],
+                                ((SessionImplementor) session).getPersistenceContext().getEntitiesByKey().size());
+                    }
+                } finally {
+                    iterator.close();
+                }
+                kept[0] = session.contains(readOnly);
+                kept[1] = session.contains(changed);
+                assertFalse(session.contains(children.get(5)));
+                assertFalse(session.contains(children.get(5).getParent()));
+            }
+        });
+        assertEquals(20, children.size());
+        assertTrue("Preloaded read-only object must stay in session", kept[0]);
+        assertTrue("Preloaded modified object must stay in session", kept[1]);
+        assertTrue("Session grew to " + managed[0], managed[0] <= 2 + 2 * FETCH_SIZE);
+
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                assertEquals("changed", cx.getSession().get(ParentDomain.class, parents.get(1)).getName());
+            }
+        });
+    }
+}
@@ -0,0 +1,200 @@
+package org.herbst.ndao;
+
+import org.herbst.ndao.domain.ChildDomain;
+import org.herbst.ndao.domain.ParentDomain;
+import org.herbst.ndao.domain.ShardedDomain;
+import org.herbst.ndao.optimistic.BaseDomainObject;
+import org.herbst.ndao.optimistic.Database;
+import org.herbst.ndao.optimistic.DatabaseBuilder;
+import org.herbst.ndao.optimistic.Monad;
+import org.herbst.ndao.optimistic.MonadicContext;
+import org.herbst.ndao.shard.GlobalShardIdUtils;
+import org.herbst.ndao.shard.ShardMigrator;
+import org.herbst.ndao.shard.ShardedDatabase;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Перенос шарда между двумя базами HSQLDB с изменениями источника во время догоняющей синхронизации.
+ */
+public class ShardMigratorTest extends Assert {
+
+    private ShardedDatabase sharded;
+
+    private Database source;
+
+    private Database target;
+
+    private static Database build(String name) throws Exception {
+        Database database = new DatabaseBuilder()
+                .withDriverClass("org.hsqldb.jdbcDriver")
+                .withDialect("org.herbst.ndao.dialect.EHSQLDialect")
+                .withUrl("jdbc:hsqldb:mem:" + name)
+                .withAuth("sa", "")
+                .withShard(0)
+                .withAnnotatedClass(ShardedDomain.class)
+                .withAnnotatedClass(ParentDomain.class)
+                .withAnnotatedClass(ChildDomain.class)
+                .build();
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                cx.getSession().createQuery("delete from ShardedDomain").executeUpdate();
+                cx.getSession().createQuery("delete from ChildDomain").executeUpdate();
+                cx.getSession().createQuery("delete from ParentDomain").executeUpdate();
+            }
+        });
+        return database;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        source = build("migrationsrc");
+        target = build("migrationdst");
+        sharded = new ShardedDatabase().withShard(0, source);
+    }
+
+    @After
+    public void tearDown() {
+        sharded.destroy();
+        source.destroy();
+        target.destroy();
+    }
+
+    private static List<Long> create(Database database, int count) throws Exception {
+        final List<Long> ids = new ArrayList<Long>();
+        for (int i = 0; i < count; i++) {
+            final ShardedDomain created = new ShardedDomain();
+            created.setName("row" + i);
+            database.execute(new Monad() {
+                @Override
+                public void action(MonadicContext cx) {
+                    cx.getSession().save(created);
+                }
+            });
+            ids.add(created.getId());
+        }
+        return ids;
+    }
+
+    private static ShardedDomain find(Database database, final long id) throws Exception {
+        final ShardedDomain[] found = new ShardedDomain[1];
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                found[0] = cx.getSession().get(ShardedDomain.class, id);
+            }
+        });
+        return found[0];
+    }
+
+    private static long count(Database database) throws Exception {
+        final long[] count = new long[1];
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                count[0] = ((Number) cx.getSession().createQuery("select count(*) from ShardedDomain").uniqueResult()).longValue();
+            }
+        });
+        return count[0];
+    }
+
+    @Test
+    public void catchUpCopiesUpdatesAndTailDeletes() throws Exception {
+        List<Long> ids = create(source, 5);
+        assertEquals(0, GlobalShardIdUtils.getShard(ids.get(4)));
+        List<Class<? extends BaseDomainObject<?>>> types = new ArrayList<Class<? extends BaseDomainObject<?>>>();
+        types.add(ShardedDomain.class);
+        ShardMigrator migrator = new ShardMigrator(sharded, types).withBatchSize(3).withCatchUp(0, 3);
+        assertEquals(5, migrator.sync(0, source, target));
+        assertEquals(5, count(target));
+
+        final long updated = ids.get(1);
+        final long deleted = ids.get(4);
+        source.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                cx.getSession().get(ShardedDomain.class, updated).setName("changed");
+                cx.getSession().delete(cx.getSession().get(ShardedDomain.class, deleted));
+            }
+        });
+        // последняя пачка источника неполная, а удаленная строка лежит за ней
+        assertEquals(2, migrator.sync(0, source, target));
+        assertEquals("changed", find(target, updated).getName());
+        assertNull(find(target, deleted));
+        assertEquals(0, migrator.sync(0, source, target));
+
+        migrator.migrate(0, target);
+        assertSame(target, sharded.getShard(0));
+        assertEquals(0, count(source));
+        assertEquals(4, count(target));
+        assertEquals("changed", sharded.get(ShardedDomain.class, updated).getName());
+    }
+
+    private static long count(Database database, final Class<?> type) throws Exception {
+        final long[] count = new long[1];
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                count[0] = ((Number) cx.getSession().createQuery("select count(*) from " + type.getName()).uniqueResult()).longValue();
+            }
+        });
+        return count[0];
+    }
+
+    @Test
+    public void changedParentIsUpdatedInPlaceAndChildrenAreDeletedFirst() throws Exception {
+        final ParentDomain kept = new ParentDomain();
+        final ParentDomain dropped = new ParentDomain();
+        source.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                for (ParentDomain parent : new ParentDomain[]{kept, dropped}) {
+                    parent.setName("parent");
+                    cx.getSession().save(parent);
+                    ChildDomain child = new ChildDomain();
+                    child.setParent(parent);
+                    cx.getSession().save(child);
+                }
+            }
+        });
+        List<Class<? extends BaseDomainObject<?>>> types = new ArrayList<Class<? extends BaseDomainObject<?>>>();
+        types.add(ParentDomain.class);
+        types.add(ChildDomain.class);
+        ShardMigrator migrator = new ShardMigrator(sharded, types).withBatchSize(10).withCatchUp(0, 3);
+        assertEquals(4, migrator.sync(0, source, target));
+
+        source.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                cx.getSession().get(ParentDomain.class, kept.getId()).setName("renamed");
+                cx.getSession().createQuery("delete from ChildDomain c where c.parent.id = :parent")
+                        .setParameter("parent", dropped.getId()).executeUpdate();
+                cx.getSession().delete(cx.getSession().get(ParentDomain.class, dropped.getId()));
+            }
+        });
+        // родитель с дочерней строкой в приемнике обновляется, удаленные строки удаляются с дочерних
+        assertEquals(3, migrator.sync(0, source, target));
+        assertEquals(0, migrator.sync(0, source, target));
+        final ParentDomain[] copied = new ParentDomain[1];
+        target.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                copied[0] = cx.getSession().get(ParentDomain.class, kept.getId());
+            }
+        });
+        assertEquals("renamed", copied[0].getName());
+        assertEquals(1, count(target, ParentDomain.class));
+        assertEquals(1, count(target, ChildDomain.class));
+
+        migrator.migrate(0, target);
+        assertEquals(0, count(source, ChildDomain.class));
+        assertEquals(0, count(source, ParentDomain.class));
+        assertEquals(1, count(target, ChildDomain.class));
+    }
+}
@@ -0,0 +1,114 @@
+package org.herbst.ndao;
+
+import org.herbst.ndao.domain.ShardedDomain;
+import org.herbst.ndao.optimistic.Database;
+import org.herbst.ndao.optimistic.DatabaseBuilder;
+import org.herbst.ndao.optimistic.Monad;
+import org.herbst.ndao.optimistic.MonadicContext;
+import org.herbst.ndao.optimistic.Persister;
+import org.herbst.ndao.shard.GlobalShardIdUtils;
+import org.herbst.ndao.shard.ShardMonad;
+import org.herbst.ndao.shard.ShardedDatabase;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Маршрутизация операций по шардам между двумя базами HSQLDB.
+ */
+public class ShardedDatabaseTest extends Assert {
+
+    private static class ShardedPersister extends Persister<ShardedDomain, Long> {
+    }
+
+    private final ShardedPersister persister = new ShardedPersister();
+
+    private ShardedDatabase sharded;
+
+    private static Database build(int shard) throws Exception {
+        return new DatabaseBuilder()
+                .withDriverClass("org.hsqldb.jdbcDriver")
+                .withDialect("org.herbst.ndao.dialect.EHSQLDialect")
+                .withUrl("jdbc:hsqldb:mem:sharddb" + shard)
+                .withAuth("sa", "")
+                .withShard(shard)
+                .withAnnotatedClass(ShardedDomain.class)
+                .build();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        sharded = new ShardedDatabase()
+                .withShard(0, build(0))
+                .withShard(1, build(1));
+    }
+
+    @After
+    public void tearDown() {
+        sharded.destroy();
+    }
+
+    private long create(final int shard, final String name) throws Exception {
+        final ShardedDomain created = new ShardedDomain();
+        created.setName(name);
+        sharded.execute(GlobalShardIdUtils.getGlobalShardId(shard, 0), new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                cx.getSession().save(created);
+            }
+        });
+        return created.getId();
+    }
+
+    private static ShardedDomain find(Database database, final long id) throws Exception {
+        final ShardedDomain[] found = new ShardedDomain[1];
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                found[0] = cx.getSession().get(ShardedDomain.class, id);
+            }
+        });
+        return found[0];
+    }
+
+    @Test
+    public void executeRoutesByShardKey() throws Exception {
+        long first = create(0, "zero");
+        long second = create(1, "one");
+        assertEquals(0, GlobalShardIdUtils.getShard(first));
+        assertEquals(1, GlobalShardIdUtils.getShard(second));
+        assertNotNull(find(sharded.getShard(0), first));
+        assertNull(find(sharded.getShard(1), first));
+        assertNotNull(find(sharded.getShard(1), second));
+        assertNull(find(sharded.getShard(0), second));
+    }
+
+    @Test
+    public void shardMonadRoutesByDeclaredKey() throws Exception {
+        final long id = create(1, "before");
+        sharded.execute(new ShardMonad() {
+            @Override
+            public long getShardKey() {
+                return id;
+            }
+
+            @Override
+            public void action(MonadicContext cx) {
+                cx.getSession().get(ShardedDomain.class, id).setName("after");
+            }
+        });
+        assertEquals("after", find(sharded.getShard(1), id).getName());
+    }
+
+    @Test
+    public void getLoadsFromOwningShard() throws Exception {
+        long first = create(0, "zero");
+        long second = create(1, "one");
+        assertEquals("zero", sharded.get(persister, first).getName());
+        assertEquals("one", sharded.get(persister, second).getName());
+        assertEquals("zero", sharded.get(ShardedDomain.class, first).getName());
+        assertEquals("one", sharded.get(ShardedDomain.class, second).getName());
+        assertNull(sharded.get(persister, GlobalShardIdUtils.getGlobalShardId(1, GlobalShardIdUtils.getLocalId(second) + 1000000)));
+    }
+}
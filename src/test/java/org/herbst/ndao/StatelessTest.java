@@ -0,0 +1,155 @@
+package org.herbst.ndao;
+
+import org.herbst.ndao.domain.FakeDomain;
+import org.herbst.ndao.optimistic.Database;
+import org.herbst.ndao.optimistic.DatabaseBuilder;
+import org.herbst.ndao.optimistic.HerbstException;
+import org.herbst.ndao.optimistic.Monad;
+import org.herbst.ndao.optimistic.MonadicContext;
+import org.herbst.ndao.optimistic.Persister;
+import org.herbst.ndao.optimistic.StatelessContext;
+import org.herbst.ndao.optimistic.StatelessMonad;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Операции без состояния {@link Database#executeStateless(StatelessMonad)} и кеш второго уровня.
+ */
+public class StatelessTest extends Assert {
+
+    private static class FakePersister extends Persister<FakeDomain, Long> {
+    }
+
+    private final FakePersister persister = new FakePersister();
+
+    private Database database;
+
+    @Before
+    public void setUp() throws Exception {
+        database = new DatabaseBuilder()
+                .withDriverClass("org.hsqldb.jdbcDriver")
+                .withDialect("org.herbst.ndao.dialect.EHSQLDialect")
+                .withUrl("jdbc:hsqldb:mem:statelessdb")
+                .withAuth("sa", "")
+                .withAnnotatedClass(FakeDomain.class)
+                .build();
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                cx.getSession().createQuery("delete from FakeDomain").executeUpdate();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        database.destroy();
+    }
+
+    private long insert(final String uuid) throws Exception {
+        final long[] id = new long[1];
+        database.executeStateless(new StatelessMonad() {
+            @Override
+            public void action(StatelessContext cx) {
+                FakeDomain domain = new FakeDomain();
+                domain.setUuid(uuid);
+                id[0] = persister.insert(cx, domain);
+            }
+        });
+        return id[0];
+    }
+
+    /**
+     * Загружает объект обычной сессией, при этом объект попадает в кеш второго уровня.
+     */
+    private FakeDomain load(final long id) throws Exception {
+        final FakeDomain[] loaded = new FakeDomain[1];
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                loaded[0] = cx.getSession().get(FakeDomain.class, id);
+            }
+        });
+        return loaded[0];
+    }
+
+    private boolean cached(long id) {
+        return database.getCache().containsEntity(FakeDomain.class, id);
+    }
+
+    @Test
+    public void insertsUpdatesAndDeletes() throws Exception {
+        final long id = insert("inserted");
+        assertEquals("inserted", load(id).getUuid());
+        database.executeStateless(new StatelessMonad() {
+            @Override
+            public void action(StatelessContext cx) {
+                FakeDomain domain = persister.get(cx, id);
+                domain.setUuid("updated");
+                persister.update(cx, domain);
+            }
+        });
+        assertEquals("updated", load(id).getUuid());
+        database.executeStateless(new StatelessMonad() {
+            @Override
+            public void action(StatelessContext cx) {
+                persister.delete(cx, persister.get(cx, id));
+            }
+        });
+        assertNull(load(id));
+    }
+
+    @Test
+    public void updateEvictsCachedEntity() throws Exception {
+        final long id = insert("inserted");
+        load(id);
+        assertTrue(cached(id));
+        database.executeStateless(new StatelessMonad() {
+            @Override
+            public void action(StatelessContext cx) {
+                FakeDomain domain = persister.get(cx, id);
+                domain.setUuid("updated");
+                persister.update(cx, domain);
+            }
+        });
+        assertFalse(cached(id));
+        assertEquals("updated", load(id).getUuid());
+    }
+
+    @Test
+    public void deleteEvictsCachedEntity() throws Exception {
+        final long id = insert("inserted");
+        load(id);
+        assertTrue(cached(id));
+        database.executeStateless(new StatelessMonad() {
+            @Override
+            public void action(StatelessContext cx) {
+                persister.delete(cx, persister.get(cx, id));
+            }
+        });
+        assertFalse(cached(id));
+        assertNull(load(id));
+    }
+
+    @Test
+    public void failedOperationIsRolledBack() throws Exception {
+        final long id = insert("inserted");
+        try {
+            database.executeStateless(new StatelessMonad() {
+                @Override
+                public void action(StatelessContext cx) {
+                    FakeDomain domain = persister.get(cx, id);
+                    domain.setUuid("updated");
+                    persister.update(cx, domain);
+                    throw new IllegalStateException("failed");
+                }
+            });
+            fail();
+        } catch (HerbstException expected) {
+        }
+        assertEquals("inserted", load(id).getUuid());
+    }
+
+}
@@ -0,0 +1,152 @@
+package org.herbst.ndao;
+
+import org.herbst.ndao.shard.GlobalShardIdUtils;
+import org.herbst.ndao.shard.TimeOrderedIdGenerator;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TimeOrderedIdGeneratorTest extends Assert {
+
+    private static final long NOW = TimeOrderedIdGenerator.EPOCH + 123456789L;
+
+    private static class ManualClockGenerator extends TimeOrderedIdGenerator {
+
+        private volatile long time = NOW;
+
+        ManualClockGenerator(int shard, int node) {
+            super(shard, node);
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return time;
+        }
+    }
+
+    /**
+     * Часы, которые сдвигаются на миллисекунду каждые 1000 чтений.
+     */
+    private static class TickingClockGenerator extends TimeOrderedIdGenerator {
+
+        private final AtomicLong reads = new AtomicLong();
+
+        TickingClockGenerator(int shard, int node) {
+            super(shard, node);
+        }
+
+        long now() {
+            return NOW + reads.get() / 1000;
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return NOW + reads.getAndIncrement() / 1000;
+        }
+    }
+
+    @Test
+    public void keepsShardNodeAndTimestamp() {
+        long id = new ManualClockGenerator(200, 17).nextId();
+        assertTrue(id > 0);
+        assertEquals(200, GlobalShardIdUtils.getShard(id));
+        assertEquals(17, TimeOrderedIdGenerator.getNode(id));
+        assertEquals(NOW, TimeOrderedIdGenerator.getTimestamp(id));
+        assertEquals(id, GlobalShardIdUtils.getGlobalShardId(200, GlobalShardIdUtils.getLocalId(id)));
+    }
+
+    @Test
+    public void waitsForNextMillisecondOnCounterOverflow() {
+        TickingClockGenerator generator = new TickingClockGenerator(1, 0);
+        long previous = generator.nextId();
+        for (int i = 0; i < 2000; i++) {
+            long id = generator.nextId();
+            assertTrue(id > previous);
+            assertTrue(TimeOrderedIdGenerator.getTimestamp(id) <= generator.now());
+            previous = id;
+        }
+        assertTrue(TimeOrderedIdGenerator.getTimestamp(previous) > NOW);
+        assertEquals(1, GlobalShardIdUtils.getShard(previous));
+    }
+
+    @Test
+    public void survivesClockRegression() {
+        ManualClockGenerator generator = new ManualClockGenerator(3, 5);
+        long before = generator.nextId();
+        generator.time = NOW - 1000;
+        long after = generator.nextId();
+        assertTrue(after > before);
+        generator.time = NOW + 1;
+        assertEquals(NOW + 1, TimeOrderedIdGenerator.getTimestamp(generator.nextId()));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsClockRegressionBeyondMaxDrift() {
+        ManualClockGenerator generator = new ManualClockGenerator(3, 5);
+        generator.nextId();
+        generator.time = NOW - TimeOrderedIdGenerator.DEFAULT_MAX_DRIFT - 1;
+        generator.nextId();
+    }
+
+    @Test
+    public void restartedGeneratorDoesNotRepeatIds() throws Exception {
+        TimeOrderedIdGenerator generator = new TimeOrderedIdGenerator(9, 2);
+        long last = 0;
+        for (int i = 0; i < 5000; i++) {
+            last = generator.nextId();
+        }
+        // перезапуск процесса занимает хотя бы пару миллисекунд
+        Thread.sleep(2);
+        // новый экземпляр с той же парой (шард, узел)
+        TimeOrderedIdGenerator restarted = new TimeOrderedIdGenerator(9, 2);
+        assertTrue(restarted.nextId() > last);
+    }
+
+    @Test
+    public void uniqueAcrossThreads() throws Exception {
+        final TimeOrderedIdGenerator generator = new TimeOrderedIdGenerator(7, 1);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<long[]>> futures = new ArrayList<Future<long[]>>();
+            for (int t = 0; t < 4; t++) {
+                futures.add(executor.submit(new Callable<long[]>() {
+                    @Override
+                    public long[] call() {
+                        long[] ids = new long[10000];
+                        for (int i = 0; i < ids.length; i++) {
+                            ids[i] = generator.nextId();
+                        }
+                        return ids;
+                    }
+                }));
+            }
+            Set<Long> all = new HashSet<Long>();
+            for (Future<long[]> future : futures) {
+                long[] ids = future.get();
+                for (int i = 0; i < ids.length; i++) {
+                    assertTrue(all.add(ids[i]));
+                    if (i > 0) {
+                        assertTrue(ids[i] > ids[i - 1]);
+                    }
+                }
+            }
+            assertEquals(40000, all.size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNodeOutOfRange() {
+        new TimeOrderedIdGenerator(0, TimeOrderedIdGenerator.MAX_NODE + 1);
+    }
+}
@@ -0,0 +1,103 @@
+package org.herbst.ndao;
+
+import org.herbst.ndao.domain.FakeDomain;
+import org.herbst.ndao.optimistic.Database;
+import org.herbst.ndao.optimistic.DatabaseBuilder;
+import org.herbst.ndao.optimistic.HerbstException;
+import org.herbst.ndao.optimistic.Monad;
+import org.herbst.ndao.optimistic.MonadicContext;
+import org.herbst.ndao.optimistic.Persister;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class UpsertTest extends Assert {
+
+    private static class FakePersister extends Persister<FakeDomain, Long> {
+    }
+
+    private final FakePersister persister = new FakePersister();
+
+    private Database database;
+
+    @Before
+    public void setUp() throws Exception {
+        database = new DatabaseBuilder()
+                .withDriverClass("org.hsqldb.jdbcDriver")
+                .withDialect("org.herbst.ndao.dialect.EHSQLDialect")
+                .withUrl("jdbc:hsqldb:mem:upsertdb")
+                .withAuth("sa", "")
+                .withAnnotatedClass(FakeDomain.class)
+                .build();
+    }
+
+    @After
+    public void tearDown() {
+        database.destroy();
+    }
+
+    private static FakeDomain domain(long id, String uuid) {
+        FakeDomain domain = new FakeDomain();
+        domain.setId(id);
+        domain.setUuid(uuid);
+        return domain;
+    }
+
+    private long count() throws Exception {
+        final long[] count = new long[1];
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                count[0] = ((Number) cx.getSession().createQuery("select count(*) from FakeDomain").uniqueResult()).longValue();
+            }
+        });
+        return count[0];
+    }
+
+    @Test
+    public void insertsAndUpdatesAssignedIds() throws Exception {
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                persister.upsertAll(cx, Arrays.asList(domain(101, "a"), domain(102, "b")));
+            }
+        });
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                persister.upsertAll(cx, Arrays.asList(domain(101, "a2")));
+            }
+        });
+        database.execute(new Monad() {
+            @Override
+            public void action(MonadicContext cx) {
+                assertEquals("a2", persister.get(cx, 101L).getUuid());
+                assertEquals("b", persister.get(cx, 102L).getUuid());
+            }
+        });
+    }
+
+    @Test
+    public void rejectsUnsavedPrimitiveIds() throws Exception {
+        long before = count();
+        try {
+            database.execute(new Monad() {
+                @Override
+                public void action(MonadicContext cx) {
+                    FakeDomain first = new FakeDomain();
+                    first.setUuid("first");
+                    FakeDomain second = new FakeDomain();
+                    second.setUuid("second");
+                    persister.upsertAll(cx, Arrays.asList(first, second));
+                }
+            });
+            fail("Upsert of objects without ids must fail");
+        } catch (HerbstException e) {
+            assertTrue(database.getContext().getLastError() instanceof IllegalArgumentException);
+        }
+        assertEquals(before, count());
+    }
+}
@@ -0,0 +1,32 @@
+package org.herbst.ndao.domain;
+
+import org.herbst.ndao.optimistic.SequenceDomainObject;
+
+import javax.persistence.Entity;
+import javax.persistence.FetchType;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.persistence.Table;
+
+@Entity
+@Table(
+        name = "child_do"
+)
+public class ChildDomain extends SequenceDomainObject<ChildDomain> {
+
+    private ParentDomain parent;
+
+    public ChildDomain() {
+    }
+
+    @ManyToOne(fetch = FetchType.LAZY, optional = false)
+    @JoinColumn(name = "parent_id")
+    public ParentDomain getParent() {
+        return parent;
+    }
+
+    public void setParent(ParentDomain parent) {
+        this.parent = parent;
+    }
+
+}
@@ -0,0 +1,34 @@
+package org.herbst.ndao.domain;
+
+import org.herbst.ndao.optimistic.DomainObject;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+
+import javax.persistence.Cacheable;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Table;
+
+@Entity
+@Table(
+        name = "counted_do"
+)
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
+public class CountedDomain extends DomainObject<CountedDomain> {
+
+    private long views;
+
+    public CountedDomain() {
+    }
+
+    @Column(name = "views", nullable = false)
+    public long getViews() {
+        return views;
+    }
+
+    public void setViews(long views) {
+        this.views = views;
+    }
+
+}
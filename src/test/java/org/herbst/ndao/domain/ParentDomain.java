@@ -0,0 +1,29 @@
+package org.herbst.ndao.domain;
+
+import org.herbst.ndao.optimistic.SequenceDomainObject;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Table;
+
+@Entity
+@Table(
+        name = "parent_do"
+)
+public class ParentDomain extends SequenceDomainObject<ParentDomain> {
+
+    private String name;
+
+    public ParentDomain() {
+    }
+
+    @Column(name = "name")
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+}
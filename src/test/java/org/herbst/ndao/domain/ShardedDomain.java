@@ -0,0 +1,29 @@
+package org.herbst.ndao.domain;
+
+import org.herbst.ndao.optimistic.SequenceDomainObject;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Table;
+
+@Entity
+@Table(
+        name = "sharded_do"
+)
+public class ShardedDomain extends SequenceDomainObject<ShardedDomain> {
+
+    private String name;
+
+    public ShardedDomain() {
+    }
+
+    @Column(name = "name")
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+}
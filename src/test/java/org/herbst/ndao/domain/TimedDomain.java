@@ -0,0 +1,33 @@
+package org.herbst.ndao.domain;
+
+import org.herbst.ndao.optimistic.DomainObject;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import java.util.Date;
+
+@Entity
+@Table(
+        name = "timed_do"
+)
+public class TimedDomain extends DomainObject {
+
+    private Date created;
+
+    public TimedDomain() {
+    }
+
+    @Column(name = "created", nullable = false)
+    @Temporal(TemporalType.TIMESTAMP)
+    public Date getCreated() {
+        return created;
+    }
+
+    public void setCreated(Date created) {
+        this.created = created;
+    }
+
+}